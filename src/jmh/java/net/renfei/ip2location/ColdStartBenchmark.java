@@ -0,0 +1,118 @@
+package net.renfei.ip2location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to open a synthetic BIN and run the first lookups on it, with the BIN in the page cache of
+ * the operating system or evicted from it.
+ * <p>
+ * Only WARM runs by default. Java cannot evict a file from the page cache, so the COLD runs take the command that
+ * does from the ip2location.dropCaches property and fail without it. On Linux, as root:
+ * <pre>
+ * mvn -P jmh test-compile exec:exec -Djmh.args="ColdStartBenchmark -p cache=COLD,WARM -jvmArgsAppend -Dip2location.dropCaches='sync; echo 3 > /proc/sys/vm/drop_caches'"
+ * </pre>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ColdStartBenchmark {
+    /**
+     * Whether the BIN is in the page cache when it is opened.
+     */
+    public enum PageCache {
+        COLD, WARM
+    }
+
+    private static final int LOOKUPS = 1000;
+
+    @Param({"MEMORY_MAPPED", "FILE", "BYTE_ARRAY"})
+    public LookupBenchmark.OpenMode mode;
+
+    @Param({"11", "26"})
+    public int dbType;
+
+    @Param({"1000000"})
+    public int rows;
+
+    @Param({"WARM"})
+    public PageCache cache;
+
+    private File bin;
+    private String[] addresses;
+
+    @Setup(Level.Trial)
+    public void create() throws IOException {
+        bin = LookupBenchmark.createBin(dbType, rows);
+        final Random random = new Random(42);
+        final String[] ipv4 = LookupBenchmark.ipv4Addresses(random, LOOKUPS);
+        final String[] ipv6 = LookupBenchmark.ipv6Addresses(random, LOOKUPS);
+        addresses = new String[LOOKUPS];
+        for (int x = 0; x < LOOKUPS; x++) {
+            addresses[x] = (x % 4 != 0) ? ipv4[x] : ipv6[x];
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void prepareCache() throws IOException, InterruptedException {
+        if (cache == PageCache.WARM) {
+            try (InputStream in = new FileInputStream(bin)) {
+                final byte[] chunk = new byte[1 << 16];
+                while (in.read(chunk) >= 0) {
+                    // reading the whole BIN puts it into the page cache
+                }
+            }
+            return;
+        }
+        final String command = System.getProperty("ip2location.dropCaches");
+        if (command == null) {
+            throw new IllegalStateException("Set -Dip2location.dropCaches to a command that evicts the page cache to run COLD");
+        }
+        final int exit = new ProcessBuilder("sh", "-c", command).inheritIO().start().waitFor();
+        if (exit != 0) {
+            throw new IllegalStateException("The command to evict the page cache exited with " + exit);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        bin.delete();
+    }
+
+    @Benchmark
+    public int openAndQuery() throws IOException {
+        final IP2Location loc = LookupBenchmark.open(mode, bin);
+        try {
+            int found = 0;
+            for (String address : addresses) {
+                if ("OK".equals(loc.IPQuery(address).getStatus())) {
+                    found++;
+                }
+            }
+            return found;
+        } finally {
+            loc.Close();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package net.renfei.ip2location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of IPQuery for IPv4 and IPv6 addresses on a synthetic BIN, in memory mapped mode, file
+ * mode and opened from a byte array, with the binary search bucketed by the BIN index, the Eytzinger layout or the
+ * prefix indexes, on one thread and on as many threads as there are processors.
+ * <p>
+ * Run with the jmh profile, which also adds the GC profiler for the allocation rate per lookup:
+ * <pre>
+ * mvn -P jmh test-compile exec:exec -Djmh.args="LookupBenchmark -prof gc"
+ * </pre>
+ * Every combination of the parameters below builds its own BIN, narrow them with -p, for example
+ * -p dbType=11 -p rows=1000000 -p search=BINARY. Use -bm sample for the latency percentiles instead of the throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LookupBenchmark {
+    /**
+     * How the BIN is opened.
+     */
+    public enum OpenMode {
+        MEMORY_MAPPED, FILE, BYTE_ARRAY
+    }
+
+    /**
+     * How the rows are searched: the binary search narrowed by the /16 index stored in the BIN, the Eytzinger
+     * layout, or the /24 IPv4 and the /32 and /48 IPv6 prefix indexes.
+     */
+    public enum Search {
+        BINARY, EYTZINGER, PREFIX_INDEX
+    }
+
+    private static final int ADDRESSES = 1 << 16;
+
+    @Param({"MEMORY_MAPPED", "FILE", "BYTE_ARRAY"})
+    public OpenMode mode;
+
+    @Param({"1", "11", "26"})
+    public int dbType;
+
+    @Param({"100000", "1000000"})
+    public int rows;
+
+    @Param({"BINARY", "EYTZINGER", "PREFIX_INDEX"})
+    public Search search;
+
+    private File bin;
+    private IP2Location loc;
+    private String[] ipv4;
+    private String[] ipv4Clustered;
+    private String[] ipv6;
+
+    /**
+     * The position of a thread in the addresses, so that threads do not share a counter.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        bin = createBin(dbType, rows);
+        loc = open(mode, search, bin);
+        final Random random = new Random(42);
+        ipv4 = ipv4Addresses(random, ADDRESSES);
+        ipv4Clustered = ipv4ClusteredAddresses(random, ADDRESSES);
+        ipv6 = ipv6Addresses(random, ADDRESSES);
+        if (!"OK".equals(loc.IPQuery(ipv4[0]).getStatus()) || !"OK".equals(loc.IPQuery(ipv4Clustered[0]).getStatus())
+                || !"OK".equals(loc.IPQuery(ipv6[0]).getStatus())) {
+            throw new IllegalStateException("The synthetic BIN does not cover the benchmark addresses");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        loc.Close();
+        bin.delete();
+    }
+
+    @Benchmark
+    public IPResult ipv4(Cursor cursor) throws IOException {
+        return loc.IPQuery(ipv4[cursor.next++ & (ADDRESSES - 1)]);
+    }
+
+    /**
+     * Addresses in the /16 buckets that hold the most rows, where the BIN index narrows the search the least.
+     */
+    @Benchmark
+    public IPResult ipv4Clustered(Cursor cursor) throws IOException {
+        return loc.IPQuery(ipv4Clustered[cursor.next++ & (ADDRESSES - 1)]);
+    }
+
+    @Benchmark
+    public IPResult ipv6(Cursor cursor) throws IOException {
+        return loc.IPQuery(ipv6[cursor.next++ & (ADDRESSES - 1)]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public IPResult ipv4Parallel(Cursor cursor) throws IOException {
+        return loc.IPQuery(ipv4[cursor.next++ & (ADDRESSES - 1)]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public IPResult ipv6Parallel(Cursor cursor) throws IOException {
+        return loc.IPQuery(ipv6[cursor.next++ & (ADDRESSES - 1)]);
+    }
+
+    /**
+     * @param dbType the database type
+     * @param rows   the number of IPv4 rows, a quarter as many IPv6 rows are written
+     * @return a temporary BIN
+     * @throws IOException If the file cannot be written
+     */
+    static File createBin(int dbType, int rows) throws IOException {
+        final File bin = File.createTempFile("ip2location-jmh", ".bin");
+        bin.deleteOnExit();
+        new BinFileBuilder(dbType).ipv4Rows(rows).ipv6Rows(rows / 4).write(bin.getPath());
+        return bin;
+    }
+
+    static IP2Location open(OpenMode mode, File bin) throws IOException {
+        return open(mode, Search.BINARY, bin);
+    }
+
+    static IP2Location open(OpenMode mode, Search search, File bin) throws IOException {
+        final IP2Location loc = new IP2Location();
+        loc.UseEytzingerLayout = search == Search.EYTZINGER;
+        loc.UseIPv4PrefixIndex = search == Search.PREFIX_INDEX;
+        loc.UseIPv6PrefixIndex = search == Search.PREFIX_INDEX;
+        switch (mode) {
+            case MEMORY_MAPPED:
+                loc.Open(bin.getPath(), true);
+                break;
+            case FILE:
+                loc.Open(bin.getPath(), false);
+                break;
+            default:
+                loc.Open(Files.readAllBytes(bin.toPath()));
+        }
+        return loc;
+    }
+
+    static String[] ipv4Addresses(Random random, int count) {
+        final String[] addresses = new String[count];
+        for (int x = 0; x < count; x++) {
+            final int ip = random.nextInt();
+            addresses[x] = (ip >>> 24) + "." + ((ip >>> 16) & 255) + "." + ((ip >>> 8) & 255) + "." + (ip & 255);
+        }
+        return addresses;
+    }
+
+    static String[] ipv4ClusteredAddresses(Random random, int count) {
+        final String[] addresses = new String[count];
+        for (int x = 0; x < count; x++) {
+            // the builder puts half of the IPv4 rows into 100.0.0.0 to 107.255.255.255
+            final int ip = random.nextInt();
+            addresses[x] = (100 + random.nextInt(8)) + "." + ((ip >>> 16) & 255) + "." + ((ip >>> 8) & 255) + "." + (ip & 255);
+        }
+        return addresses;
+    }
+
+    static String[] ipv6Addresses(Random random, int count) {
+        final String[] addresses = new String[count];
+        for (int x = 0; x < count; x++) {
+            // in 2000::/10, where the builder puts most of the IPv6 rows
+            addresses[x] = String.format("2%03x:%x:%x:%x::%x", random.nextInt(64), random.nextInt(65536), random.nextInt(65536), random.nextInt(65536), random.nextInt(65536));
+        }
+        return addresses;
+    }
+}
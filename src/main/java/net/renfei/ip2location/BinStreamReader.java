@@ -0,0 +1,116 @@
+package net.renfei.ip2location;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads a BIN from a stream into a direct buffer, see IP2Location.Open(InputStream).
+ * <p>
+ * The stream may hold the BIN itself, the BIN compressed with gzip, or a zip archive with the BIN as one of its
+ * entries. The buffer is sized from the file size in the header, so the BIN is copied once, in small chunks,
+ * and never held on the heap as a whole.
+ */
+// package-private access
+final class BinStreamReader {
+    private static final int MAX_SIZE = Integer.MAX_VALUE - 8; // the largest buffer the JVM can allocate
+    private static final int UNKNOWN_SIZE = 1 << 26; // initial buffer for BINs without a file size in the header
+
+    private BinStreamReader() {
+    }
+
+    /**
+     * @param source the stream, read to its end but not closed
+     * @return a direct buffer with the BIN and nothing else
+     * @throws IOException If the stream cannot be read or holds no BIN
+     */
+    static ByteBuffer read(InputStream source) throws IOException {
+        final PushbackInputStream in = new PushbackInputStream(new FilterInputStream(source) {
+            @Override
+            public void close() {
+                // the caller owns the stream, only the decompressors on top of it are closed
+            }
+        }, 4);
+        final byte[] magic = new byte[4];
+        final int count = readFully(in, magic, 4);
+        in.unread(magic, 0, count);
+
+        if (count >= 2 && magic[0] == (byte) 0x1f && magic[1] == (byte) 0x8b) {
+            try (GZIPInputStream gzip = new GZIPInputStream(in, 1 << 16)) {
+                return readBIN(gzip);
+            }
+        }
+        if (count == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4) {
+            try (ZipInputStream zip = new ZipInputStream(in)) {
+                for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                    if (!entry.isDirectory() && entry.getName().toUpperCase(Locale.ROOT).endsWith(".BIN")) {
+                        return readBIN(zip);
+                    }
+                }
+            }
+            throw new IOException("The zip archive does not contain an IP2Location BIN file.");
+        }
+        return readBIN(in);
+    }
+
+    private static ByteBuffer readBIN(InputStream in) throws IOException {
+        final byte[] chunk = new byte[1 << 16];
+        if (readFully(in, chunk, 64) < 64) {
+            throw new IOException("Incorrect IP2Location BIN file format. The file is shorter than its header.");
+        }
+        final long filesize = IP2Location.ReadHeader(Arrays.copyOf(chunk, 64)).getFileSize() & 0xffffffffL;
+        if (filesize > MAX_SIZE) {
+            throw new IOException("The IP2Location BIN file is too large to be read into memory, open it by its path instead.");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect((filesize >= 64) ? (int) filesize : UNKNOWN_SIZE);
+        buffer.put(chunk, 0, 64);
+        int count;
+        while ((count = in.read(chunk)) >= 0) {
+            if (buffer.remaining() < count) { // the header did not tell the file size, or told it wrong
+                buffer = copy(buffer, buffer.position() + count);
+            }
+            buffer.put(chunk, 0, count);
+        }
+        if (buffer.hasRemaining()) {
+            buffer = copy(buffer, buffer.position());
+        }
+        return buffer;
+    }
+
+    /**
+     * @param buffer  the buffer being filled
+     * @param minimum the capacity needed, or the position of the buffer to shrink it to its content
+     * @return a new direct buffer with the content of buffer, positioned after it
+     */
+    private static ByteBuffer copy(final ByteBuffer buffer, final long minimum) throws IOException {
+        if (minimum > MAX_SIZE) {
+            throw new IOException("The IP2Location BIN file is too large to be read into memory, open it by its path instead.");
+        }
+        final int capacity = (minimum == buffer.position()) ? (int) minimum : (int) Math.min(MAX_SIZE, Math.max(minimum, 2L * buffer.capacity()));
+        final ByteBuffer copy = ByteBuffer.allocateDirect(capacity);
+        ((Buffer) buffer).flip(); // through Buffer so that it also runs on Java 8
+        copy.put(buffer);
+        return copy;
+    }
+
+    private static int readFully(final InputStream in, final byte[] b, final int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            final int count = in.read(b, total, len - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+}
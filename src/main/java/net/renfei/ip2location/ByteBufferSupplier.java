@@ -0,0 +1,67 @@
+package net.renfei.ip2location;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Supplies file handles that read a BIN held in memory, on the heap or in a direct buffer.
+ * <p>
+ * Every handle reads its own duplicate of the shared buffer, so a seek is a plain assignment and handles on
+ * different threads never share a position. Memory mapped mode reads slices of the same buffer, see MappedRegion.
+ */
+// package-private access
+final class ByteBufferSupplier implements IP2Location.FileLike.Supplier {
+    private final ByteBuffer _Buffer;
+
+    ByteBufferSupplier(ByteBuffer buffer) {
+        _Buffer = buffer;
+    }
+
+    /**
+     * @return the whole BIN, to be read with absolute offsets only
+     */
+    ByteBuffer buffer() {
+        return _Buffer;
+    }
+
+    public IP2Location.FileLike open() {
+        return new Handle(_Buffer.duplicate());
+    }
+
+    public boolean isValid() {
+        return _Buffer.capacity() > 0;
+    }
+
+    private static final class Handle implements IP2Location.FileLike {
+        private final ByteBuffer _Buffer;
+        private long _Position = 0;
+
+        Handle(ByteBuffer buffer) {
+            _Buffer = buffer;
+        }
+
+        public int read(byte[] buffer) {
+            return read(buffer, 0, buffer.length);
+        }
+
+        public int read(byte[] b, int off, int len) {
+            final int capacity = _Buffer.capacity();
+            if (_Position >= capacity) {
+                return (len > 0) ? -1 : 0;
+            }
+            final int count = (int) Math.min(len, capacity - _Position);
+            ((Buffer) _Buffer).position((int) _Position); // through Buffer so that it also runs on Java 8
+            _Buffer.get(b, off, count);
+            _Position += count;
+            return count;
+        }
+
+        public void seek(long pos) {
+            _Position = pos;
+        }
+
+        public void close() {
+            // the buffer is shared and stays in memory until the supplier is dropped
+        }
+    }
+}
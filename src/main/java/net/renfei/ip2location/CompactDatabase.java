@@ -0,0 +1,760 @@
+package net.renfei.ip2location;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A BIN compiled into a compact file that is memory mapped and queried as it is, see IP2Location.Compile.
+ * <p>
+ * Every distinct combination of the columns of a row, such as a city with its region, country, coordinates and
+ * time zone, is stored once as a tuple, and every distinct string once in a dictionary. A row only keeps the id of
+ * its tuple, in as few bytes as the number of tuples needs. The range starts are delta encoded in blocks of 16
+ * rows: the first start of every block is stored as it is, so a lookup binary searches those and then adds up at
+ * most 15 varint deltas. A table of the first block for every /16 prefix, which is the first 16 bits of an IPv6
+ * address, narrows the binary search the same way the BIN index does.
+ * <p>
+ * Loading only maps the file and reads its header, nothing is decoded until it is looked up. All numbers are
+ * little endian, and every section starts at a multiple of 8 bytes:
+ * <pre>
+ *   header    magic, version, the 64-byte BIN header, the field mask, the counts and the section offsets
+ *   strings   the offset of every string in the string bytes, plus the end of the last one
+ *   bytes     the strings in UTF-8
+ *   tuples    for every tuple, 4 bytes for each field the BIN has: a string id, -1 for null, or the float bits
+ *   then for IPv4 and for IPv6:
+ *   ids       the tuple id of every row, in the tuple id width
+ *   anchors   the first range start of every block, 4 bytes for IPv4 and the upper and lower 8 bytes for IPv6
+ *   blocks    the offset of the deltas of every block
+ *   deltas    the difference to the range start before it for every row that does not start a block, as varints
+ *   index     the first block to search for every /16 prefix, plus the last block
+ * </pre>
+ */
+// package-private access
+final class CompactDatabase {
+    private static final int MAGIC = 0x43325049; // "IP2C"
+    private static final int VERSION = 1;
+    private static final int BLOCK_BITS = 4;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    private static final int HEADER_SIZE = 256;
+    private static final long MAX_IPV4_NO = 4294967295L;
+    private static final IPField[] FIELDS = IPField.values();
+
+    // offsets in the header
+    private static final int BIN_HEADER = 8;
+    private static final int FIELD_MASK = 72;
+    private static final int TUPLE_COUNT = 76;
+    private static final int STRING_COUNT = 80;
+    private static final int ID_WIDTH = 84;
+    private static final int SECTIONS = 96; // one int per section, in the order of the constants below
+
+    private static final int STRINGS = 0;
+    private static final int BYTES = 1;
+    private static final int TUPLES = 2;
+    private static final int FAMILY = 3; // the sections of IPv4, followed by the same ones of IPv6
+    private static final int ROWS = 0; // the number of rows, stored in place of a section offset
+    private static final int IDS = 1;
+    private static final int ANCHORS = 2;
+    private static final int BLOCKS = 3;
+    private static final int DELTAS = 4;
+    private static final int INDEX = 5;
+    private static final int FAMILY_SECTIONS = 6;
+
+    /**
+     * The sections of one address family.
+     */
+    private static final class Family {
+        final int rows;
+        final int ids;
+        final int anchors;
+        final int blocks;
+        final int deltas;
+        final int index;
+
+        Family(ByteBuffer buffer, int first) {
+            rows = buffer.getInt(SECTIONS + ((first + ROWS) << 2));
+            ids = buffer.getInt(SECTIONS + ((first + IDS) << 2));
+            anchors = buffer.getInt(SECTIONS + ((first + ANCHORS) << 2));
+            blocks = buffer.getInt(SECTIONS + ((first + BLOCKS) << 2));
+            deltas = buffer.getInt(SECTIONS + ((first + DELTAS) << 2));
+            index = buffer.getInt(SECTIONS + ((first + INDEX) << 2));
+        }
+    }
+
+    private final ByteBuffer _Buffer;
+    private final MappedByteBuffer _Mapped;
+    private final StringCache _StringCache;
+    private final int[] _TupleOffsets = new int[FIELDS.length]; // offset of each field in a tuple, -1 when the BIN does not have it
+    private final int _TupleSize;
+    private final int _StringCount;
+    private final int _TupleCount;
+    private final int _IdWidth;
+    private final int _IdMask;
+    private final int _Strings;
+    private final int _Bytes;
+    private final int _Tuples;
+    private final Family _IPv4;
+    private final Family _IPv6;
+
+    /**
+     * @param buffer      the compiled file, read with absolute offsets only
+     * @param mapped      true if buffer is memory mapped from the file, false if it holds the file in memory
+     * @param stringcache the cache of decoded strings keyed by their id, null for none
+     * @throws IOException If the buffer does not hold a compiled file of this version
+     */
+    CompactDatabase(ByteBuffer buffer, boolean mapped, StringCache stringcache) throws IOException {
+        _Buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        _Mapped = mapped ? (MappedByteBuffer) buffer : null; // a duplicate cannot be loaded on Java 8
+        if (_Buffer.capacity() < HEADER_SIZE || _Buffer.getInt(0) != MAGIC) {
+            throw new IOException("Incorrect compiled IP2Location file format.");
+        }
+        if (_Buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported compiled IP2Location file version " + _Buffer.getInt(4) + ", compile the BIN again.");
+        }
+        _StringCache = stringcache;
+        final int mask = _Buffer.getInt(FIELD_MASK);
+        int size = 0;
+        for (IPField field : FIELDS) {
+            _TupleOffsets[field.ordinal()] = ((mask & (1 << field.ordinal())) != 0) ? size : -1;
+            size += ((mask & (1 << field.ordinal())) != 0) ? 4 : 0;
+        }
+        _TupleSize = size;
+        _StringCount = _Buffer.getInt(STRING_COUNT);
+        _TupleCount = _Buffer.getInt(TUPLE_COUNT);
+        _IdWidth = _Buffer.getInt(ID_WIDTH);
+        _IdMask = (_IdWidth == 4) ? -1 : (1 << (_IdWidth << 3)) - 1;
+        _Strings = _Buffer.getInt(SECTIONS + (STRINGS << 2));
+        _Bytes = _Buffer.getInt(SECTIONS + (BYTES << 2));
+        _Tuples = _Buffer.getInt(SECTIONS + (TUPLES << 2));
+        _IPv4 = new Family(_Buffer, FAMILY);
+        _IPv6 = new Family(_Buffer, FAMILY + FAMILY_SECTIONS);
+    }
+
+    /**
+     * @param header the first bytes of a file
+     * @return true if the file is a compiled BIN
+     */
+    static boolean isCompact(byte[] header) {
+        return header.length >= 4 && ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt(0) == MAGIC;
+    }
+
+    /**
+     * @return the 64-byte header of the BIN the file was compiled from
+     */
+    byte[] header() {
+        final byte[] header = new byte[64];
+        for (int x = 0; x < header.length; x++) {
+            header[x] = _Buffer.get(BIN_HEADER + x);
+        }
+        return header;
+    }
+
+    /**
+     * @return the size of the compiled file in bytes
+     */
+    long size() {
+        return _Buffer.capacity();
+    }
+
+    /**
+     * Loads the file into physical memory when it is memory mapped, see MappedByteBuffer.load.
+     */
+    void load() {
+        if (_Mapped != null) {
+            _Mapped.load();
+        }
+    }
+
+    /**
+     * Looks up a parsed address and fills in the requested fields, the status is set to OK when a row is found.
+     *
+     * @param record the result, with its key already parsed
+     * @param fields the fields to fill in
+     */
+    void search(final IPResult record, final Set<IPField> fields) {
+        final boolean ipv6 = record.iptype == 6;
+        final int row = ipv6 ? searchIPv6(record.iphigh, record.iplow) : searchIPv4(record.iplow);
+        if (row >= 0) {
+            readRecord(record, ipv6, row, fields);
+            record.row = row;
+            record.status = "OK";
+        }
+    }
+
+    private int searchIPv4(long ipno) {
+        final Family family = _IPv4;
+        if (family.rows == 0) {
+            return -1;
+        }
+        if (ipno == MAX_IPV4_NO) {
+            ipno--;
+        }
+
+        // the last block in the bounds of the prefix that starts at or below the address
+        final int prefix = (int) (ipno >>> 16);
+        int low = _Buffer.getInt(family.index + (prefix << 2));
+        int high = _Buffer.getInt(family.index + ((prefix + 1) << 2));
+        int block = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if ((_Buffer.getInt(family.anchors + (mid << 2)) & 0xffffffffL) <= ipno) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (block < 0) {
+            return -1;
+        }
+
+        long from = _Buffer.getInt(family.anchors + (block << 2)) & 0xffffffffL;
+        int row = block << BLOCK_BITS;
+        int position = family.deltas + _Buffer.getInt(family.blocks + (block << 2));
+        final int end = Math.min(row + BLOCK_SIZE, family.rows);
+        while (row + 1 < end) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = _Buffer.get(position++);
+                delta |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (from + delta > ipno) {
+                return row;
+            }
+            from += delta;
+            row++;
+        }
+        // the next row starts the next block, which is above the address, and the last row only holds an upper bound
+        return (row + 1 < family.rows) ? row : -1;
+    }
+
+    private int searchIPv6(final long iphigh, long iplow) {
+        final Family family = _IPv6;
+        if (family.rows == 0) {
+            return -1;
+        }
+        if (iphigh == -1L && iplow == -1L) { // the last address is treated as the one before it
+            iplow--;
+        }
+
+        final int prefix = (int) (iphigh >>> 48);
+        int low = _Buffer.getInt(family.index + (prefix << 2));
+        int high = _Buffer.getInt(family.index + ((prefix + 1) << 2));
+        int block = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (compare(_Buffer.getLong(family.anchors + (mid << 4)), _Buffer.getLong(family.anchors + (mid << 4) + 8), iphigh, iplow) <= 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (block < 0) {
+            return -1;
+        }
+
+        long fromhigh = _Buffer.getLong(family.anchors + (block << 4));
+        long fromlow = _Buffer.getLong(family.anchors + (block << 4) + 8);
+        int row = block << BLOCK_BITS;
+        int position = family.deltas + _Buffer.getInt(family.blocks + (block << 2));
+        final int end = Math.min(row + BLOCK_SIZE, family.rows);
+        while (row + 1 < end) {
+            long deltahigh = 0;
+            long deltalow = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = _Buffer.get(position++);
+                final long bits = b & 0x7f;
+                if (shift < 64) {
+                    deltalow |= bits << shift;
+                    if (shift > 57) {
+                        deltahigh |= bits >>> (64 - shift);
+                    }
+                } else {
+                    deltahigh |= bits << (shift - 64);
+                }
+                shift += 7;
+            } while (b < 0);
+            final long nextlow = fromlow + deltalow;
+            final long nexthigh = fromhigh + deltahigh + ((Long.compareUnsigned(nextlow, fromlow) < 0) ? 1 : 0);
+            if (compare(nexthigh, nextlow, iphigh, iplow) > 0) {
+                return row;
+            }
+            fromhigh = nexthigh;
+            fromlow = nextlow;
+            row++;
+        }
+        return (row + 1 < family.rows) ? row : -1;
+    }
+
+    /**
+     * @param ipv6 true for the IPv6 rows
+     * @param row  a row
+     * @param high true for the upper 64 bits of an IPv6 range start, false for the lower ones or an IPv4 one
+     * @return half of the range start of the row
+     */
+    long from(final boolean ipv6, final int row, final boolean high) {
+        final Family family = ipv6 ? _IPv6 : _IPv4;
+        final int block = row >>> BLOCK_BITS;
+        long fromhigh = ipv6 ? _Buffer.getLong(family.anchors + (block << 4)) : 0;
+        long fromlow = ipv6 ? _Buffer.getLong(family.anchors + (block << 4) + 8) : _Buffer.getInt(family.anchors + (block << 2)) & 0xffffffffL;
+        int position = family.deltas + _Buffer.getInt(family.blocks + (block << 2));
+        for (int x = block << BLOCK_BITS; x < row; x++) {
+            long deltahigh = 0;
+            long deltalow = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = _Buffer.get(position++);
+                final long bits = b & 0x7f;
+                if (shift < 64) {
+                    deltalow |= bits << shift;
+                    if (shift > 57) {
+                        deltahigh |= bits >>> (64 - shift);
+                    }
+                } else {
+                    deltahigh |= bits << (shift - 64);
+                }
+                shift += 7;
+            } while (b < 0);
+            final long nextlow = fromlow + deltalow;
+            fromhigh += deltahigh + ((Long.compareUnsigned(nextlow, fromlow) < 0) ? 1 : 0);
+            fromlow = nextlow;
+        }
+        return high ? fromhigh : fromlow;
+    }
+
+    /**
+     * Fills in the requested fields from a row, marking the fields the BIN does not have as not supported, the
+     * same way InMemoryColumns.readRecord does.
+     *
+     * @param record the result to fill
+     * @param ipv6   true for the IPv6 rows
+     * @param row    the row
+     * @param fields the fields to fill in
+     */
+    void readRecord(final IPResult record, final boolean ipv6, final int row, final Set<IPField> fields) {
+        final int tuple = tuple(ipv6 ? _IPv6 : _IPv4, row);
+        for (IPField field : FIELDS) {
+            final int offset = _TupleOffsets[field.ordinal()];
+            if (offset >= 0) {
+                if (fields.contains(field)) {
+                    final int value = _Buffer.getInt(tuple + offset);
+                    if (InMemoryColumns.isFloat(field)) {
+                        record.setFloat(field, Float.intBitsToFloat(value));
+                    } else {
+                        record.setString(field, string(value));
+                    }
+                }
+            } else if (InMemoryColumns.isFloat(field)) {
+                record.setFloat(field, 0.0F);
+            } else {
+                record.setString(field, IPResult.NOT_SUPPORTED);
+            }
+        }
+    }
+
+    /**
+     * Passes a row to a sink, the string ids are indexes into the dictionary.
+     *
+     * @param sink the sink
+     * @param ipv6 true for the IPv6 rows
+     * @param row  the row
+     */
+    void write(final IPResultSink sink, final boolean ipv6, final int row) {
+        final int tuple = tuple(ipv6 ? _IPv6 : _IPv4, row);
+        for (IPField field : FIELDS) {
+            final int offset = _TupleOffsets[field.ordinal()];
+            if (offset < 0) {
+                continue;
+            }
+            final int value = _Buffer.getInt(tuple + offset);
+            switch (field) {
+                case LATITUDE:
+                    break;
+                case LONGITUDE:
+                    final int latitude = _TupleOffsets[IPField.LATITUDE.ordinal()];
+                    sink.coordinates((latitude >= 0) ? Float.intBitsToFloat(_Buffer.getInt(tuple + latitude)) : 0.0F, Float.intBitsToFloat(value));
+                    break;
+                case ELEVATION:
+                    sink.elevation(Float.intBitsToFloat(value));
+                    break;
+                case COUNTRY_SHORT:
+                    sink.country(countryCode(value));
+                    sink.string(field, value);
+                    break;
+                case ASN:
+                    sink.asn(asn(value));
+                    sink.string(field, value);
+                    break;
+                default:
+                    sink.string(field, value);
+            }
+        }
+    }
+
+    /**
+     * @param ipv6  true for the IPv6 rows
+     * @param row   the row
+     * @param field a string column the BIN has
+     * @return the string id of the column in the row, as passed to a sink
+     */
+    long stringId(final boolean ipv6, final int row, final IPField field) {
+        return _Buffer.getInt(tuple(ipv6 ? _IPv6 : _IPv4, row) + _TupleOffsets[field.ordinal()]);
+    }
+
+    /**
+     * @param field a string column the BIN has
+     * @return the distinct string ids of the column in ascending order, as passed to a sink
+     */
+    long[] stringIds(final IPField field) {
+        final boolean[] seen = new boolean[_StringCount];
+        int count = 0;
+        for (int tuple = 0; tuple < _TupleCount; tuple++) {
+            final int id = _Buffer.getInt(_Tuples + tuple * _TupleSize + _TupleOffsets[field.ordinal()]);
+            if (id >= 0 && !seen[id]) {
+                seen[id] = true;
+                count++;
+            }
+        }
+        final long[] result = new long[count];
+        count = 0;
+        for (int id = 0; id < seen.length; id++) {
+            if (seen[id]) {
+                result[count++] = id;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param id a string id
+     * @return the string, null if there is no such id
+     */
+    String string(final long id) {
+        if (id < 0 || id >= _StringCount) {
+            return null;
+        }
+        final StringCache cache = _StringCache;
+        if (cache != null) {
+            final String cached = cache.get(id);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final int start = _Bytes + _Buffer.getInt(_Strings + ((int) id << 2));
+        final byte[] bytes = new byte[_Bytes + _Buffer.getInt(_Strings + ((int) id << 2) + 4) - start];
+        for (int x = 0; x < bytes.length; x++) {
+            bytes[x] = _Buffer.get(start + x);
+        }
+        final String value = new String(bytes, StandardCharsets.UTF_8);
+        if (cache != null) {
+            cache.put(id, value);
+        }
+        return value;
+    }
+
+    private int tuple(final Family family, final int row) {
+        final int id = _Buffer.getInt(family.ids + row * _IdWidth) & _IdMask;
+        return _Tuples + id * _TupleSize;
+    }
+
+    private int countryCode(final int id) {
+        if (id < 0) {
+            return 0;
+        }
+        final int start = _Bytes + _Buffer.getInt(_Strings + (id << 2));
+        final int end = _Bytes + _Buffer.getInt(_Strings + (id << 2) + 4);
+        int code = 0;
+        for (int x = start; x < end && x < start + 4; x++) {
+            code = (code << 8) | (_Buffer.get(x) & 0xff);
+        }
+        return code;
+    }
+
+    private long asn(final int id) {
+        if (id < 0) {
+            return -1;
+        }
+        final int start = _Bytes + _Buffer.getInt(_Strings + (id << 2));
+        final int end = _Bytes + _Buffer.getInt(_Strings + (id << 2) + 4);
+        if (end == start || end - start > 18) {
+            return -1;
+        }
+        long result = 0;
+        for (int x = start; x < end; x++) {
+            final int c = _Buffer.get(x);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private static int compare(final long ahigh, final long alow, final long bhigh, final long blow) {
+        final int result = Long.compareUnsigned(ahigh, bhigh);
+        return (result != 0) ? result : Long.compareUnsigned(alow, blow);
+    }
+
+    /**
+     * A tuple while compiling, compared by its values.
+     */
+    private static final class Tuple {
+        final int[] values;
+        final int hash;
+
+        Tuple(int[] values) {
+            this.values = values;
+            hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Tuple && Arrays.equals(values, ((Tuple) other).values);
+        }
+    }
+
+    /**
+     * Writes decoded columns as a compiled file.
+     *
+     * @param header  the 64-byte header of the BIN
+     * @param columns the decoded rows of the BIN
+     * @param path    the file to write
+     * @throws IOException If an input or output exception occurred
+     */
+    static void write(final byte[] header, final InMemoryColumns columns, final String path) throws IOException {
+        final InMemoryColumns.Table ipv4 = columns.table(false);
+        final InMemoryColumns.Table ipv6 = columns.table(true);
+        int mask = 0;
+        for (IPField field : FIELDS) {
+            if (ipv4.ids[field.ordinal()] != null || ipv4.floats[field.ordinal()] != null) {
+                mask |= 1 << field.ordinal();
+            }
+        }
+
+        // strings are numbered again in the order tuples use them, so unused ones are left out
+        final List<String> strings = new ArrayList<>();
+        final Map<String, Integer> stringids = new HashMap<>();
+        final int[] renumbered = new int[columns.stringCount()];
+        Arrays.fill(renumbered, -2); // not seen yet, -1 stands for null
+        final List<int[]> tuples = new ArrayList<>();
+        final Map<Tuple, Integer> tupleids = new HashMap<>();
+        final int[] ipv4tuples = tuples(ipv4, mask, columns, renumbered, strings, stringids, tuples, tupleids);
+        final int[] ipv6tuples = (ipv6 == null) ? new int[0] : tuples(ipv6, mask, columns, renumbered, strings, stringids, tuples, tupleids);
+        final int idwidth = (tuples.size() <= (1 << 8)) ? 1 : (tuples.size() <= (1 << 16)) ? 2 : (tuples.size() <= (1 << 24)) ? 3 : 4;
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ByteBuffer stringoffsets = allocate((strings.size() + 1) << 2);
+        for (String value : strings) {
+            stringoffsets.putInt(bytes.size());
+            final byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            bytes.write(encoded, 0, encoded.length);
+        }
+        stringoffsets.putInt(bytes.size());
+
+        final int tuplesize = Integer.bitCount(mask) << 2;
+        final ByteBuffer tuplebuffer = allocate((long) tuples.size() * tuplesize);
+        for (int[] values : tuples) {
+            for (int value : values) {
+                tuplebuffer.putInt(value);
+            }
+        }
+
+        final List<ByteBuffer> sections = new ArrayList<>();
+        sections.add(stringoffsets);
+        sections.add(ByteBuffer.wrap(bytes.toByteArray()));
+        sections.add(tuplebuffer);
+        final ByteBuffer headerbuffer = allocate(HEADER_SIZE);
+        for (int family = 0; family < 2; family++) {
+            final boolean isipv6 = family == 1;
+            final InMemoryColumns.Table table = isipv6 ? ipv6 : ipv4;
+            final int[] rowtuples = isipv6 ? ipv6tuples : ipv4tuples;
+            headerbuffer.putInt(SECTIONS + ((FAMILY + family * FAMILY_SECTIONS + ROWS) << 2), rowtuples.length);
+            sections.add(null); // the row count takes the place of a section
+
+            final ByteBuffer ids = allocate((long) rowtuples.length * idwidth + 4); // so that the last id can be read as an int
+            for (int tuple : rowtuples) {
+                for (int x = 0; x < idwidth; x++) {
+                    ids.put((byte) (tuple >>> (x << 3)));
+                }
+            }
+            sections.add(ids);
+            addRanges(sections, table, rowtuples.length, isipv6);
+        }
+
+        // lay out the sections after the header
+        long position = HEADER_SIZE;
+        for (int x = 0; x < sections.size(); x++) {
+            final ByteBuffer section = sections.get(x);
+            if (section != null) {
+                headerbuffer.putInt(SECTIONS + (x << 2), (int) position);
+                position = (position + section.capacity() + 7) & ~7L;
+            }
+        }
+        if (position > Integer.MAX_VALUE) {
+            throw new IOException("The compiled IP2Location file would be larger than 2 GB.");
+        }
+        headerbuffer.putInt(0, MAGIC);
+        headerbuffer.putInt(4, VERSION);
+        for (int x = 0; x < 64; x++) {
+            headerbuffer.put(BIN_HEADER + x, header[x]);
+        }
+        headerbuffer.putInt(FIELD_MASK, mask);
+        headerbuffer.putInt(TUPLE_COUNT, tuples.size());
+        headerbuffer.putInt(STRING_COUNT, strings.size());
+        headerbuffer.putInt(ID_WIDTH, idwidth);
+
+        try (FileOutputStream out = new FileOutputStream(path)) {
+            final FileChannel channel = out.getChannel();
+            writeFully(channel, headerbuffer, 0);
+            for (ByteBuffer section : sections) {
+                if (section != null) {
+                    ((Buffer) section).clear(); // through Buffer so that it also runs on Java 8
+                    writeFully(channel, section, channel.position());
+                    writeFully(channel, ByteBuffer.allocate((int) (-channel.position() & 7)), channel.position());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the tuple id of every row of a table, adding the new tuples and strings
+     */
+    private static int[] tuples(final InMemoryColumns.Table table, final int mask, final InMemoryColumns columns, final int[] renumbered, final List<String> strings,
+                                final Map<String, Integer> stringids, final List<int[]> tuples, final Map<Tuple, Integer> tupleids) {
+        final int[] rowtuples = new int[table.rows];
+        for (int row = 0; row < table.rows; row++) {
+            final int[] values = new int[Integer.bitCount(mask)];
+            int x = 0;
+            for (IPField field : FIELDS) {
+                if ((mask & (1 << field.ordinal())) == 0) {
+                    continue;
+                }
+                if (table.floats[field.ordinal()] != null) {
+                    values[x++] = Float.floatToRawIntBits(table.floats[field.ordinal()][row]);
+                    continue;
+                }
+                final int id = table.ids[field.ordinal()][row];
+                if (renumbered[id] == -2) {
+                    final String value = columns.string(id);
+                    if (value == null) {
+                        renumbered[id] = -1;
+                    } else {
+                        Integer existing = stringids.get(value);
+                        if (existing == null) {
+                            existing = strings.size();
+                            strings.add(value);
+                            stringids.put(value, existing);
+                        }
+                        renumbered[id] = existing;
+                    }
+                }
+                values[x++] = renumbered[id];
+            }
+            final Tuple tuple = new Tuple(values);
+            Integer id = tupleids.get(tuple);
+            if (id == null) {
+                id = tuples.size();
+                tuples.add(values);
+                tupleids.put(tuple, id);
+            }
+            rowtuples[row] = id;
+        }
+        return rowtuples;
+    }
+
+    /**
+     * Adds the anchors, blocks, deltas and index sections of a table.
+     */
+    private static void addRanges(final List<ByteBuffer> sections, final InMemoryColumns.Table table, final int rows, final boolean ipv6) {
+        final int blockcount = (rows + BLOCK_SIZE - 1) >>> BLOCK_BITS;
+        final ByteBuffer anchors = allocate((long) blockcount << (ipv6 ? 4 : 2));
+        final ByteBuffer blocks = allocate((long) blockcount << 2);
+        final ByteArrayOutputStream deltas = new ByteArrayOutputStream();
+        for (int row = 0; row < rows; row++) {
+            final long high = ipv6 ? table.ipfromhigh[row] : 0;
+            final long low = ipv6 ? table.ipfromlow[row] : table.ipfrom[row] & 0xffffffffL;
+            if ((row & (BLOCK_SIZE - 1)) == 0) {
+                if (ipv6) {
+                    anchors.putLong(high);
+                    anchors.putLong(low);
+                } else {
+                    anchors.putInt((int) low);
+                }
+                blocks.putInt(deltas.size());
+                continue;
+            }
+            final long previoushigh = ipv6 ? table.ipfromhigh[row - 1] : 0;
+            final long previouslow = ipv6 ? table.ipfromlow[row - 1] : table.ipfrom[row - 1] & 0xffffffffL;
+            long deltalow = low - previouslow;
+            long deltahigh = high - previoushigh - ((Long.compareUnsigned(low, previouslow) < 0) ? 1 : 0);
+            // 7 bits at a time, lowest first, with the top bit set on every byte but the last
+            do {
+                final int bits = (int) (deltalow & 0x7f);
+                deltalow = (deltalow >>> 7) | (deltahigh << 57);
+                deltahigh >>>= 7;
+                deltas.write((deltalow != 0 || deltahigh != 0) ? bits | 0x80 : bits);
+            } while (deltalow != 0 || deltahigh != 0);
+        }
+
+        // the first block of each prefix is the last one starting at or below the first address of the prefix
+        final ByteBuffer index = allocate((rows == 0) ? 0 : 65537L << 2); // a lookup does not get to it without rows
+        int block = 0;
+        for (int prefix = 0; prefix < 65536 && rows > 0; prefix++) {
+            while (block + 1 < blockcount && compare(anchorHigh(anchors, block + 1, ipv6), anchorLow(anchors, block + 1, ipv6), ipv6 ? (long) prefix << 48 : 0, ipv6 ? 0 : (long) prefix << 16) <= 0) {
+                block++;
+            }
+            index.putInt(block);
+        }
+        if (rows > 0) {
+            index.putInt(blockcount - 1);
+        }
+
+        sections.add(anchors);
+        sections.add(blocks);
+        sections.add(ByteBuffer.wrap(deltas.toByteArray()));
+        sections.add(index);
+    }
+
+    private static long anchorHigh(final ByteBuffer anchors, final int block, final boolean ipv6) {
+        return ipv6 ? anchors.getLong(block << 4) : 0;
+    }
+
+    private static long anchorLow(final ByteBuffer anchors, final int block, final boolean ipv6) {
+        return ipv6 ? anchors.getLong((block << 4) + 8) : anchors.getInt(block << 2) & 0xffffffffL;
+    }
+
+    private static ByteBuffer allocate(final long size) {
+        return ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long at = position;
+        while (buffer.hasRemaining()) {
+            at += channel.write(buffer, at);
+        }
+        channel.position(at);
+    }
+}
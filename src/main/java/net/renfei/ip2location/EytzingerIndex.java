@@ -0,0 +1,160 @@
+package net.renfei.ip2location;
+
+/**
+ * The range starts of the BIN kept in memory in Eytzinger (breadth-first) order, with the row each one came from.
+ * <p>
+ * A binary search over the rows touches a new cache line at every level once the range narrows past the first
+ * few probes. In Eytzinger order the children of position k are 2k and 2k + 1, so the top levels of the tree share
+ * a handful of cache lines that stay hot, and the descent is a loop without a data dependent branch that the
+ * processor could mispredict. The 16 great-great-grandchildren of a position are next to each other, so every step
+ * also loads the first of them: Java has no prefetch instruction, but the load is independent of the comparisons,
+ * so the processor fetches that cache line while the next four levels are still being compared.
+ */
+// package-private access
+final class EytzingerIndex {
+    private static final long MAX_IPV4_NO = 4294967295L;
+
+    private final int _IPv4Count;
+    private final int[] _IPv4Keys; // IP From with the sign bit flipped, so that signed int comparison orders them unsigned
+    private final int[] _IPv4Rows;
+    private final int _IPv6Count;
+    private final long[] _IPv6High;
+    private final long[] _IPv6Low;
+    private final int[] _IPv6Rows;
+    private int _Sink; // keeps the look-ahead loads from being optimized away
+
+    /**
+     * @param ipv4from the IPv4 IP From of every row as unsigned ints, in row order
+     * @param ipv6high the upper 64 bits of the IPv6 IP From of every row, null for an IPv4-only BIN
+     * @param ipv6low  the lower 64 bits of the IPv6 IP From of every row, null for an IPv4-only BIN
+     */
+    EytzingerIndex(int[] ipv4from, long[] ipv6high, long[] ipv6low) {
+        _IPv4Count = ipv4from.length;
+        _IPv4Keys = new int[_IPv4Count + 1];
+        _IPv4Rows = new int[_IPv4Count + 1];
+        final int[] keys = new int[_IPv4Count];
+        for (int x = 0; x < _IPv4Count; x++) {
+            keys[x] = ipv4from[x] ^ Integer.MIN_VALUE;
+        }
+        layout(keys, 0, 1, _IPv4Keys, _IPv4Rows);
+
+        if (ipv6high != null) {
+            _IPv6Count = ipv6high.length;
+            _IPv6High = new long[_IPv6Count + 1];
+            _IPv6Low = new long[_IPv6Count + 1];
+            _IPv6Rows = new int[_IPv6Count + 1];
+            layout(ipv6high, ipv6low, 0, 1, _IPv6High, _IPv6Low, _IPv6Rows);
+        } else {
+            _IPv6Count = 0;
+            _IPv6High = null;
+            _IPv6Low = null;
+            _IPv6Rows = null;
+        }
+    }
+
+    /**
+     * @return the heap taken by the layout in bytes
+     */
+    long size() {
+        return ((long) _IPv4Keys.length << 3) + ((_IPv6Rows == null) ? 0 : (long) _IPv6Rows.length * 20);
+    }
+
+    /**
+     * @param ipno the IPv4 address as an unsigned 32-bit number
+     * @return the row holding the address, or -1 if there is none
+     */
+    int searchIPv4(long ipno) {
+        if (ipno == MAX_IPV4_NO) {
+            ipno--;
+        }
+        final int key = (int) ipno ^ Integer.MIN_VALUE;
+        final int[] keys = _IPv4Keys;
+        final int count = _IPv4Count;
+        int k = 1;
+        int ahead = 0;
+        while (k <= count) {
+            ahead += keys[lookAhead(k, count)];
+            k = (k << 1) + ((keys[k] <= key) ? 1 : 0);
+        }
+        sink(ahead);
+        // undo the right turns taken after the last left turn, k is then the first start above the address
+        k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+        return row((k == 0) ? count : _IPv4Rows[k], count);
+    }
+
+    /**
+     * @param iphigh the upper 64 bits of the IPv6 address
+     * @param iplow  the lower 64 bits of the IPv6 address
+     * @return the row holding the address, or -1 if there is none
+     */
+    int searchIPv6(final long iphigh, long iplow) {
+        if (iphigh == -1L && iplow == -1L) { // the last address is treated as the one before it
+            iplow--;
+        }
+        // unsigned order by flipping the sign bits
+        final long keyhigh = iphigh ^ Long.MIN_VALUE;
+        final long keylow = iplow ^ Long.MIN_VALUE;
+        final long[] high = _IPv6High;
+        final long[] low = _IPv6Low;
+        final int count = _IPv6Count;
+        int k = 1;
+        long ahead = 0;
+        while (k <= count) {
+            ahead += high[lookAhead(k, count)];
+            final long h = high[k];
+            k = (k << 1) + (((h < keyhigh) | (h == keyhigh & low[k] <= keylow)) ? 1 : 0);
+        }
+        sink((int) ahead);
+        k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+        return row((k == 0) ? count : _IPv6Rows[k], count);
+    }
+
+    /**
+     * @return the position four levels below k, or the last one when that is past the end
+     */
+    private static int lookAhead(int k, int count) {
+        return (int) Math.min((long) k << 4, count);
+    }
+
+    private void sink(int ahead) {
+        if (ahead == 0x5EED5EED) { // the value does not matter, but it must look used
+            _Sink = ahead;
+        }
+    }
+
+    /**
+     * @param above the row of the first range start above the address
+     * @param count the number of rows
+     * @return the row before it, unless that is the last row, which only holds the upper bound of the one before it
+     */
+    private static int row(int above, int count) {
+        final int row = above - 1;
+        return (row + 1 < count) ? row : -1;
+    }
+
+    /**
+     * Fills the tree positions below k from the sorted keys with an in-order walk.
+     *
+     * @return the next sorted position to place
+     */
+    private static int layout(int[] sorted, int next, int k, int[] keys, int[] rows) {
+        if (k < keys.length) {
+            next = layout(sorted, next, k << 1, keys, rows);
+            keys[k] = sorted[next];
+            rows[k] = next++;
+            next = layout(sorted, next, (k << 1) + 1, keys, rows);
+        }
+        return next;
+    }
+
+    private static int layout(long[] sortedhigh, long[] sortedlow, int next, int k, long[] high, long[] low, int[] rows) {
+        if (k < high.length) {
+            next = layout(sortedhigh, sortedlow, next, k << 1, high, low, rows);
+            high[k] = sortedhigh[next] ^ Long.MIN_VALUE;
+            low[k] = sortedlow[next] ^ Long.MIN_VALUE;
+            rows[k] = next++;
+            next = layout(sortedhigh, sortedlow, next, (k << 1) + 1, high, low, rows);
+        }
+        return next;
+    }
+}
@@ -0,0 +1,97 @@
+package net.renfei.ip2location;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Supplies file handles that all share one {@link FileChannel} and read with positional reads.
+ * <p>
+ * Every handle keeps its own position, so any number of threads can query at the same time without a seek
+ * on shared state, and without opening and closing the file for every lookup.
+ */
+// package-private access
+final class FileChannelSupplier implements IP2Location.FileLike.Supplier {
+    private final String _Path;
+    private volatile FileChannel _Channel = null;
+
+    FileChannelSupplier(String path) {
+        _Path = path;
+    }
+
+    public IP2Location.FileLike open() throws IOException {
+        channel(); // fail early if the file cannot be opened
+        return new Handle();
+    }
+
+    public boolean isValid() {
+        return _Path.length() > 0;
+    }
+
+    public synchronized void close() throws IOException {
+        if (_Channel != null) {
+            _Channel.close();
+            _Channel = null;
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel channel = _Channel;
+        if (channel == null || !channel.isOpen()) {
+            synchronized (this) {
+                channel = _Channel;
+                if (channel == null || !channel.isOpen()) {
+                    channel = FileChannel.open(Paths.get(_Path), StandardOpenOption.READ);
+                    _Channel = channel;
+                }
+            }
+        }
+        return channel;
+    }
+
+    private final class Handle implements IP2Location.FileLike {
+        private long _Position = 0;
+
+        public int read(byte[] buffer) throws IOException {
+            return read(buffer, 0, buffer.length);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            final ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+            boolean retried = false;
+            while (dst.hasRemaining()) {
+                final int count;
+                try {
+                    count = channel().read(dst, _Position + dst.position() - off);
+                } catch (ClosedByInterruptException e) {
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    // an interrupt on another thread closes the channel for everyone, so reopen it once
+                    if (retried) {
+                        throw e;
+                    }
+                    retried = true;
+                    continue;
+                }
+                if (count < 0) {
+                    break;
+                }
+            }
+            final int total = dst.position() - off;
+            _Position += total;
+            return (total == 0 && len > 0) ? -1 : total;
+        }
+
+        public void seek(long pos) {
+            _Position = pos;
+        }
+
+        public void close() {
+            // the channel is shared and stays open until the supplier is closed
+        }
+    }
+}
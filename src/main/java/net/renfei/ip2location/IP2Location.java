@@ -1,35 +1,25 @@
 package net.renfei.ip2location;
 
-import java.net.InetAddress;
-import java.net.Inet4Address;
-import java.net.Inet6Address;
-import java.net.UnknownHostException;
 import java.io.*;
 import java.text.NumberFormat;
 import java.util.*;
-import java.util.regex.*;
-import java.math.BigInteger;
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 
 public class IP2Location {
-    private static final Pattern pattern = Pattern.compile("^(?:(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)$"); // IPv4
-    private static final Pattern pattern2 = Pattern.compile("^([0-9A-F]{1,4}:){6}(0[0-9]+\\.|.*?\\.0[0-9]+).*$", Pattern.CASE_INSENSITIVE);
-    private static final Pattern pattern3 = Pattern.compile("^[0-9]+$");
-    private static final Pattern pattern4 = Pattern.compile("^(.*:)(([0-9]+\\.){3}[0-9]+)$");
-    private static final Pattern pattern5 = Pattern.compile("^.*((:[0-9A-F]{1,4}){2})$");
-    private static final Pattern pattern6 = Pattern.compile("^[0:]+((:[0-9A-F]{1,4}){1,2})$", Pattern.CASE_INSENSITIVE);
-    private static final BigInteger MAX_IPV4_RANGE = new BigInteger("4294967295");
-    private static final BigInteger MAX_IPV6_RANGE = new BigInteger("340282366920938463463374607431768211455");
-    private static final BigInteger FROM_6TO4 = new BigInteger("42545680458834377588178886921629466624");
-    private static final BigInteger TO_6TO4 = new BigInteger("42550872755692912415807417417958686719");
-    private static final BigInteger FROM_TEREDO = new BigInteger("42540488161975842760550356425300246528");
-    private static final BigInteger TO_TEREDO = new BigInteger("42540488241204005274814694018844196863");
-    private static final BigInteger LAST_32BITS = new BigInteger("4294967295");
+    private static final long MAX_IPV4_NO = 4294967295L;
+    private static final Set<IPField> ALL_FIELDS = EnumSet.allOf(IPField.class);
+    private static final Set<IPField> NO_FIELDS = EnumSet.noneOf(IPField.class);
+    private static final IPField[] FIELDS = IPField.values();
+    // the result that sink lookups parse and search with, never handed out
+    private static final ThreadLocal<IPResult> SINK_RECORD = ThreadLocal.withInitial(() -> new IPResult(null));
+    private static final int PARALLEL_BATCH_SIZE = 8192;
 
     private static final int[] COUNTRY_POSITION = {0, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2};
     private static final int[] REGION_POSITION = {0, 0, 0, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3};
@@ -58,23 +48,29 @@ public class IP2Location {
     private static final int[] ASDOMAIN_POSITION = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 26};
     private static final int[] ASUSAGETYPE_POSITION = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 27};
     private static final int[] ASCIDR_POSITION = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 28};
-    static final DecimalFormat GEO_COORDINATE_FORMAT;
-
-    static {
-        DecimalFormatSymbols symbols = new DecimalFormatSymbols();
-        symbols.setDecimalSeparator('.');
-        GEO_COORDINATE_FORMAT = new DecimalFormat("###.######", symbols);
-    }
+    // DecimalFormat is not thread-safe, so every thread rounds with its own instance
+    private static final ThreadLocal<CoordinateRounding> GEO_COORDINATE_ROUNDING = ThreadLocal.withInitial(CoordinateRounding::new);
 
     private MetaData _MetaData = null;
-    private MappedByteBuffer _IPv4Buffer = null;
-    private MappedByteBuffer _IPv6Buffer = null;
-    private MappedByteBuffer _MapDataBuffer = null;
+    private MappedRegion _IPv4Buffer = null;
+    private MappedRegion _IPv6Buffer = null;
+    private MappedRegion _MapDataBuffer = null;
     private final int[][] _IndexArrayIPv4 = new int[65536][2];
     private final int[][] _IndexArrayIPv6 = new int[65536][2];
     private long _MapDataOffset = 0;
+    // package-private access, so that tests can map a small BIN in many chunks
+    int _MapChunkBits = MappedRegion.CHUNK_BITS;
     private int _IPv4ColumnSize = 0;
     private int _IPv6ColumnSize = 0;
+    private StringCache _StringCache = null;
+    private RowLayout _RowLayout = null; // of the mapped BIN, kept by lazy results
+    private ResultCache _ResultCache = null;
+    private InMemoryColumns _Columns = null;
+    private CompactDatabase _Compact = null;
+    private IPFieldDictionary[] _Dictionaries = new IPFieldDictionary[FIELDS.length]; // by field ordinal, built by LoadBIN
+    private EytzingerIndex _Eytzinger = null;
+    private IPv4PrefixIndex _IPv4PrefixIndex = null;
+    private IPv6PrefixIndex _IPv6PrefixIndex = null;
 
     /**
      * To use memory mapped file for faster queries, set to true.
@@ -88,6 +84,48 @@ public class IP2Location {
      * Sets the path for the license key file.
      */
     public String IPLicensePath = "";
+    /**
+     * Sets the maximum number of decoded strings to cache by their offset in the BIN, 0 disables the cache.
+     * Takes effect when the BIN is loaded.
+     */
+    public int StringCacheSize = 0;
+    /**
+     * Sets the maximum number of matched ranges to cache with their results, 0 disables the cache. Any address
+     * inside a cached range is then answered without a search. Takes effect when the BIN is loaded.
+     */
+    public int ResultCacheSize = 0;
+    /**
+     * Sets the string columns to number the distinct values of, see GetDictionary. Each one takes a read of that column
+     * in every row, unless the BIN is decoded into columns or compiled. Takes effect when the BIN is loaded.
+     */
+    public Set<IPField> DictionaryFields = EnumSet.noneOf(IPField.class);
+    /**
+     * To decode the whole BIN into memory when it is loaded, set to true. Lookups then only read primitive arrays,
+     * at the cost of holding every row and distinct string on the heap. Takes effect when the BIN is loaded.
+     */
+    public boolean UseInMemoryColumns = false;
+    /**
+     * To search the range starts in memory in Eytzinger (breadth-first) order instead of binary searching the rows,
+     * set to true. Works with every other mode and takes effect when the BIN is loaded.
+     */
+    public boolean UseEytzingerLayout = false;
+    /**
+     * To narrow IPv4 lookups with a table over every /24 prefix instead of the /16 index stored in the BIN, set to true.
+     * The table takes 64 MB of heap and takes effect when the BIN is loaded.
+     */
+    public boolean UseIPv4PrefixIndex = false;
+    /**
+     * To narrow IPv6 lookups with hashed /32 and /48 prefixes instead of the /16 index stored in the BIN, set to true.
+     * Takes effect when the BIN is loaded.
+     */
+    public boolean UseIPv6PrefixIndex = false;
+    /**
+     * To return memory mapped results that only hold their row and decode each field when its getter is first called,
+     * set to true. Lookups whose results are barely read then skip decoding the other fields. A lazy result keeps the
+     * layout of the BIN it was found in, so it can be read from any thread, also after the instance has been closed,
+     * opened on another BIN or replaced in a ReloadableIP2Location. Only used with UseMemoryMappedFile.
+     */
+    public boolean UseLazyResults = false;
     private FileLike.Supplier binFile;
     private int COUNTRY_POSITION_OFFSET;
     private int REGION_POSITION_OFFSET;
@@ -154,6 +192,9 @@ public class IP2Location {
             FileLike open() throws IOException;
 
             boolean isValid();
+
+            default void close() throws IOException {
+            }
         }
 
         int read(byte[] buffer) throws IOException;
@@ -198,40 +239,78 @@ public class IP2Location {
     }
 
     /**
-     * This function can be used to pre-load the BIN file.
+     * This function returns the number of strings served from the string cache.
      *
-     * @param DBPath The full path to the IP2Location BIN database file
-     * @throws IOException If an input or output exception occurred
+     * @return Number of cache hits, 0 if the cache is disabled
      */
-    public void Open(String DBPath) throws IOException {
-        IPDatabasePath = DBPath;
-        binFile = new FileLike.Supplier() {
-            public FileLike open() throws IOException {
-                return new FileLike() {
-                    private final RandomAccessFile aFile = new RandomAccessFile(DBPath, "r");
+    public long GetStringCacheHits() {
+        final StringCache cache = _StringCache;
+        return (cache == null) ? 0 : cache.hits();
+    }
 
-                    public int read(byte[] buffer) throws IOException {
-                        return aFile.read(buffer);
-                    }
+    /**
+     * This function returns the number of strings that had to be decoded from the BIN because they were not cached.
+     *
+     * @return Number of cache misses, 0 if the cache is disabled
+     */
+    public long GetStringCacheMisses() {
+        final StringCache cache = _StringCache;
+        return (cache == null) ? 0 : cache.misses();
+    }
 
-                    public int read(byte[] b, int off, int len) throws IOException {
-                        return aFile.read(b, off, len);
-                    }
+    /**
+     * This function returns the number of single address queries answered from the result cache.
+     *
+     * @return Number of cache hits, 0 if the cache is disabled
+     */
+    public long GetResultCacheHits() {
+        final ResultCache cache = _ResultCache;
+        return (cache == null) ? 0 : cache.hits();
+    }
 
-                    public void seek(long pos) throws IOException {
-                        aFile.seek(pos);
-                    }
+    /**
+     * This function returns the number of single address queries that had to search the BIN because no cached range held the address.
+     *
+     * @return Number of cache misses, 0 if the cache is disabled
+     */
+    public long GetResultCacheMisses() {
+        final ResultCache cache = _ResultCache;
+        return (cache == null) ? 0 : cache.misses();
+    }
 
-                    public void close() throws IOException {
-                        aFile.close();
-                    }
-                };
-            }
+    /**
+     * This function returns the heap taken by the optional in-memory indexes, the Eytzinger layout and the prefix indexes.
+     *
+     * @return Size in bytes, 0 if none is loaded
+     */
+    public long GetIndexMemoryUsage() {
+        long size = 0;
+        final EytzingerIndex eytzinger = _Eytzinger;
+        if (eytzinger != null) {
+            size += eytzinger.size();
+        }
+        final IPv4PrefixIndex ipv4prefixindex = _IPv4PrefixIndex;
+        if (ipv4prefixindex != null) {
+            size += ipv4prefixindex.size();
+        }
+        final IPv6PrefixIndex ipv6prefixindex = _IPv6PrefixIndex;
+        if (ipv6prefixindex != null) {
+            size += ipv6prefixindex.size();
+        }
+        return size;
+    }
 
-            public boolean isValid() {
-                return DBPath.length() > 0;
-            }
-        };
+    /**
+     * This function can be used to pre-load the BIN file.
+     *
+     * @param DBPath The full path to the IP2Location BIN database file
+     * @throws IOException If an input or output exception occurred
+     */
+    public void Open(String DBPath) throws IOException {
+        IPDatabasePath = DBPath;
+        CloseFile();
+        // one shared channel with positional reads, so file-based queries neither open the file nor seek shared state
+        binFile = new FileChannelSupplier(DBPath);
 
         LoadBIN();
     }
@@ -248,35 +327,50 @@ public class IP2Location {
         Open(DBPath);
     }
 
+    /**
+     * This function can be used to pre-load a BIN database that is already in memory. It turns on
+     * UseMemoryMappedFile, so lookups read the array in place exactly as they read a memory mapped file.
+     *
+     * @param db The content of the IP2Location BIN database file, which must not be changed afterwards
+     * @throws IOException If an input or output exception occurred
+     */
     public void Open(byte[] db) throws IOException {
-        binFile = new FileLike.Supplier() {
-            public FileLike open() {
-                return new FileLike() {
-                    private final ByteArrayInputStream stream = new ByteArrayInputStream(db);
-
-                    public int read(byte[] buffer) throws IOException {
-                        return stream.read(buffer);
-                    }
-
-                    public int read(byte[] b, int off, int len) {
-                        return stream.read(b, off, len);
-                    }
+        Open(db, false);
+    }
 
-                    public void seek(long pos) {
-                        stream.reset();
-                        stream.skip(pos);
-                    }
+    /**
+     * This function can be used to pre-load a BIN database that is already in memory, see Open(byte[]).
+     *
+     * @param db              The content of the IP2Location BIN database file
+     * @param UseDirectBuffer Set to true to copy the BIN into a direct buffer outside of the Java heap, so that the
+     *                        array can be dropped and the garbage collector never has to copy or scan it
+     * @throws IOException If an input or output exception occurred
+     */
+    public void Open(byte[] db, boolean UseDirectBuffer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(db);
+        if (UseDirectBuffer) {
+            buffer = ByteBuffer.allocateDirect(db.length);
+            buffer.put(db);
+        }
+        Open(buffer);
+    }
 
-                    public void close() throws IOException {
-                        stream.close();
-                    }
-                };
-            }
+    /**
+     * This function can be used to pre-load a BIN database from a stream, such as a classpath resource. The stream
+     * may also hold the BIN compressed with gzip, or a zip archive with the BIN as one of its entries. The BIN is
+     * copied into a direct buffer outside of the Java heap, in small chunks, and read as in Open(byte[]).
+     *
+     * @param db The stream to read the BIN from, which is read to its end but not closed
+     * @throws IOException If an input or output exception occurred, or the stream does not hold a BIN
+     */
+    public void Open(InputStream db) throws IOException {
+        Open(BinStreamReader.read(db));
+    }
 
-            public boolean isValid() {
-                return db.length > 0;
-            }
-        };
+    private void Open(ByteBuffer db) throws IOException {
+        UseMemoryMappedFile = true;
+        CloseFile();
+        binFile = new ByteBufferSupplier(db);
         LoadBIN();
     }
 
@@ -285,42 +379,80 @@ public class IP2Location {
      */
     public void Close() {
         _MetaData = null;
+        _StringCache = null;
+        _ResultCache = null;
+        _Columns = null;
+        _Compact = null;
+        _Dictionaries = new IPFieldDictionary[FIELDS.length];
+        _Eytzinger = null;
+        _IPv4PrefixIndex = null;
+        _IPv6PrefixIndex = null;
         DestroyMappedBytes();
+        CloseFile();
+    }
+
+    private void CloseFile() {
+        if (binFile != null) {
+            try {
+                binFile.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
     }
 
     private void DestroyMappedBytes() {
         _IPv4Buffer = null;
         _IPv6Buffer = null;
         _MapDataBuffer = null;
+        _RowLayout = null;
+    }
+
+    /**
+     * Maps one region of the BIN.
+     */
+    private interface RegionMapper {
+        MappedRegion map(long offset, long size) throws IOException;
     }
 
     private synchronized void CreateMappedBytes() throws IOException {
+        final FileLike.Supplier file = binFile;
+        if (file instanceof ByteBufferSupplier) { // already in memory, so the regions are slices of it
+            final ByteBuffer buffer = ((ByteBufferSupplier) file).buffer();
+            CreateMappedBytes((offset, size) -> new MappedRegion(buffer, offset, size), buffer.capacity());
+            return;
+        }
         try (RandomAccessFile aFile = new RandomAccessFile(IPDatabasePath, "r")) {
             final FileChannel inChannel = aFile.getChannel();
-            CreateMappedBytes(inChannel);
+            CreateMappedBytes((offset, size) -> new MappedRegion(inChannel, offset, size, _MapChunkBits), inChannel.size());
         }
     }
 
-    private void CreateMappedBytes(FileChannel inChannel) throws IOException {
+    private void CreateMappedBytes(RegionMapper mapper, long filesize) throws IOException {
         if (_IPv4Buffer == null) {
             final long _IPv4Bytes = (long) _IPv4ColumnSize * (long) _MetaData.getDBCount();
             long _IPv4Offset = _MetaData.getBaseAddr() - 1;
-            _IPv4Buffer = inChannel.map(FileChannel.MapMode.READ_ONLY, _IPv4Offset, _IPv4Bytes);
-            _IPv4Buffer.order(ByteOrder.LITTLE_ENDIAN);
+            _IPv4Buffer = mapper.map(_IPv4Offset, _IPv4Bytes);
             _MapDataOffset = _IPv4Offset + _IPv4Bytes;
         }
 
         if (!_MetaData.getOldBIN() && _IPv6Buffer == null) {
             final long _IPv6Bytes = (long) _IPv6ColumnSize * (long) _MetaData.getDBCountIPv6();
             long _IPv6Offset = _MetaData.getBaseAddrIPv6() - 1;
-            _IPv6Buffer = inChannel.map(FileChannel.MapMode.READ_ONLY, _IPv6Offset, _IPv6Bytes);
-            _IPv6Buffer.order(ByteOrder.LITTLE_ENDIAN);
+            _IPv6Buffer = mapper.map(_IPv6Offset, _IPv6Bytes);
             _MapDataOffset = _IPv6Offset + _IPv6Bytes;
         }
 
         if (_MapDataBuffer == null) {
-            _MapDataBuffer = inChannel.map(FileChannel.MapMode.READ_ONLY, _MapDataOffset, inChannel.size() - _MapDataOffset);
-            _MapDataBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            _MapDataBuffer = mapper.map(_MapDataOffset, filesize - _MapDataOffset);
+        }
+
+        if (_RowLayout == null) {
+            final int[] offsets = new int[FIELDS.length];
+            for (IPField field : FIELDS) {
+                offsets[field.ordinal()] = ColumnOffset(field);
+            }
+            _RowLayout = new RowLayout(offsets, _MapDataOffset, _StringCache);
         }
     }
 
@@ -333,44 +465,16 @@ public class IP2Location {
                 aFile = binFile.open();
                 byte[] _HeaderData = new byte[64];
                 aFile.read(_HeaderData);
-                ByteBuffer _HeaderBuffer = ByteBuffer.wrap(_HeaderData);
-                _HeaderBuffer.order(ByteOrder.LITTLE_ENDIAN);
-
-                _MetaData = new MetaData();
-
-                _MetaData.setDBType(_HeaderBuffer.get(0));
-                _MetaData.setDBColumn(_HeaderBuffer.get(1));
-                _MetaData.setDBYear(_HeaderBuffer.get(2));
-                _MetaData.setDBMonth(_HeaderBuffer.get(3));
-                _MetaData.setDBDay(_HeaderBuffer.get(4));
-                _MetaData.setDBCount(_HeaderBuffer.getInt(5)); // 4 bytes
-                _MetaData.setBaseAddr(_HeaderBuffer.getInt(9)); // 4 bytes
-                _MetaData.setDBCountIPv6(_HeaderBuffer.getInt(13)); // 4 bytes
-                _MetaData.setBaseAddrIPv6(_HeaderBuffer.getInt(17)); // 4 bytes
-                _MetaData.setIndexBaseAddr(_HeaderBuffer.getInt(21)); //4 bytes
-                _MetaData.setIndexBaseAddrIPv6(_HeaderBuffer.getInt(25)); //4 bytes
-                _MetaData.setProductCode(_HeaderBuffer.get(29));
-                // below 2 fields just read for now, not being used yet
-                _MetaData.setProductType(_HeaderBuffer.get(30));
-                _MetaData.setFileSize(_HeaderBuffer.getInt(31)); //4 bytes
-
-                // check if is correct BIN (should be 1 for IP2Location BIN file), also checking for zipped file (PK being the first 2 chars)
-                if ((_MetaData.getProductCode() != 1 && _MetaData.getDBYear() >= 21) || (_MetaData.getDBType() == 80 && _MetaData.getDBColumn() == 75)) // only BINs from Jan 2021 onwards have this byte set
-                {
-                    throw new IOException("Incorrect IP2Location BIN file format. Please make sure that you are using the latest IP2Location BIN file.");
-                }
-
-                if (_MetaData.getIndexBaseAddr() > 0) {
-                    _MetaData.setIndexed(true);
-                }
-
-                if (_MetaData.getDBCountIPv6() == 0) { // old style IPv4-only BIN file
-                    _MetaData.setOldBIN(true);
+                // cached strings are keyed by offsets into this BIN, so start afresh on every load
+                _StringCache = (StringCacheSize > 0) ? new StringCache(StringCacheSize) : null;
+                _ResultCache = (ResultCacheSize > 0) ? new ResultCache(ResultCacheSize) : null;
+                if (CompactDatabase.isCompact(_HeaderData)) {
+                    _Compact = LoadCompact();
+                    _HeaderData = _Compact.header();
                 } else {
-                    if (_MetaData.getIndexBaseAddrIPv6() > 0) {
-                        _MetaData.setIndexedIPv6(true);
-                    }
+                    _Compact = null;
                 }
+                _MetaData = ReadHeader(_HeaderData);
 
                 final int dbcoll = _MetaData.getDBColumn();
                 _IPv4ColumnSize = dbcoll << 2; // 4 bytes each column
@@ -434,6 +538,16 @@ public class IP2Location {
                 ASUSAGETYPE_ENABLED = (ASUSAGETYPE_POSITION[dbtype] != 0);
                 ASCIDR_ENABLED = (ASCIDR_POSITION[dbtype] != 0);
 
+                if (_Compact != null) { // the compiled file has all that lookups need
+                    DestroyMappedBytes();
+                    _Columns = null;
+                    _Eytzinger = null;
+                    _IPv4PrefixIndex = null;
+                    _IPv6PrefixIndex = null;
+                    _Dictionaries = LoadDictionaries();
+                    return true;
+                }
+
                 if (_MetaData.getIndexed()) {
                     int readLen = _IndexArrayIPv4.length;
                     if (_MetaData.getIndexedIPv6()) {
@@ -465,11 +579,24 @@ public class IP2Location {
                     }
                 }
 
+                _RowLayout = null; // the column offsets and the string cache are new
                 if (UseMemoryMappedFile) {
                     CreateMappedBytes();
                 } else {
                     DestroyMappedBytes();
                 }
+
+                if (UseInMemoryColumns) {
+                    _Columns = LoadColumns(aFile);
+                    DestroyMappedBytes(); // lookups no longer read the mapped buffers
+                } else {
+                    _Columns = null;
+                }
+                final int[] ipv4from = (UseEytzingerLayout || UseIPv4PrefixIndex) ? LoadIPv4Starts(aFile) : null;
+                _Eytzinger = UseEytzingerLayout ? LoadEytzinger(aFile, ipv4from) : null;
+                _IPv4PrefixIndex = UseIPv4PrefixIndex ? new IPv4PrefixIndex(ipv4from) : null;
+                _IPv6PrefixIndex = (UseIPv6PrefixIndex && !_MetaData.getOldBIN()) ? LoadIPv6PrefixIndex(aFile) : null;
+                _Dictionaries = LoadDictionaries();
                 loadOK = true;
             }
         } finally {
@@ -481,744 +608,1997 @@ public class IP2Location {
     }
 
     /**
-     * @deprecated
+     * Reads the 64-byte header at the start of a BIN.
+     *
+     * @param header the first 64 bytes of the BIN
+     * @return the header fields
+     * @throws IOException If the bytes are not the header of an IP2Location BIN
      */
-    protected void finalize() throws Throwable {
-        super.finalize();
+    // package-private access
+    static MetaData ReadHeader(byte[] header) throws IOException {
+        ByteBuffer _HeaderBuffer = ByteBuffer.wrap(header);
+        _HeaderBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        final MetaData metaData = new MetaData();
+
+        metaData.setDBType(_HeaderBuffer.get(0));
+        metaData.setDBColumn(_HeaderBuffer.get(1));
+        metaData.setDBYear(_HeaderBuffer.get(2));
+        metaData.setDBMonth(_HeaderBuffer.get(3));
+        metaData.setDBDay(_HeaderBuffer.get(4));
+        metaData.setDBCount(_HeaderBuffer.getInt(5)); // 4 bytes
+        metaData.setBaseAddr(_HeaderBuffer.getInt(9)); // 4 bytes
+        metaData.setDBCountIPv6(_HeaderBuffer.getInt(13)); // 4 bytes
+        metaData.setBaseAddrIPv6(_HeaderBuffer.getInt(17)); // 4 bytes
+        metaData.setIndexBaseAddr(_HeaderBuffer.getInt(21)); //4 bytes
+        metaData.setIndexBaseAddrIPv6(_HeaderBuffer.getInt(25)); //4 bytes
+        metaData.setProductCode(_HeaderBuffer.get(29));
+        // below 2 fields just read for now, not being used yet
+        metaData.setProductType(_HeaderBuffer.get(30));
+        metaData.setFileSize(_HeaderBuffer.getInt(31)); //4 bytes
+
+        // check if is correct BIN (should be 1 for IP2Location BIN file), also checking for zipped file (PK being the first 2 chars)
+        if ((metaData.getProductCode() != 1 && metaData.getDBYear() >= 21) || (metaData.getDBType() == 80 && metaData.getDBColumn() == 75)) // only BINs from Jan 2021 onwards have this byte set
+        {
+            throw new IOException("Incorrect IP2Location BIN file format. Please make sure that you are using the latest IP2Location BIN file.");
+        }
+
+        if (metaData.getIndexBaseAddr() > 0) {
+            metaData.setIndexed(true);
+        }
+
+        if (metaData.getDBCountIPv6() == 0) { // old style IPv4-only BIN file
+            metaData.setOldBIN(true);
+        } else {
+            if (metaData.getIndexBaseAddrIPv6() > 0) {
+                metaData.setIndexedIPv6(true);
+            }
+        }
+        return metaData;
     }
 
     /**
-     * This function to query IP2Location data.
+     * Decodes every row of the BIN into in-memory columns.
      *
-     * @param IPAddress IP Address you wish to query
-     * @return IP2Location data
+     * @param aFile the open BIN, used for the rows and, when not memory mapped, for the strings
+     * @return the decoded columns
      * @throws IOException If an input or output exception occurred
      */
-    public IPResult IPQuery(String IPAddress) throws IOException {
-        if (IPAddress != null) {
-            IPAddress = IPAddress.trim();
-        }
-        IPResult record = new IPResult(IPAddress);
-        FileLike filehandle = null;
-        ByteBuffer mybuffer = null;
-        ByteBuffer mydatabuffer = null;
-        byte[] row;
-        byte[] fullrow = null;
-
-        try {
-            if (IPAddress == null || IPAddress.length() == 0) {
-                record.status = "EMPTY_IP_ADDRESS";
-                return record;
+    private InMemoryColumns LoadColumns(final FileLike aFile) throws IOException {
+        final Set<IPField> present = EnumSet.noneOf(IPField.class);
+        final int[] offsets = new int[IPField.values().length];
+        for (IPField field : IPField.values()) {
+            offsets[field.ordinal()] = ColumnOffset(field);
+            if (offsets[field.ordinal()] >= 0) {
+                present.add(field);
             }
+        }
 
-            BigInteger ipno;
-            int indexaddr;
-            int actualiptype;
-            int myiptype;
-            int mybaseaddr = 0;
-            int mycolumnsize;
-            int mybufcapacity = 0;
-            BigInteger MAX_IP_RANGE;
-            long rowoffset;
-            long rowoffset2;
-            BigInteger[] bi;
-            boolean overcapacity = false;
-            String[] retarr;
+        final MappedRegion mydatabuffer = _MapDataBuffer;
+        final InMemoryColumns.Builder builder = new InMemoryColumns.Builder(position -> readStr(position, mydatabuffer, aFile));
+        final InMemoryColumns.Table ipv4 = LoadColumns(aFile, builder, present, offsets, false);
+        final InMemoryColumns.Table ipv6 = _MetaData.getOldBIN() ? null : LoadColumns(aFile, builder, present, offsets, true);
+        return new InMemoryColumns(builder, ipv4, ipv6);
+    }
 
-            try {
-                bi = ip2No(IPAddress);
-                myiptype = bi[0].intValue();
-                ipno = bi[1];
-                actualiptype = bi[2].intValue();
-                if (actualiptype == 6) { // means didn't match IPv4 regex
-                    retarr = expandIPV6(IPAddress, myiptype);
-                    record.ip_address = retarr[0]; // return after expand IPv6 format
-                    myiptype = Integer.parseInt(retarr[1]); // special cases
-                }
-            } catch (UnknownHostException e) {
-                record.status = "INVALID_IP_ADDRESS";
-                return record;
+    /**
+     * Maps a compiled file, or takes it from the buffer it was opened from.
+     *
+     * @return the compiled file
+     * @throws IOException If the file cannot be mapped or is not a compiled file of this version
+     */
+    private CompactDatabase LoadCompact() throws IOException {
+        final FileLike.Supplier file = binFile;
+        if (file instanceof ByteBufferSupplier) {
+            return new CompactDatabase(((ByteBufferSupplier) file).buffer(), false, _StringCache);
+        }
+        try (RandomAccessFile aFile = new RandomAccessFile(IPDatabasePath, "r")) {
+            final FileChannel inChannel = aFile.getChannel();
+            if (inChannel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Incorrect compiled IP2Location file format. The file is larger than 2 GB.");
             }
+            return new CompactDatabase(inChannel.map(FileChannel.MapMode.READ_ONLY, 0, inChannel.size()), true, _StringCache);
+        }
+    }
 
-            long low = 0;
-            long high;
-            long mid;
-            long position;
-            BigInteger ipfrom;
-            BigInteger ipto;
-            int firstcol = 4; // IP From is 4 bytes
-
-            // Read BIN if haven't done so
-            if (_MetaData == null) {
-                if (!LoadBIN()) { // problems reading BIN
-                    record.status = "MISSING_FILE";
-                    return record;
+    private InMemoryColumns.Table LoadColumns(final FileLike aFile, final InMemoryColumns.Builder builder, final Set<IPField> present, final int[] offsets, final boolean ipv6) throws IOException {
+        final int rows = ipv6 ? _MetaData.getDBCountIPv6() : _MetaData.getDBCount();
+        final long baseaddr = ipv6 ? _MetaData.getBaseAddrIPv6() : _MetaData.getBaseAddr();
+        final int mycolumnsize = ipv6 ? _IPv6ColumnSize : _IPv4ColumnSize;
+        final int firstcol = ipv6 ? 16 : 4;
+        final InMemoryColumns.Table table = new InMemoryColumns.Table(rows, ipv6, present);
+        final int chunkrows = 4096;
+        final byte[] chunk = new byte[chunkrows * mycolumnsize];
+        final ByteBuffer rowbuffer = ByteBuffer.wrap(chunk);
+        rowbuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int start = 0; start < rows; start += chunkrows) {
+            final int count = Math.min(chunkrows, rows - start);
+            // strings are read through the same handle, so seek back to the rows for every chunk
+            aFile.seek(baseaddr - 1 + (long) start * mycolumnsize);
+            aFile.read(chunk, 0, count * mycolumnsize);
+
+            for (int x = 0; x < count; x++) {
+                final int row = start + x;
+                final int rowoffset = x * mycolumnsize;
+                if (ipv6) {
+                    table.ipfromlow[row] = rowbuffer.getLong(rowoffset);
+                    table.ipfromhigh[row] = rowbuffer.getLong(rowoffset + 8);
+                } else {
+                    table.ipfrom[row] = rowbuffer.getInt(rowoffset);
                 }
-            }
 
-            if (UseMemoryMappedFile) {
-                if ((_IPv4Buffer == null) || (!_MetaData.getOldBIN() && _IPv6Buffer == null) || (_MapDataBuffer == null)) {
-                    CreateMappedBytes();
+                for (IPField field : present) {
+                    final int from = rowoffset + firstcol + offsets[field.ordinal()];
+                    switch (field) {
+                        case LATITUDE:
+                        case LONGITUDE:
+                            table.floats[field.ordinal()][row] = readFloatRow(rowbuffer, from); // rounded by IPResult
+                            break;
+                        case ELEVATION:
+                            table.floats[field.ordinal()][row] = convertFloat(builder.value(builder.id(read32Row(rowbuffer, from))));
+                            break;
+                        case COUNTRY_LONG:
+                            table.ids[field.ordinal()][row] = builder.id(read32Row(rowbuffer, from) + 3);
+                            break;
+                        default:
+                            table.ids[field.ordinal()][row] = builder.id(read32Row(rowbuffer, from));
+                    }
                 }
-            } else {
-                DestroyMappedBytes();
-                filehandle = binFile.open();
             }
+        }
+        return table;
+    }
 
-            if (myiptype == 4) { // IPv4
-                MAX_IP_RANGE = MAX_IPV4_RANGE;
-                high = _MetaData.getDBCount();
+    /**
+     * Lays out the range starts of every row in Eytzinger order.
+     *
+     * @param aFile    the open BIN, read unless the rows are already decoded into columns
+     * @param ipv4from the IP From of every IPv4 row
+     * @return the layout
+     * @throws IOException If an input or output exception occurred
+     */
+    private EytzingerIndex LoadEytzinger(final FileLike aFile, final int[] ipv4from) throws IOException {
+        if (_Columns != null) {
+            final InMemoryColumns.Table ipv6 = _Columns.table(true);
+            return new EytzingerIndex(ipv4from, (ipv6 == null) ? null : ipv6.ipfromhigh, (ipv6 == null) ? null : ipv6.ipfromlow);
+        }
 
-                if (UseMemoryMappedFile) {
-                    mybuffer = _IPv4Buffer.duplicate(); // this enables this thread to maintain its own position in a multi-threaded environment
-                    mybuffer.order(ByteOrder.LITTLE_ENDIAN);
-                    mybufcapacity = mybuffer.capacity();
-                } else {
-                    mybaseaddr = _MetaData.getBaseAddr();
-                }
-                mycolumnsize = _IPv4ColumnSize;
+        if (_MetaData.getOldBIN()) {
+            return new EytzingerIndex(ipv4from, null, null);
+        }
+        final long[] ipv6high = new long[_MetaData.getDBCountIPv6()];
+        final long[] ipv6low = new long[_MetaData.getDBCountIPv6()];
+        LoadRangeStarts(aFile, true, null, ipv6high, ipv6low);
+        return new EytzingerIndex(ipv4from, ipv6high, ipv6low);
+    }
 
-                if (_MetaData.getIndexed()) {
-                    indexaddr = ipno.shiftRight(16).intValue();
-                    low = _IndexArrayIPv4[indexaddr][0];
-                    high = _IndexArrayIPv4[indexaddr][1];
-                }
-            } else { // IPv6
-                firstcol = 16; // IPv6 is 16 bytes
+    /**
+     * Builds the IPv6 prefix index from the IP From of every IPv6 row.
+     *
+     * @param aFile the open BIN, read unless the rows are already decoded into columns
+     * @return the index
+     * @throws IOException If an input or output exception occurred
+     */
+    private IPv6PrefixIndex LoadIPv6PrefixIndex(final FileLike aFile) throws IOException {
+        if (_Columns != null) {
+            final InMemoryColumns.Table ipv6 = _Columns.table(true);
+            return new IPv6PrefixIndex(ipv6.ipfromhigh, ipv6.ipfromlow);
+        }
+        final long[] ipv6high = new long[_MetaData.getDBCountIPv6()];
+        final long[] ipv6low = new long[_MetaData.getDBCountIPv6()];
+        LoadRangeStarts(aFile, true, null, ipv6high, ipv6low);
+        return new IPv6PrefixIndex(ipv6high, ipv6low);
+    }
 
-                if (_MetaData.getOldBIN()) {
-                    record.status = "IPV6_NOT_SUPPORTED";
-                    return record;
-                }
-                MAX_IP_RANGE = MAX_IPV6_RANGE;
-                high = _MetaData.getDBCountIPv6();
+    /**
+     * @param aFile the open BIN, read unless the rows are already decoded into columns
+     * @return the IP From of every IPv4 row as unsigned ints
+     * @throws IOException If an input or output exception occurred
+     */
+    private int[] LoadIPv4Starts(final FileLike aFile) throws IOException {
+        if (_Columns != null) {
+            return _Columns.table(false).ipfrom;
+        }
+        final int[] ipv4from = new int[_MetaData.getDBCount()];
+        LoadRangeStarts(aFile, false, ipv4from, null, null);
+        return ipv4from;
+    }
 
-                if (UseMemoryMappedFile) {
-                    mybuffer = _IPv6Buffer.duplicate(); // this enables this thread to maintain its own position in a multi-threaded environment
-                    mybuffer.order(ByteOrder.LITTLE_ENDIAN);
-                    mybufcapacity = mybuffer.capacity();
+    /**
+     * Reads the IP From of every row.
+     *
+     * @param aFile      the open BIN
+     * @param ipv6       true for the IPv6 rows
+     * @param ipfrom     receives the IPv4 IP From, null for IPv6
+     * @param ipfromhigh receives the upper 64 bits of the IPv6 IP From, null for IPv4
+     * @param ipfromlow  receives the lower 64 bits of the IPv6 IP From, null for IPv4
+     * @throws IOException If an input or output exception occurred
+     */
+    private void LoadRangeStarts(final FileLike aFile, final boolean ipv6, final int[] ipfrom, final long[] ipfromhigh, final long[] ipfromlow) throws IOException {
+        final int rows = ipv6 ? _MetaData.getDBCountIPv6() : _MetaData.getDBCount();
+        final long baseaddr = ipv6 ? _MetaData.getBaseAddrIPv6() : _MetaData.getBaseAddr();
+        final int mycolumnsize = ipv6 ? _IPv6ColumnSize : _IPv4ColumnSize;
+        final int chunkrows = 4096;
+        final byte[] chunk = new byte[chunkrows * mycolumnsize];
+        final ByteBuffer rowbuffer = ByteBuffer.wrap(chunk);
+        rowbuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        aFile.seek(baseaddr - 1);
+        for (int start = 0; start < rows; start += chunkrows) {
+            final int count = Math.min(chunkrows, rows - start);
+            aFile.read(chunk, 0, count * mycolumnsize);
+            for (int x = 0; x < count; x++) {
+                final int rowoffset = x * mycolumnsize;
+                if (ipv6) {
+                    ipfromlow[start + x] = rowbuffer.getLong(rowoffset);
+                    ipfromhigh[start + x] = rowbuffer.getLong(rowoffset + 8);
                 } else {
-                    mybaseaddr = _MetaData.getBaseAddrIPv6();
-                }
-                mycolumnsize = _IPv6ColumnSize;
-
-                if (_MetaData.getIndexedIPv6()) {
-                    indexaddr = ipno.shiftRight(112).intValue();
-                    low = _IndexArrayIPv6[indexaddr][0];
-                    high = _IndexArrayIPv6[indexaddr][1];
+                    ipfrom[start + x] = rowbuffer.getInt(rowoffset);
                 }
             }
+        }
+    }
 
-            if (ipno.compareTo(MAX_IP_RANGE) == 0) ipno = ipno.subtract(BigInteger.ONE);
+    /**
+     * @param field a result column
+     * @return the offset of the column after IP From in a row, or -1 if the BIN does not have it
+     */
+    private int ColumnOffset(IPField field) {
+        switch (field) {
+            case COUNTRY_SHORT:
+            case COUNTRY_LONG: return COUNTRY_ENABLED ? COUNTRY_POSITION_OFFSET : -1;
+            case REGION: return REGION_ENABLED ? REGION_POSITION_OFFSET : -1;
+            case CITY: return CITY_ENABLED ? CITY_POSITION_OFFSET : -1;
+            case ISP: return ISP_ENABLED ? ISP_POSITION_OFFSET : -1;
+            case LATITUDE: return LATITUDE_ENABLED ? LATITUDE_POSITION_OFFSET : -1;
+            case LONGITUDE: return LONGITUDE_ENABLED ? LONGITUDE_POSITION_OFFSET : -1;
+            case DOMAIN: return DOMAIN_ENABLED ? DOMAIN_POSITION_OFFSET : -1;
+            case ZIPCODE: return ZIPCODE_ENABLED ? ZIPCODE_POSITION_OFFSET : -1;
+            case TIMEZONE: return TIMEZONE_ENABLED ? TIMEZONE_POSITION_OFFSET : -1;
+            case NETSPEED: return NETSPEED_ENABLED ? NETSPEED_POSITION_OFFSET : -1;
+            case IDDCODE: return IDDCODE_ENABLED ? IDDCODE_POSITION_OFFSET : -1;
+            case AREACODE: return AREACODE_ENABLED ? AREACODE_POSITION_OFFSET : -1;
+            case WEATHERSTATIONCODE: return WEATHERSTATIONCODE_ENABLED ? WEATHERSTATIONCODE_POSITION_OFFSET : -1;
+            case WEATHERSTATIONNAME: return WEATHERSTATIONNAME_ENABLED ? WEATHERSTATIONNAME_POSITION_OFFSET : -1;
+            case MCC: return MCC_ENABLED ? MCC_POSITION_OFFSET : -1;
+            case MNC: return MNC_ENABLED ? MNC_POSITION_OFFSET : -1;
+            case MOBILEBRAND: return MOBILEBRAND_ENABLED ? MOBILEBRAND_POSITION_OFFSET : -1;
+            case ELEVATION: return ELEVATION_ENABLED ? ELEVATION_POSITION_OFFSET : -1;
+            case USAGETYPE: return USAGETYPE_ENABLED ? USAGETYPE_POSITION_OFFSET : -1;
+            case ADDRESSTYPE: return ADDRESSTYPE_ENABLED ? ADDRESSTYPE_POSITION_OFFSET : -1;
+            case CATEGORY: return CATEGORY_ENABLED ? CATEGORY_POSITION_OFFSET : -1;
+            case DISTRICT: return DISTRICT_ENABLED ? DISTRICT_POSITION_OFFSET : -1;
+            case ASN: return ASN_ENABLED ? ASN_POSITION_OFFSET : -1;
+            case AS: return AS_ENABLED ? AS_POSITION_OFFSET : -1;
+            case ASDOMAIN: return ASDOMAIN_ENABLED ? ASDOMAIN_POSITION_OFFSET : -1;
+            case ASUSAGETYPE: return ASUSAGETYPE_ENABLED ? ASUSAGETYPE_POSITION_OFFSET : -1;
+            case ASCIDR: return ASCIDR_ENABLED ? ASCIDR_POSITION_OFFSET : -1;
+            default: return -1;
+        }
+    }
 
-            while (low <= high) {
-                mid = (low + high) / 2;
-                rowoffset = mybaseaddr + (mid * mycolumnsize);
-                rowoffset2 = rowoffset + mycolumnsize;
+    /**
+     * @deprecated
+     */
+    protected void finalize() throws Throwable {
+        super.finalize();
+    }
 
-                if (UseMemoryMappedFile) {
-                    // only reading the IP From fields
-                    overcapacity = (rowoffset2 >= mybufcapacity);
-                    ipfrom = read32or128(rowoffset, myiptype, mybuffer, filehandle);
-                    ipto = (overcapacity) ? BigInteger.ZERO : read32or128(rowoffset2, myiptype, mybuffer, filehandle);
-                } else {
-                    // reading IP From + whole row + next IP From
-                    fullrow = readRow(rowoffset, mycolumnsize + firstcol, mybuffer, filehandle);
-                    ipfrom = read32or128Row(fullrow, 0, firstcol);
-                    ipto = (overcapacity) ? BigInteger.ZERO : read32or128Row(fullrow, mycolumnsize, firstcol);
-                }
+    /**
+     * This function to query IP2Location data.
+     *
+     * @param IPAddress IP Address you wish to query
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(String IPAddress) throws IOException {
+        return IPQuery(IPAddress, ALL_FIELDS);
+    }
 
-                if (ipno.compareTo(ipfrom) >= 0 && ipno.compareTo(ipto) < 0) {
+    /**
+     * This function to query IP2Location data, decoding only the requested fields.
+     * Fields that are not requested are left as null (or 0 for the numeric ones).
+     *
+     * @param IPAddress IP Address you wish to query
+     * @param fields    The fields to decode, for example EnumSet.of(IPField.COUNTRY_SHORT, IPField.ASN)
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(String IPAddress, Set<IPField> fields) throws IOException {
+        return query(newRecord(IPAddress), fields);
+    }
 
-                    int rowlen = mycolumnsize - firstcol;
+    /**
+     * This function to query IP2Location data for an address in network byte order, such as one taken from a packet
+     * header. IPv4-mapped, 6to4 and Teredo addresses are looked up as the IPv4 address they carry.
+     *
+     * @param IPAddress The 4 bytes of an IPv4 address or the 16 bytes of an IPv6 address
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(byte[] IPAddress) throws IOException {
+        return IPQuery(IPAddress, ALL_FIELDS);
+    }
 
-                    if (UseMemoryMappedFile) {
-                        row = readRow(rowoffset + firstcol, rowlen, mybuffer, filehandle);
-                        mydatabuffer = _MapDataBuffer.duplicate(); // this is to enable reading of a range of bytes in multi-threaded environment
-                        mydatabuffer.order(ByteOrder.LITTLE_ENDIAN);
-                    } else {
-                        row = new byte[rowlen];
-                        System.arraycopy(fullrow, firstcol, row, (int) 0, rowlen); // extract the actual row data
-                    }
+    /**
+     * This function to query IP2Location data for an address in network byte order, decoding only the requested fields.
+     *
+     * @param IPAddress The 4 bytes of an IPv4 address or the 16 bytes of an IPv6 address
+     * @param fields    The fields to decode
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(byte[] IPAddress, Set<IPField> fields) throws IOException {
+        final IPResult record = new IPResult(null);
+        if (IPAddress == null || IPAddress.length == 0) {
+            record.status = "EMPTY_IP_ADDRESS";
+            return record;
+        }
+        IPAddressParser.parse(IPAddress, record);
+        return query(record, fields);
+    }
 
-                    if (COUNTRY_ENABLED) {
-                        position = read32Row(row, COUNTRY_POSITION_OFFSET).longValue();
-                        record.country_short = readStr(position, mydatabuffer, filehandle);
-                        position += 3;
-                        record.country_long = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.country_short = IPResult.NOT_SUPPORTED;
-                        record.country_long = IPResult.NOT_SUPPORTED;
-                    }
-                    if (REGION_ENABLED) {
-                        position = read32Row(row, REGION_POSITION_OFFSET).longValue();
-                        record.region = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.region = IPResult.NOT_SUPPORTED;
-                    }
-                    if (CITY_ENABLED) {
-                        position = read32Row(row, CITY_POSITION_OFFSET).longValue();
-                        record.city = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.city = IPResult.NOT_SUPPORTED;
-                    }
-                    if (ISP_ENABLED) {
-                        position = read32Row(row, ISP_POSITION_OFFSET).longValue();
-                        record.isp = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.isp = IPResult.NOT_SUPPORTED;
-                    }
-                    if (LATITUDE_ENABLED) {
-                        record.latitude = Float.parseFloat(setDecimalPlaces(readFloatRow(row, LATITUDE_POSITION_OFFSET)));
-                    } else {
-                        record.latitude = 0.0F;
-                    }
-                    if (LONGITUDE_ENABLED) {
-                        record.longitude = Float.parseFloat(setDecimalPlaces(readFloatRow(row, LONGITUDE_POSITION_OFFSET)));
-                    } else {
-                        record.longitude = 0.0F;
-                    }
-                    if (DOMAIN_ENABLED) {
-                        position = read32Row(row, DOMAIN_POSITION_OFFSET).longValue();
-                        record.domain = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.domain = IPResult.NOT_SUPPORTED;
-                    }
-                    if (ZIPCODE_ENABLED) {
-                        position = read32Row(row, ZIPCODE_POSITION_OFFSET).longValue();
-                        record.zipcode = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.zipcode = IPResult.NOT_SUPPORTED;
-                    }
-                    if (TIMEZONE_ENABLED) {
-                        position = read32Row(row, TIMEZONE_POSITION_OFFSET).longValue();
-                        record.timezone = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.timezone = IPResult.NOT_SUPPORTED;
-                    }
-                    if (NETSPEED_ENABLED) {
-                        position = read32Row(row, NETSPEED_POSITION_OFFSET).longValue();
-                        record.netspeed = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.netspeed = IPResult.NOT_SUPPORTED;
-                    }
-                    if (IDDCODE_ENABLED) {
-                        position = read32Row(row, IDDCODE_POSITION_OFFSET).longValue();
-                        record.iddcode = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.iddcode = IPResult.NOT_SUPPORTED;
-                    }
-                    if (AREACODE_ENABLED) {
-                        position = read32Row(row, AREACODE_POSITION_OFFSET).longValue();
-                        record.areacode = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.areacode = IPResult.NOT_SUPPORTED;
-                    }
-                    if (WEATHERSTATIONCODE_ENABLED) {
-                        position = read32Row(row, WEATHERSTATIONCODE_POSITION_OFFSET).longValue();
-                        record.weatherstationcode = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.weatherstationcode = IPResult.NOT_SUPPORTED;
-                    }
-                    if (WEATHERSTATIONNAME_ENABLED) {
-                        position = read32Row(row, WEATHERSTATIONNAME_POSITION_OFFSET).longValue();
-                        record.weatherstationname = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.weatherstationname = IPResult.NOT_SUPPORTED;
-                    }
-                    if (MCC_ENABLED) {
-                        position = read32Row(row, MCC_POSITION_OFFSET).longValue();
-                        record.mcc = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.mcc = IPResult.NOT_SUPPORTED;
-                    }
-                    if (MNC_ENABLED) {
-                        position = read32Row(row, MNC_POSITION_OFFSET).longValue();
-                        record.mnc = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.mnc = IPResult.NOT_SUPPORTED;
-                    }
-                    if (MOBILEBRAND_ENABLED) {
-                        position = read32Row(row, MOBILEBRAND_POSITION_OFFSET).longValue();
-                        record.mobilebrand = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.mobilebrand = IPResult.NOT_SUPPORTED;
-                    }
-                    if (ELEVATION_ENABLED) {
-                        position = read32Row(row, ELEVATION_POSITION_OFFSET).longValue();
-                        record.elevation = convertFloat(readStr(position, mydatabuffer, filehandle)); // due to value being stored as a string but output as float
-                    } else {
-                        record.elevation = 0.0F;
-                    }
-                    if (USAGETYPE_ENABLED) {
-                        position = read32Row(row, USAGETYPE_POSITION_OFFSET).longValue();
-                        record.usagetype = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.usagetype = IPResult.NOT_SUPPORTED;
-                    }
-                    if (ADDRESSTYPE_ENABLED) {
-                        position = read32Row(row, ADDRESSTYPE_POSITION_OFFSET).longValue();
-                        record.addresstype = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.addresstype = IPResult.NOT_SUPPORTED;
-                    }
-                    if (CATEGORY_ENABLED) {
-                        position = read32Row(row, CATEGORY_POSITION_OFFSET).longValue();
-                        record.category = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.category = IPResult.NOT_SUPPORTED;
-                    }
-                    if (DISTRICT_ENABLED) {
-                        position = read32Row(row, DISTRICT_POSITION_OFFSET).longValue();
-                        record.district = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.district = IPResult.NOT_SUPPORTED;
-                    }
-                    if (ASN_ENABLED) {
-                        position = read32Row(row, ASN_POSITION_OFFSET).longValue();
-                        record.asn = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.asn = IPResult.NOT_SUPPORTED;
-                    }
-                    if (AS_ENABLED) {
-                        position = read32Row(row, AS_POSITION_OFFSET).longValue();
-                        record.as = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.as = IPResult.NOT_SUPPORTED;
-                    }
-                    if (ASDOMAIN_ENABLED) {
-                        position = read32Row(row, ASDOMAIN_POSITION_OFFSET).longValue();
-                        record.asdomain = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.asdomain = IPResult.NOT_SUPPORTED;
-                    }
-                    if (ASUSAGETYPE_ENABLED) {
-                        position = read32Row(row, ASUSAGETYPE_POSITION_OFFSET).longValue();
-                        record.asusagetype = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.asusagetype = IPResult.NOT_SUPPORTED;
-                    }
-                    if (ASCIDR_ENABLED) {
-                        position = read32Row(row, ASCIDR_POSITION_OFFSET).longValue();
-                        record.ascidr = readStr(position, mydatabuffer, filehandle);
-                    } else {
-                        record.ascidr = IPResult.NOT_SUPPORTED;
+    /**
+     * This function to query IP2Location data for an InetAddress, such as the remote address of a socket. The
+     * address is never resolved.
+     *
+     * @param IPAddress IP Address you wish to query
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(InetAddress IPAddress) throws IOException {
+        return IPQuery(IPAddress, ALL_FIELDS);
+    }
+
+    /**
+     * This function to query IP2Location data for an InetAddress, decoding only the requested fields.
+     *
+     * @param IPAddress IP Address you wish to query
+     * @param fields    The fields to decode
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(InetAddress IPAddress, Set<IPField> fields) throws IOException {
+        return IPQuery((IPAddress == null) ? null : IPAddress.getAddress(), fields);
+    }
+
+    /**
+     * This function to query IP2Location data for an IPv4 address held in an int.
+     *
+     * @param IPv4Address The address, with its first octet in the highest byte
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(int IPv4Address) throws IOException {
+        return IPQuery(IPv4Address, ALL_FIELDS);
+    }
+
+    /**
+     * This function to query IP2Location data for an IPv4 address held in an int, decoding only the requested fields.
+     *
+     * @param IPv4Address The address, with its first octet in the highest byte
+     * @param fields      The fields to decode
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(int IPv4Address, Set<IPField> fields) throws IOException {
+        final IPResult record = new IPResult(null);
+        IPAddressParser.parse(IPv4Address, record);
+        return query(record, fields);
+    }
+
+    /**
+     * This function to query IP2Location data for an IPv6 address held in two longs. IPv4-mapped, 6to4 and Teredo
+     * addresses are looked up as the IPv4 address they carry.
+     *
+     * @param IPv6High The upper 64 bits of the address
+     * @param IPv6Low  The lower 64 bits of the address
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(long IPv6High, long IPv6Low) throws IOException {
+        return IPQuery(IPv6High, IPv6Low, ALL_FIELDS);
+    }
+
+    /**
+     * This function to query IP2Location data for an IPv6 address held in two longs, decoding only the requested fields.
+     *
+     * @param IPv6High The upper 64 bits of the address
+     * @param IPv6Low  The lower 64 bits of the address
+     * @param fields   The fields to decode
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(long IPv6High, long IPv6Low, Set<IPField> fields) throws IOException {
+        final IPResult record = new IPResult(null);
+        IPAddressParser.parse(IPv6High, IPv6Low, record);
+        return query(record, fields);
+    }
+
+    /**
+     * This function to query IP2Location data into a sink instead of a new IPResult, see IPResultSink. The result
+     * cache is not used.
+     *
+     * @param IPAddress IP Address you wish to query
+     * @param sink      Receives the fields when the address is found
+     * @return The status, as IPResult.getStatus would return it
+     * @throws IOException If an input or output exception occurred
+     */
+    public String IPQuery(String IPAddress, IPResultSink sink) throws IOException {
+        final IPResult record = SINK_RECORD.get();
+        parseInto(record, IPAddress);
+        return query(record, sink);
+    }
+
+    /**
+     * This function to query IP2Location data for an address in network byte order into a sink.
+     *
+     * @param IPAddress The 4 bytes of an IPv4 address or the 16 bytes of an IPv6 address
+     * @param sink      Receives the fields when the address is found
+     * @return The status, as IPResult.getStatus would return it
+     * @throws IOException If an input or output exception occurred
+     */
+    public String IPQuery(byte[] IPAddress, IPResultSink sink) throws IOException {
+        if (IPAddress == null || IPAddress.length == 0) {
+            return "EMPTY_IP_ADDRESS";
+        }
+        final IPResult record = SINK_RECORD.get();
+        record.status = null;
+        IPAddressParser.parse(IPAddress, record);
+        return query(record, sink);
+    }
+
+    /**
+     * This function to query IP2Location data for an IPv4 address held in an int into a sink.
+     *
+     * @param IPv4Address The address, with its first octet in the highest byte
+     * @param sink        Receives the fields when the address is found
+     * @return The status, as IPResult.getStatus would return it
+     * @throws IOException If an input or output exception occurred
+     */
+    public String IPQuery(int IPv4Address, IPResultSink sink) throws IOException {
+        final IPResult record = SINK_RECORD.get();
+        record.status = null;
+        IPAddressParser.parse(IPv4Address, record);
+        return query(record, sink);
+    }
+
+    /**
+     * This function to query IP2Location data for an IPv6 address held in two longs into a sink.
+     *
+     * @param IPv6High The upper 64 bits of the address
+     * @param IPv6Low  The lower 64 bits of the address
+     * @param sink     Receives the fields when the address is found
+     * @return The status, as IPResult.getStatus would return it
+     * @throws IOException If an input or output exception occurred
+     */
+    public String IPQuery(long IPv6High, long IPv6Low, IPResultSink sink) throws IOException {
+        final IPResult record = SINK_RECORD.get();
+        record.status = null;
+        IPAddressParser.parse(IPv6High, IPv6Low, record);
+        return query(record, sink);
+    }
+
+    /**
+     * This function returns the dictionary of a string column, which numbers its distinct values from 0. It is
+     * meant for columns with few values, such as the country, region, usage type, address type, category, net
+     * speed or ASN. Only the columns in DictionaryFields have one, built when the BIN is loaded.
+     *
+     * @param Field A string column
+     * @return The dictionary, or null if the column is not in DictionaryFields, the BIN does not have it, it is a
+     * number, or the BIN cannot be read
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPFieldDictionary GetDictionary(IPField Field) throws IOException {
+        if (!PrepareBIN()) {
+            return null;
+        }
+        return _Dictionaries[Field.ordinal()];
+    }
+
+    /**
+     * This function looks up the value of one string column as the id of its dictionary, see GetDictionary. Only
+     * that column is read, and nothing is allocated.
+     *
+     * @param IPAddress IP Address you wish to query
+     * @param Field     A string column
+     * @return The id of the value in the dictionary of the column, or -1 if the address is not valid or not found,
+     * or the column has no dictionary
+     * @throws IOException If an input or output exception occurred
+     */
+    public int IPQueryId(String IPAddress, IPField Field) throws IOException {
+        final IPFieldDictionary dictionary = GetDictionary(Field);
+        if (dictionary == null) {
+            return -1;
+        }
+        final IPResult record = SINK_RECORD.get();
+        parseInto(record, IPAddress);
+        if (record.iptype == 0) {
+            return -1;
+        }
+        search(record, NO_FIELDS);
+        if (!"OK".equals(record.status)) {
+            return -1;
+        }
+        return dictionary.getId(StringIdAt(record.iptype == 6, record.row, Field));
+    }
+
+    /**
+     * @param ipv6  true for the IPv6 rows
+     * @param row   a matched row
+     * @param field a string column the BIN has
+     * @return the string id of the column in the row, as passed to a sink
+     * @throws IOException If an input or output exception occurred
+     */
+    private long StringIdAt(final boolean ipv6, final int row, final IPField field) throws IOException {
+        final CompactDatabase compact = _Compact;
+        if (compact != null) {
+            return compact.stringId(ipv6, row, field);
+        }
+        final InMemoryColumns columns = _Columns;
+        if (columns != null) {
+            return columns.table(ipv6).ids[field.ordinal()][row];
+        }
+
+        final int mycolumnsize = ipv6 ? _IPv6ColumnSize : _IPv4ColumnSize;
+        final int offset = (ipv6 ? 16 : 4) + ColumnOffset(field);
+        final long stringid;
+        if (UseMemoryMappedFile) {
+            stringid = (ipv6 ? _IPv6Buffer : _IPv4Buffer).getInt((long) row * mycolumnsize + offset) & 0xffffffffL;
+        } else {
+            final FileLike filehandle = binFile.open();
+            try {
+                final long position = (ipv6 ? _MetaData.getBaseAddrIPv6() : _MetaData.getBaseAddr()) + (long) row * mycolumnsize + offset;
+                final ByteBuffer rowbuffer = ByteBuffer.wrap(readRow(position, 4, filehandle));
+                rowbuffer.order(ByteOrder.LITTLE_ENDIAN);
+                stringid = read32Row(rowbuffer, 0);
+            } finally {
+                filehandle.close();
+            }
+        }
+        return (field == IPField.COUNTRY_LONG) ? stringid + 3 : stringid; // as writeRow passes it
+    }
+
+    /**
+     * Builds the dictionaries of DictionaryFields for the BIN that is being loaded.
+     *
+     * @return the dictionaries by field ordinal, null for the columns without one
+     * @throws IOException If an input or output exception occurred
+     */
+    private IPFieldDictionary[] LoadDictionaries() throws IOException {
+        final IPFieldDictionary[] dictionaries = new IPFieldDictionary[FIELDS.length];
+        for (IPField field : DictionaryFields) {
+            if (InMemoryColumns.isFloat(field) || ColumnOffset(field) < 0) {
+                continue;
+            }
+            // string ids are offsets into the BIN, or ids of the decoded columns or of the compiled file
+            final long[] stringids;
+            if (_Compact != null) {
+                stringids = _Compact.stringIds(field);
+            } else if (_Columns != null) {
+                stringids = _Columns.stringIds(field);
+            } else {
+                stringids = LoadStringIds(field);
+            }
+            final String[] values = new String[stringids.length];
+            for (int x = 0; x < stringids.length; x++) {
+                values[x] = ReadString(stringids[x]);
+            }
+            dictionaries[field.ordinal()] = new IPFieldDictionary(field, stringids, values);
+        }
+        return dictionaries;
+    }
+
+    /**
+     * Reads a string column of every row of the BIN.
+     *
+     * @param field a string column the BIN has
+     * @return the distinct offsets of its strings in ascending order
+     * @throws IOException If an input or output exception occurred
+     */
+    private long[] LoadStringIds(final IPField field) throws IOException {
+        long[] stringids = new long[1024];
+        int count = 0;
+        final FileLike aFile = binFile.open();
+        try {
+            for (int family = 0; family < (_MetaData.getOldBIN() ? 1 : 2); family++) {
+                final boolean ipv6 = family == 1;
+                final int rows = ipv6 ? _MetaData.getDBCountIPv6() : _MetaData.getDBCount();
+                final long baseaddr = ipv6 ? _MetaData.getBaseAddrIPv6() : _MetaData.getBaseAddr();
+                final int mycolumnsize = ipv6 ? _IPv6ColumnSize : _IPv4ColumnSize;
+                final int offset = (ipv6 ? 16 : 4) + ColumnOffset(field);
+                final int chunkrows = 4096;
+                final byte[] chunk = new byte[chunkrows * mycolumnsize];
+                final ByteBuffer rowbuffer = ByteBuffer.wrap(chunk);
+                rowbuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+                aFile.seek(baseaddr - 1);
+                for (int start = 0; start < rows; start += chunkrows) {
+                    final int count4 = Math.min(chunkrows, rows - start);
+                    aFile.read(chunk, 0, count4 * mycolumnsize);
+                    for (int x = 0; x < count4; x++) {
+                        final long stringid = read32Row(rowbuffer, x * mycolumnsize + offset);
+                        if (count > 0 && stringids[count - 1] == stringid) {
+                            continue; // neighbouring ranges often have the same value
+                        }
+                        if (count == stringids.length) {
+                            stringids = Arrays.copyOf(stringids, count << 1);
+                        }
+                        stringids[count++] = stringid;
                     }
+                }
+            }
+        } finally {
+            aFile.close();
+        }
+
+        Arrays.sort(stringids, 0, count);
+        int distinct = 0;
+        for (int x = 0; x < count; x++) {
+            if (distinct == 0 || stringids[distinct - 1] != stringids[x]) {
+                stringids[distinct++] = stringids[x];
+            }
+        }
+        final long[] result = Arrays.copyOf(stringids, distinct);
+        if (field == IPField.COUNTRY_LONG) { // as writeRow passes it
+            for (int x = 0; x < distinct; x++) {
+                result[x] += 3;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * This function compiles the BIN into a compact file, which Open loads ready to query without decoding or
+     * indexing anything. Each distinct string and each distinct combination of the columns of a row is stored
+     * once. On the synthetic DB26 of the tests, 5,000 IPv4 and 1,000 IPv6 rows that are all distinct, the compiled
+     * file is 1,307,704 bytes against 1,789,307 for the BIN, about 73%: nearly all of the difference is the /16
+     * tables, which take 4 bytes per prefix instead of the 8 of the BIN index, while the varint deltas of the range
+     * starts save little and the combinations nothing. Only a BIN whose rows repeat the same columns shrinks further.
+     * Lookups on it return the same results as with UseInMemoryColumns, and the other loading options do not apply
+     * to it.
+     *
+     * @param CompiledPath The full path of the compiled file to write
+     * @throws IOException If the BIN cannot be read, or the compiled file cannot be written
+     */
+    public void Compile(String CompiledPath) throws IOException {
+        if (!PrepareBIN()) {
+            throw new IOException("The IP2Location BIN file cannot be read.");
+        }
+        if (_Compact != null) {
+            throw new IOException("The IP2Location database is already compiled.");
+        }
+        final FileLike aFile = binFile.open();
+        try {
+            final byte[] header = new byte[64];
+            aFile.read(header);
+            final InMemoryColumns columns = _Columns;
+            CompactDatabase.write(header, (columns != null) ? columns : LoadColumns(aFile), CompiledPath);
+        } finally {
+            aFile.close();
+        }
+    }
+
+    /**
+     * This function returns the text of a string id passed to an IPResultSink.
+     *
+     * @param StringId The id
+     * @return The string, or null if the BIN cannot be read
+     * @throws IOException If an input or output exception occurred
+     */
+    public String GetString(long StringId) throws IOException {
+        if (!PrepareBIN()) {
+            return null;
+        }
+        return ReadString(StringId);
+    }
+
+    /**
+     * @param stringid a string id as passed to a sink
+     * @return the string, from wherever the BIN is loaded
+     * @throws IOException If an input or output exception occurred
+     */
+    private String ReadString(final long stringid) throws IOException {
+        final CompactDatabase compact = _Compact;
+        if (compact != null) {
+            return compact.string(stringid);
+        }
+        final InMemoryColumns columns = _Columns;
+        if (columns != null) {
+            return columns.string(stringid);
+        }
+        if (UseMemoryMappedFile) {
+            return readStr(stringid, _MapDataBuffer, null);
+        }
+        final FileLike filehandle = binFile.open();
+        try {
+            return readStr(stringid, null, filehandle);
+        } finally {
+            filehandle.close();
+        }
+    }
+
+    /**
+     * Looks up a parsed address for a sink.
+     *
+     * @param record the reused result, with the key set or with the status telling why the address cannot be looked up
+     * @param sink   the sink
+     * @return the status
+     * @throws IOException If an input or output exception occurred
+     */
+    private String query(final IPResult record, final IPResultSink sink) throws IOException {
+        if (record.iptype == 0) {
+            return record.status;
+        }
+        if (!PrepareBIN()) {
+            return "MISSING_FILE";
+        }
+
+        search(record, NO_FIELDS);
+        final String status = record.status;
+        if ("OK".equals(status)) {
+            writeRowAt(sink, record.iptype == 6, record.row);
+        }
+        return status;
+    }
+
+    /**
+     * Looks up a parsed address.
+     *
+     * @param record the result, with the key set or with the status telling why the address cannot be looked up
+     * @param fields the fields to decode
+     * @return the result
+     * @throws IOException If an input or output exception occurred
+     */
+    private IPResult query(final IPResult record, final Set<IPField> fields) throws IOException {
+        if (record.iptype == 0) { // empty or invalid address
+            return record;
+        }
+
+        // Read BIN if haven't done so
+        if (!PrepareBIN()) { // problems reading BIN
+            record.status = "MISSING_FILE";
+            return record;
+        }
+
+        final ResultCache cache = _ResultCache;
+        if (cache != null) {
+            final IPResult cached = cache.get(record, fields);
+            if (cached != null) {
+                record.copyFieldsFrom(cached);
+                return record;
+            }
+        }
+
+        search(record, fields);
+        if (cache != null && "OK".equals(record.status)) {
+            cacheRange(cache, record, fields);
+        }
+        return record;
+    }
+
+    /**
+     * Files a result in the result cache under the range of the row it was found in.
+     *
+     * @param cache  the result cache
+     * @param record the result, with its row set
+     * @param fields the fields it was decoded with
+     * @throws IOException If an input or output exception occurred
+     */
+    private void cacheRange(final ResultCache cache, final IPResult record, final Set<IPField> fields) throws IOException {
+        final boolean ipv6 = record.iptype == 6;
+        final int row = record.row; // never the last row, which only holds the upper bound of the one before it
+        final CompactDatabase compact = _Compact;
+        final InMemoryColumns columns = _Columns;
+
+        if (compact != null) {
+            cache.put(record, fields, compact.from(ipv6, row, true), compact.from(ipv6, row, false), compact.from(ipv6, row + 1, true), compact.from(ipv6, row + 1, false));
+        } else if (columns != null) {
+            final InMemoryColumns.Table table = columns.table(ipv6);
+            if (ipv6) {
+                cache.put(record, fields, table.ipfromhigh[row], table.ipfromlow[row], table.ipfromhigh[row + 1], table.ipfromlow[row + 1]);
+            } else {
+                cache.put(record, fields, 0, table.ipfrom[row] & 0xffffffffL, 0, table.ipfrom[row + 1] & 0xffffffffL);
+            }
+        } else if (UseMemoryMappedFile) {
+            if (ipv6) {
+                final long position = (long) row * _IPv6ColumnSize;
+                final ByteBuffer mybuffer = _IPv6Buffer.chunk(position); // the next row is in the overlap of the chunk
+                final int rowoffset = _IPv6Buffer.offset(position);
+                final int rowoffset2 = rowoffset + _IPv6ColumnSize;
+                cache.put(record, fields, mybuffer.getLong(rowoffset + 8), mybuffer.getLong(rowoffset), mybuffer.getLong(rowoffset2 + 8), mybuffer.getLong(rowoffset2));
+            } else {
+                cache.put(record, fields, 0, readIPv4From(_IPv4Buffer, row, _IPv4ColumnSize), 0, readIPv4From(_IPv4Buffer, row + 1, _IPv4ColumnSize));
+            }
+        } else {
+            final int firstcol = ipv6 ? 16 : 4;
+            final int mycolumnsize = ipv6 ? _IPv6ColumnSize : _IPv4ColumnSize;
+            final long rowoffset = (ipv6 ? _MetaData.getBaseAddrIPv6() : _MetaData.getBaseAddr()) + (long) row * mycolumnsize;
+            final FileLike filehandle = binFile.open();
+            try {
+                // IP From of the row and of the next one
+                final ByteBuffer rowbuffer = ByteBuffer.wrap(readRow(rowoffset, mycolumnsize + firstcol, filehandle));
+                rowbuffer.order(ByteOrder.LITTLE_ENDIAN);
+                if (ipv6) {
+                    cache.put(record, fields, rowbuffer.getLong(8), rowbuffer.getLong(0), rowbuffer.getLong(mycolumnsize + 8), rowbuffer.getLong(mycolumnsize));
+                } else {
+                    cache.put(record, fields, 0, rowbuffer.getInt(0) & 0xffffffffL, 0, rowbuffer.getInt(mycolumnsize) & 0xffffffffL);
+                }
+            } finally {
+                filehandle.close();
+            }
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for many addresses at once.
+     *
+     * @param IPAddresses IP Addresses you wish to query
+     * @return IP2Location data, in the same order as the addresses
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult[] IPQuery(String[] IPAddresses) throws IOException {
+        return IPQuery(IPAddresses, ALL_FIELDS);
+    }
+
+    /**
+     * This function to query IP2Location data for many addresses at once, decoding only the requested fields.
+     * <p>
+     * In memory mapped mode the addresses are sorted and the IPv4 and IPv6 tables are each walked once from the
+     * lowest to the highest address, so neighbouring addresses share the search and a row is decoded only once
+     * however many addresses fall into it.
+     *
+     * @param IPAddresses IP Addresses you wish to query
+     * @param fields      The fields to decode
+     * @return IP2Location data, in the same order as the addresses
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult[] IPQuery(String[] IPAddresses, Set<IPField> fields) throws IOException {
+        final IPResult[] records = new IPResult[IPAddresses.length];
+        queryBatch(IPAddresses, records, 0, IPAddresses.length, fields);
+        return records;
+    }
+
+    /**
+     * This function to query IP2Location data for many addresses in parallel on the common ForkJoinPool.
+     *
+     * @param IPAddresses IP Addresses you wish to query
+     * @return IP2Location data, in the same order as the addresses
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult[] IPQueryParallel(String[] IPAddresses) throws IOException {
+        return IPQueryParallel(IPAddresses, ALL_FIELDS, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * This function to query IP2Location data for many addresses in parallel.
+     * <p>
+     * The addresses are split into slices that the pool works on independently, each slice being looked up like
+     * the batch IPQuery with its own sort and sweep, and writing its results straight into the shared output array.
+     *
+     * @param IPAddresses IP Addresses you wish to query
+     * @param fields      The fields to decode
+     * @param pool        The pool to run the lookups on
+     * @return IP2Location data, in the same order as the addresses
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult[] IPQueryParallel(String[] IPAddresses, Set<IPField> fields, ForkJoinPool pool) throws IOException {
+        // load before forking, workers must only read the shared state
+        if (!PrepareBIN()) {
+            return IPQuery(IPAddresses, fields); // fills in the error status of every address
+        }
+
+        final IPResult[] records = new IPResult[IPAddresses.length];
+        try {
+            pool.invoke(new BatchTask(IPAddresses, records, 0, IPAddresses.length, fields));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return records;
+    }
+
+    private final class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] _IPAddresses;
+        private final IPResult[] _Records;
+        private final int _From;
+        private final int _To;
+        private final Set<IPField> _Fields;
+
+        BatchTask(String[] IPAddresses, IPResult[] records, int from, int to, Set<IPField> fields) {
+            _IPAddresses = IPAddresses;
+            _Records = records;
+            _From = from;
+            _To = to;
+            _Fields = fields;
+        }
+
+        protected void compute() {
+            if (_To - _From <= PARALLEL_BATCH_SIZE) {
+                try {
+                    queryBatch(_IPAddresses, _Records, _From, _To, _Fields);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                final int mid = (_From + _To) >>> 1;
+                invokeAll(new BatchTask(_IPAddresses, _Records, _From, mid, _Fields), new BatchTask(_IPAddresses, _Records, mid, _To, _Fields));
+            }
+        }
+    }
+
+    /**
+     * Looks up a slice of a batch, see IPQuery(String[], Set).
+     *
+     * @param IPAddresses IP Addresses to query
+     * @param records     the output array, only positions from to to are written
+     * @param from        the first position, inclusive
+     * @param to          the last position, exclusive
+     * @param fields      the columns to decode
+     * @throws IOException If an input or output exception occurred
+     */
+    private void queryBatch(String[] IPAddresses, IPResult[] records, int from, int to, Set<IPField> fields) throws IOException {
+        int count4 = 0;
+        int count6 = 0;
+        for (int x = from; x < to; x++) {
+            records[x] = newRecord(IPAddresses[x]);
+            if (records[x].iptype == 4) {
+                count4++;
+            } else if (records[x].iptype == 6) {
+                count6++;
+            }
+        }
+        if (count4 + count6 == 0) {
+            return;
+        }
+
+        if (!PrepareBIN()) {
+            for (int x = from; x < to; x++) {
+                if (records[x].iptype != 0) {
+                    records[x].status = "MISSING_FILE";
+                }
+            }
+            return;
+        }
+
+        if (_Compact != null || _Columns != null || UseEytzingerLayout || !UseMemoryMappedFile) {
+            for (int x = from; x < to; x++) {
+                if (records[x].iptype != 0) {
+                    search(records[x], fields);
+                }
+            }
+            return;
+        }
+
+        // IPv4 keys are 32 bits, so the position in the input fits below them in one sortable long
+        final long[] sorted4 = new long[count4];
+        final int[] sorted6 = new int[count6];
+        count4 = 0;
+        count6 = 0;
+        for (int x = from; x < to; x++) {
+            if (records[x].iptype == 4) {
+                sorted4[count4++] = (records[x].iplow << 31) | x;
+            } else if (records[x].iptype == 6) {
+                sorted6[count6++] = x;
+            }
+        }
+        Arrays.sort(sorted4);
+        sweepIPv4(records, sorted4, fields);
+
+        if (count6 > 0) {
+            if (_MetaData.getOldBIN()) {
+                for (int x : sorted6) {
+                    records[x].status = "IPV6_NOT_SUPPORTED";
+                }
+            } else {
+                sortIPv6(records, sorted6);
+                sweepIPv6(records, sorted6, fields);
+            }
+        }
+    }
+
+    /**
+     * Creates the result for an address and parses the address into its numeric lookup key.
+     *
+     * @param IPAddress IP Address to parse
+     * @return the result, with the key set or with the status telling why the address cannot be looked up
+     */
+    private IPResult newRecord(String IPAddress) {
+        final IPResult record = new IPResult(null);
+        parseInto(record, IPAddress);
+        return record;
+    }
+
+    /**
+     * Parses an address into a new or reused result.
+     *
+     * @param record    the result to set the address, the key and the status of
+     * @param IPAddress IP Address to parse
+     */
+    private static void parseInto(final IPResult record, String IPAddress) {
+        if (IPAddress != null) {
+            IPAddress = IPAddress.trim();
+        }
+        record.ip_address = IPAddress;
+        record.iptype = 0;
+        record.status = null;
+
+        if (IPAddress == null || IPAddress.length() == 0) {
+            record.status = "EMPTY_IP_ADDRESS";
+            return;
+        }
+
+        IPAddressParser.parse(IPAddress, record);
+    }
+
+    /**
+     * Loads the BIN if that has not been done yet and makes sure the buffers match the memory mapped setting.
+     *
+     * @return false if the BIN cannot be read
+     * @throws IOException If an input or output exception occurred
+     */
+    private boolean PrepareBIN() throws IOException {
+        if (_Compact != null) { // nothing else is loaded for a compiled file
+            return true;
+        }
+        if (_MetaData == null || (UseInMemoryColumns && _Columns == null) || (UseEytzingerLayout && _Eytzinger == null) || (UseIPv4PrefixIndex && _IPv4PrefixIndex == null)
+                || (UseIPv6PrefixIndex && _IPv6PrefixIndex == null && !_MetaData.getOldBIN())) {
+            if (!LoadBIN()) {
+                return false;
+            }
+        }
+
+        if (_Columns != null) { // lookups only read the decoded columns
+            return true;
+        }
+
+        if (UseMemoryMappedFile) {
+            if ((_IPv4Buffer == null) || (!_MetaData.getOldBIN() && _IPv6Buffer == null) || (_MapDataBuffer == null)) {
+                CreateMappedBytes();
+            }
+        } else if (_MapDataBuffer != null) { // only when switched away from memory mapped mode, to avoid writing shared fields per query
+            DestroyMappedBytes();
+        }
+        return true;
+    }
+
+    /**
+     * Loads the BIN if that has not been done yet and reads all of it once, so that the first queries after it is
+     * put into use are not served from a cold page cache.
+     *
+     * @return false if the BIN cannot be read
+     * @throws IOException If an input or output exception occurred
+     */
+    // package-private access
+    boolean WarmUp() throws IOException {
+        if (!PrepareBIN()) {
+            return false;
+        }
+
+        final CompactDatabase compact = _Compact;
+        if (compact != null) {
+            compact.load();
+        } else if (_Columns != null) { // lookups never touch the file
+            return true;
+        } else if (UseMemoryMappedFile) {
+            _IPv4Buffer.load();
+            if (_IPv6Buffer != null) {
+                _IPv6Buffer.load();
+            }
+            _MapDataBuffer.load();
+        } else {
+            final FileLike aFile = binFile.open();
+            try {
+                final byte[] chunk = new byte[1 << 20];
+                while (aFile.read(chunk) > 0) {
+                    // only the page cache is wanted
+                }
+            } finally {
+                aFile.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks up a parsed address with the search the BIN is loaded for.
+     *
+     * @param record the result to fill, with its key already parsed
+     * @param fields the columns to decode
+     * @throws IOException If an input or output exception occurred
+     */
+    private void search(final IPResult record, final Set<IPField> fields) throws IOException {
+        final InMemoryColumns columns = _Columns;
+
+        if (record.iptype == 6 && _MetaData.getOldBIN()) {
+            record.status = "IPV6_NOT_SUPPORTED";
+        } else if (_Compact != null) {
+            _Compact.search(record, fields);
+        } else if (UseEytzingerLayout) {
+            final int row = (record.iptype == 4) ? _Eytzinger.searchIPv4(record.iplow) : _Eytzinger.searchIPv6(record.iphigh, record.iplow);
+            if (row >= 0) {
+                readRecordAt(record, record.iptype == 6, row, fields);
+            }
+        } else if (columns != null) {
+            if (record.iptype == 4) {
+                columns.search(record, fields, IPv4Low(record.iplow), IPv4High(record.iplow));
+            } else {
+                final long bounds = IPv6Bounds(record.iphigh);
+                columns.search(record, fields, bounds >>> 32, (int) bounds);
+            }
+        } else if (!UseMemoryMappedFile) {
+            searchFile(record, fields);
+        } else if (record.iptype == 4) {
+            searchIPv4(record, record.iplow, fields);
+        } else {
+            searchIPv6(record, record.iphigh, record.iplow, fields);
+        }
+    }
+
+    /**
+     * @param ipno the IPv4 address as an unsigned 32-bit number
+     * @return the first row to search, from the /24 prefix index if it is loaded or else from the BIN index
+     */
+    private long IPv4Low(final long ipno) {
+        final IPv4PrefixIndex prefixindex = _IPv4PrefixIndex;
+        if (prefixindex != null) {
+            return prefixindex.low(ipno);
+        }
+        return _MetaData.getIndexed() ? _IndexArrayIPv4[(int) (ipno >>> 16)][0] : 0;
+    }
+
+    /**
+     * @param ipno the IPv4 address as an unsigned 32-bit number
+     * @return the last row to search
+     */
+    private long IPv4High(final long ipno) {
+        final IPv4PrefixIndex prefixindex = _IPv4PrefixIndex;
+        if (prefixindex != null) {
+            return prefixindex.high(ipno);
+        }
+        return _MetaData.getIndexed() ? _IndexArrayIPv4[(int) (ipno >>> 16)][1] : _MetaData.getDBCount();
+    }
+
+    /**
+     * @param iphigh the upper 64 bits of the IPv6 address
+     * @return the first row to search in the upper 32 bits and the last one in the lower 32 bits, from the prefix
+     * index if it is loaded and knows the address, or else from the BIN index
+     */
+    private long IPv6Bounds(final long iphigh) {
+        final IPv6PrefixIndex prefixindex = _IPv6PrefixIndex;
+        if (prefixindex != null) {
+            final long bounds = prefixindex.bounds(iphigh);
+            if (bounds != IPv6PrefixIndex.NONE) {
+                return bounds;
+            }
+        }
+        if (_MetaData.getIndexedIPv6()) {
+            final int[] bounds = _IndexArrayIPv6[(int) (iphigh >>> 48)];
+            return ((long) bounds[0] << 32) | (bounds[1] & 0xffffffffL);
+        }
+        return _MetaData.getDBCountIPv6() & 0xffffffffL;
+    }
+
+    /**
+     * Decodes a row found without the binary search, from wherever the BIN is loaded.
+     *
+     * @param record the result to fill
+     * @param ipv6   true for an IPv6 row
+     * @param row    the row
+     * @param fields the columns to decode
+     * @throws IOException If an input or output exception occurred
+     */
+    private void readRecordAt(final IPResult record, final boolean ipv6, final int row, final Set<IPField> fields) throws IOException {
+        final int firstcol = ipv6 ? 16 : 4; // IP From is 4 bytes for IPv4 and 16 bytes for IPv6
+        final int mycolumnsize = ipv6 ? _IPv6ColumnSize : _IPv4ColumnSize;
+        final InMemoryColumns columns = _Columns;
+
+        if (columns != null) {
+            columns.readRecord(record, columns.table(ipv6), row, fields);
+        } else if (UseMemoryMappedFile) {
+            final MappedRegion mybuffer = ipv6 ? _IPv6Buffer : _IPv4Buffer;
+            final long position = (long) row * mycolumnsize;
+            readRecord(record, mybuffer.chunk(position), mybuffer.offset(position) + firstcol, _MapDataBuffer, null, fields);
+        } else {
+            final long rowoffset = (ipv6 ? _MetaData.getBaseAddrIPv6() : _MetaData.getBaseAddr()) + (long) row * mycolumnsize;
+            final FileLike filehandle = binFile.open();
+            try {
+                final ByteBuffer rowbuffer = ByteBuffer.wrap(readRow(rowoffset, mycolumnsize, filehandle));
+                rowbuffer.order(ByteOrder.LITTLE_ENDIAN);
+                readRecord(record, rowbuffer, firstcol, null, filehandle, fields);
+            } finally {
+                filehandle.close();
+            }
+        }
+        record.row = row;
+        record.status = "OK";
+    }
+
+    /**
+     * Binary search reading the BIN through the file handle, for when it is not memory mapped.
+     *
+     * @param record the result to fill, with its key already parsed
+     * @param fields the columns to decode
+     * @throws IOException If an input or output exception occurred
+     */
+    private void searchFile(final IPResult record, final Set<IPField> fields) throws IOException {
+        final boolean ipv4 = record.iptype == 4;
+        final int firstcol = ipv4 ? 4 : 16; // IP From is 4 bytes for IPv4 and 16 bytes for IPv6
+        final int mybaseaddr;
+        final int mycolumnsize;
+        long low = 0;
+        long high;
+        long iphigh = record.iphigh;
+        long iplow = record.iplow;
+
+        if (ipv4) {
+            low = IPv4Low(iplow);
+            high = IPv4High(iplow);
+            mybaseaddr = _MetaData.getBaseAddr();
+            mycolumnsize = _IPv4ColumnSize;
+
+            if (iplow == MAX_IPV4_NO) {
+                iplow--;
+            }
+        } else {
+            final long bounds = IPv6Bounds(iphigh);
+            low = bounds >>> 32;
+            high = (int) bounds;
+            mybaseaddr = _MetaData.getBaseAddrIPv6();
+            mycolumnsize = _IPv6ColumnSize;
+
+            if (iphigh == -1L && iplow == -1L) {
+                iplow--;
+            }
+        }
+
+        final FileLike filehandle = binFile.open();
+        try {
+            while (low <= high) {
+                final long mid = (low + high) >>> 1;
+                final long rowoffset = mybaseaddr + (mid * mycolumnsize);
+
+                // reading IP From + whole row + next IP From
+                final ByteBuffer rowbuffer = ByteBuffer.wrap(readRow(rowoffset, mycolumnsize + firstcol, filehandle));
+                rowbuffer.order(ByteOrder.LITTLE_ENDIAN);
+                final int compfrom;
+                final int compto;
+                if (ipv4) {
+                    compfrom = Long.compare(iplow, rowbuffer.getInt(0) & 0xffffffffL);
+                    compto = Long.compare(iplow, rowbuffer.getInt(mycolumnsize) & 0xffffffffL);
+                } else {
+                    compfrom = compareIPv6(iphigh, iplow, rowbuffer.getLong(8), rowbuffer.getLong(0));
+                    compto = compareIPv6(iphigh, iplow, rowbuffer.getLong(mycolumnsize + 8), rowbuffer.getLong(mycolumnsize));
+                }
+
+                if (compfrom >= 0 && compto < 0) {
+                    // the row data follows the IP From column in the bytes already read
+                    readRecord(record, rowbuffer, firstcol, null, filehandle, fields);
+                    record.row = (int) mid;
                     record.status = "OK";
                     break;
+                } else if (compfrom < 0) {
+                    high = mid - 1;
                 } else {
-                    if (ipno.compareTo(ipfrom) < 0) {
-                        high = mid - 1;
-                    } else {
-                        low = mid + 1;
-                    }
+                    low = mid + 1;
                 }
             }
-            return record;
         } finally {
-            if (filehandle != null) {
-                filehandle.close();
-            }
+            filehandle.close();
         }
     }
 
-    private String[] expandIPV6(final String myIP, final int myiptype) {
-        final String tmp = "0000:0000:0000:0000:0000:";
-        final String padme = "0000";
-        final long hexoffset = 0xFF;
-        String myIP2 = myIP.toUpperCase();
-        String rettype = String.valueOf(myiptype);
+    /**
+     * Binary search over the mapped IPv4 rows using unsigned int arithmetic only, so that a lookup
+     * allocates nothing besides the result and its strings.
+     *
+     * @param record the result to fill
+     * @param ipno   the IPv4 address as an unsigned 32-bit number
+     * @param fields the columns to decode
+     */
+    private void searchIPv4(final IPResult record, long ipno, final Set<IPField> fields) throws IOException {
+        final MappedRegion mybuffer = _IPv4Buffer; // absolute reads only, so no duplicate is needed
+        final int mycolumnsize = _IPv4ColumnSize;
+        final long mybufcapacity = mybuffer.size();
+        long low = IPv4Low(ipno);
+        long high = IPv4High(ipno);
+
+        if (ipno == MAX_IPV4_NO) {
+            ipno--;
+        }
 
-        // expand ipv4-mapped ipv6
-        if (myiptype == 4) {
-            if (pattern4.matcher(myIP2).matches()) {
-                myIP2 = myIP2.replaceAll("::", tmp);
+        while (low <= high) {
+            final long mid = (low + high) >>> 1;
+            final long position = mid * mycolumnsize;
+            final ByteBuffer chunk = mybuffer.chunk(position); // the next row is in the overlap of the chunk
+            final int rowoffset = mybuffer.offset(position);
+            final int rowoffset2 = rowoffset + mycolumnsize;
+            final long ipfrom = chunk.getInt(rowoffset) & 0xffffffffL;
+            final long ipto = (position + mycolumnsize >= mybufcapacity) ? 0 : chunk.getInt(rowoffset2) & 0xffffffffL;
+
+            if (ipno >= ipfrom && ipno < ipto) {
+                readRecord(record, chunk, rowoffset + 4, _MapDataBuffer, null, fields);
+                record.row = (int) mid;
+                record.status = "OK";
+                return;
+            } else if (ipno < ipfrom) {
+                high = mid - 1;
             } else {
-                Matcher mat = pattern5.matcher(myIP2);
+                low = mid + 1;
+            }
+        }
+    }
 
-                if (mat.matches()) {
-                    String mymatch = mat.group(1);
+    /**
+     * Binary search over the mapped IPv6 rows with the 128-bit address held as two unsigned longs.
+     *
+     * @param record the result to fill
+     * @param iphigh the upper 64 bits of the IPv6 address
+     * @param iplow  the lower 64 bits of the IPv6 address
+     * @param fields the columns to decode
+     */
+    private void searchIPv6(final IPResult record, final long iphigh, long iplow, final Set<IPField> fields) throws IOException {
+        final MappedRegion mybuffer = _IPv6Buffer; // absolute reads only, so no duplicate is needed
+        final int mycolumnsize = _IPv6ColumnSize;
+        final long mybufcapacity = mybuffer.size();
+        final long bounds = IPv6Bounds(iphigh);
+        long low = bounds >>> 32;
+        long high = (int) bounds;
+
+        if (iphigh == -1L && iplow == -1L) { // the last address is treated as the one before it
+            iplow--;
+        }
 
-                    String[] myarr = mymatch.replaceAll("^:+", "").replaceAll(":+$", "").split(":");
+        while (low <= high) {
+            final long mid = (low + high) >>> 1;
+            final long position = mid * mycolumnsize;
+            final ByteBuffer chunk = mybuffer.chunk(position); // the next row is in the overlap of the chunk
+            final int rowoffset = mybuffer.offset(position);
+            final int rowoffset2 = rowoffset + mycolumnsize;
+            // IP From is stored as a 16-byte little endian number, so the low half comes first
+            final long fromlow = chunk.getLong(rowoffset);
+            final long fromhigh = chunk.getLong(rowoffset + 8);
+
+            if (compareIPv6(iphigh, iplow, fromhigh, fromlow) < 0) {
+                high = mid - 1;
+            } else if (position + mycolumnsize < mybufcapacity && compareIPv6(iphigh, iplow, chunk.getLong(rowoffset2 + 8), chunk.getLong(rowoffset2)) < 0) {
+                readRecord(record, chunk, rowoffset + 16, _MapDataBuffer, null, fields);
+                record.row = (int) mid;
+                record.status = "OK";
+                return;
+            } else {
+                low = mid + 1;
+            }
+        }
+    }
 
-                    int len = myarr.length;
-                    StringBuffer bf = new StringBuffer(32);
-                    for (int x = 0; x < len; x++) {
-                        String unpadded = myarr[x];
-                        bf.append(padme.substring(unpadded.length())).append(unpadded); // safe padding for JDK 1.4
-                    }
-                    long mylong = new BigInteger(bf.toString(), 16).longValue();
+    /**
+     * Walks the mapped IPv4 rows once for addresses sorted in ascending order. Each address continues from the row
+     * of the one before it, so only the rows between two addresses are probed, and a row is decoded once for all
+     * the addresses that fall into it.
+     *
+     * @param records the results, indexed by the position packed into the low 31 bits of each entry
+     * @param sorted  the IPv4 number shifted left by 31 bits with the position of its result, in ascending order
+     * @param fields  the columns to decode
+     * @throws IOException If an input or output exception occurred
+     */
+    private void sweepIPv4(final IPResult[] records, final long[] sorted, final Set<IPField> fields) throws IOException {
+        final MappedRegion mybuffer = _IPv4Buffer;
+        final int mycolumnsize = _IPv4ColumnSize;
+        final long rows = mybuffer.size() / mycolumnsize;
+        long row = -1; // no row found yet
+        IPResult previous = null;
+
+        for (long entry : sorted) {
+            final IPResult record = records[(int) (entry & 0x7FFFFFFF)];
+            long ipno = entry >>> 31;
+            if (ipno == MAX_IPV4_NO) {
+                ipno--;
+            }
 
-                    long[] b = {0, 0, 0, 0}; // using long in place of bytes due to 2's complement signed issue
+            // jump ahead with the index when the address is past the bucket of the current row
+            long start = row;
+            if (_IPv4PrefixIndex != null || _MetaData.getIndexed()) {
+                final long bucketrow = IPv4Low(ipno);
+                if (bucketrow > start && bucketrow < rows && readIPv4From(mybuffer, bucketrow, mycolumnsize) <= ipno) {
+                    start = bucketrow;
+                }
+            }
+            if (start < 0) {
+                if (readIPv4From(mybuffer, 0, mycolumnsize) > ipno) {
+                    continue; // before the first row
+                }
+                start = 0;
+            }
 
-                    for (int x = 0; x < 4; x++) {
-                        b[x] = mylong & hexoffset;
-                        mylong = mylong >> 8;
-                    }
+            // gallop forward from the current row, then binary search the last step
+            long lo = start;
+            long hi = start + 1;
+            long step = 1;
+            while (hi < rows && readIPv4From(mybuffer, hi, mycolumnsize) <= ipno) {
+                lo = hi;
+                step <<= 1;
+                hi = lo + step;
+            }
+            if (hi > rows) {
+                hi = rows;
+            }
+            while (hi - lo > 1) {
+                final long mid = (lo + hi) >>> 1;
+                if (readIPv4From(mybuffer, mid, mycolumnsize) <= ipno) {
+                    lo = mid;
+                } else {
+                    hi = mid;
+                }
+            }
 
-                    myIP2 = myIP2.replaceAll(mymatch + "$", ":" + b[3] + "." + b[2] + "." + b[1] + "." + b[0]);
-                    myIP2 = myIP2.replaceAll("::", tmp);
+            if (lo + 1 < rows) { // the last row only holds the upper bound of the one before it
+                record.row = (int) lo;
+                if (lo == row && previous != null) {
+                    record.copyFieldsFrom(previous);
+                } else {
+                    final long position = lo * mycolumnsize;
+                    readRecord(record, mybuffer.chunk(position), mybuffer.offset(position) + 4, _MapDataBuffer, null, fields);
+                    record.status = "OK";
+                    previous = record;
                 }
             }
-        } else if (myiptype == 6) {
-            if (myIP2.equals("::")) {
-                myIP2 = myIP2 + "0.0.0.0";
-                myIP2 = myIP2.replaceAll("::", tmp + "FFFF:");
-                rettype = "4";
-            } else {
-                // same regex as myiptype 4 but different scenario
-                Matcher mat = pattern4.matcher(myIP2);
-                if (mat.matches()) {
-                    String v6part = mat.group(1);
-                    String v4part = mat.group(2);
-
-                    String[] v4arr = v4part.split("\\.");
-                    int[] v4intarr = new int[4];
-
-                    int len = v4intarr.length;
-                    for (int x = 0; x < len; x++) {
-                        v4intarr[x] = Integer.parseInt(v4arr[x]);
-                    }
-                    int part1 = (v4intarr[0] << 8) + v4intarr[1];
-                    int part2 = (v4intarr[2] << 8) + v4intarr[3];
-                    String part1hex = Integer.toHexString(part1);
-                    String part2hex = Integer.toHexString(part2);
-
-                    StringBuffer bf = new StringBuffer(v6part.length() + 9);
-                    bf.append(v6part);
-                    bf.append(padme.substring(part1hex.length()));
-                    bf.append(part1hex);
-                    bf.append(":");
-                    bf.append(padme.substring(part2hex.length()));
-                    bf.append(part2hex);
-
-                    myIP2 = bf.toString().toUpperCase();
-
-                    String[] myarr = myIP2.split("::");
-
-                    String[] leftside = myarr[0].split(":");
-
-                    StringBuffer bf2 = new StringBuffer(40);
-                    StringBuffer bf3 = new StringBuffer(40);
-                    StringBuffer bf4 = new StringBuffer(40);
-
-                    len = leftside.length;
-                    int totalsegments = 0;
-                    for (int x = 0; x < len; x++) {
-                        if (leftside[x].length() > 0) {
-                            totalsegments++;
-                            bf2.append(padme.substring(leftside[x].length()));
-                            bf2.append(leftside[x]);
-                            bf2.append(":");
-                        }
-                    }
+            row = lo;
+        }
+    }
 
-                    if (myarr.length > 1) {
-                        String[] rightside = myarr[1].split(":");
-
-                        len = rightside.length;
-                        for (int x = 0; x < len; x++) {
-                            if (rightside[x].length() > 0) {
-                                totalsegments++;
-                                bf3.append(padme.substring(rightside[x].length()));
-                                bf3.append(rightside[x]);
-                                bf3.append(":");
-                            }
-                        }
-                    }
+    /**
+     * Walks the mapped IPv6 rows once for addresses sorted in ascending order, see sweepIPv4.
+     *
+     * @param records the results
+     * @param sorted  the positions of the IPv6 results, in ascending order of their address
+     * @param fields  the columns to decode
+     * @throws IOException If an input or output exception occurred
+     */
+    private void sweepIPv6(final IPResult[] records, final int[] sorted, final Set<IPField> fields) throws IOException {
+        final MappedRegion mybuffer = _IPv6Buffer;
+        final int mycolumnsize = _IPv6ColumnSize;
+        final long rows = mybuffer.size() / mycolumnsize;
+        long row = -1; // no row found yet
+        IPResult previous = null;
+
+        for (int x : sorted) {
+            final IPResult record = records[x];
+            final long iphigh = record.iphigh;
+            long iplow = record.iplow;
+            if (iphigh == -1L && iplow == -1L) {
+                iplow--;
+            }
 
-                    int totalsegmentsleft = 8 - totalsegments;
+            // jump ahead with the index when the address is past the bucket of the current row
+            long start = row;
+            if (_IPv6PrefixIndex != null || _MetaData.getIndexedIPv6()) {
+                final long bucketrow = IPv6Bounds(iphigh) >>> 32;
+                if (bucketrow > start && bucketrow < rows && compareIPv6From(iphigh, iplow, mybuffer, bucketrow, mycolumnsize) >= 0) {
+                    start = bucketrow;
+                }
+            }
+            if (start < 0) {
+                if (compareIPv6From(iphigh, iplow, mybuffer, 0, mycolumnsize) < 0) {
+                    continue; // before the first row
+                }
+                start = 0;
+            }
 
-                    if (totalsegmentsleft == 6) {
-                        for (int x = 1; x < totalsegmentsleft; x++) {
-                            bf4.append(padme);
-                            bf4.append(":");
-                        }
-                        bf4.append("FFFF:");
-                        bf4.append(v4part);
-                        rettype = "4";
-                        myIP2 = bf4.toString();
-                    } else {
-                        for (int x = 0; x < totalsegmentsleft; x++) {
-                            bf4.append(padme);
-                            bf4.append(":");
-                        }
-                        bf2.append(bf4).append(bf3);
-                        myIP2 = bf2.toString().replaceAll(":$", "");
-                    }
+            // gallop forward from the current row, then binary search the last step
+            long lo = start;
+            long hi = start + 1;
+            long step = 1;
+            while (hi < rows && compareIPv6From(iphigh, iplow, mybuffer, hi, mycolumnsize) >= 0) {
+                lo = hi;
+                step <<= 1;
+                hi = lo + step;
+            }
+            if (hi > rows) {
+                hi = rows;
+            }
+            while (hi - lo > 1) {
+                final long mid = (lo + hi) >>> 1;
+                if (compareIPv6From(iphigh, iplow, mybuffer, mid, mycolumnsize) >= 0) {
+                    lo = mid;
                 } else {
-                    // expand IPv4-compatible IPv6
-                    Matcher mat2 = pattern6.matcher(myIP2);
-
-                    if (mat2.matches()) {
-                        String mymatch = mat2.group(1);
-                        String[] myarr = mymatch.replaceAll("^:+", "").replaceAll(":+$", "").split(":");
-
-                        int len = myarr.length;
-                        StringBuffer bf = new StringBuffer(32);
-                        for (int x = 0; x < len; x++) {
-                            String unpadded = myarr[x];
-                            bf.append(padme.substring(unpadded.length())).append(unpadded); // safe padding for JDK 1.4
-                        }
+                    hi = mid;
+                }
+            }
 
-                        long mylong = new BigInteger(bf.toString(), 16).longValue();
+            if (lo + 1 < rows) { // the last row only holds the upper bound of the one before it
+                record.row = (int) lo;
+                if (lo == row && previous != null) {
+                    record.copyFieldsFrom(previous);
+                } else {
+                    final long position = lo * mycolumnsize;
+                    readRecord(record, mybuffer.chunk(position), mybuffer.offset(position) + 16, _MapDataBuffer, null, fields);
+                    record.status = "OK";
+                    previous = record;
+                }
+            }
+            row = lo;
+        }
+    }
 
-                        long[] b = {0, 0, 0, 0}; // using long in place of bytes due to 2's complement signed issue
+    private static long readIPv4From(final MappedRegion mybuffer, final long row, final int mycolumnsize) {
+        return mybuffer.getInt(row * mycolumnsize) & 0xffffffffL;
+    }
 
-                        for (int x = 0; x < 4; x++) {
-                            b[x] = mylong & hexoffset;
-                            mylong = mylong >> 8;
-                        }
+    private static int compareIPv6From(final long iphigh, final long iplow, final MappedRegion mybuffer, final long row, final int mycolumnsize) {
+        final long position = row * mycolumnsize;
+        return compareIPv6(iphigh, iplow, mybuffer.getLong(position + 8), mybuffer.getLong(position));
+    }
 
-                        myIP2 = myIP2.replaceAll(mymatch + "$", ":" + b[3] + "." + b[2] + "." + b[1] + "." + b[0]);
-                        myIP2 = myIP2.replaceAll("::", tmp + "FFFF:");
-                        rettype = "4";
+    /**
+     * Sorts the positions of IPv6 results by their address with a merge sort, which keeps equal addresses in input order.
+     *
+     * @param records the results
+     * @param sorted  the positions to sort
+     */
+    private static void sortIPv6(final IPResult[] records, final int[] sorted) {
+        int[] from = sorted;
+        int[] to = new int[sorted.length];
+        for (int width = 1; width < sorted.length; width <<= 1) {
+            for (int left = 0; left < sorted.length; left += width << 1) {
+                final int mid = Math.min(left + width, sorted.length);
+                final int right = Math.min(left + (width << 1), sorted.length);
+                int a = left;
+                int b = mid;
+                for (int x = left; x < right; x++) {
+                    if (a < mid && (b >= right || compareIPv6(records[from[a]].iphigh, records[from[a]].iplow, records[from[b]].iphigh, records[from[b]].iplow) <= 0)) {
+                        to[x] = from[a++];
                     } else {
-                        // should be normal IPv6 case
-                        String[] myarr = myIP2.split("::");
-
-                        String[] leftside = myarr[0].split(":");
-
-                        StringBuffer bf2 = new StringBuffer(40);
-                        StringBuffer bf3 = new StringBuffer(40);
-                        StringBuffer bf4 = new StringBuffer(40);
-
-                        int len = leftside.length;
-                        int totalsegments = 0;
-                        for (int x = 0; x < len; x++) {
-                            if (leftside[x].length() > 0) {
-                                totalsegments++;
-                                bf2.append(padme.substring(leftside[x].length()));
-                                bf2.append(leftside[x]);
-                                bf2.append(":");
-                            }
-                        }
-
-                        if (myarr.length > 1) {
-                            String[] rightside = myarr[1].split(":");
-
-                            len = rightside.length;
-                            for (int x = 0; x < len; x++) {
-                                if (rightside[x].length() > 0) {
-                                    totalsegments++;
-                                    bf3.append(padme.substring(rightside[x].length()));
-                                    bf3.append(rightside[x]);
-                                    bf3.append(":");
-                                }
-                            }
-                        }
-
-                        int totalsegmentsleft = 8 - totalsegments;
-
-                        for (int x = 0; x < totalsegmentsleft; x++) {
-                            bf4.append(padme);
-                            bf4.append(":");
-                        }
-
-                        bf2.append(bf4).append(bf3);
-                        myIP2 = bf2.toString().replaceAll(":$", "");
+                        to[x] = from[b++];
                     }
                 }
             }
+            final int[] swap = from;
+            from = to;
+            to = swap;
         }
-
-        return new String[]{myIP2, rettype};
-    }
-
-    private float convertFloat(String mystr) {
-        try {
-            return Float.parseFloat(mystr);
-        } catch (NumberFormatException e) {
-            return 0.0F;
+        if (from != sorted) {
+            System.arraycopy(from, 0, sorted, 0, sorted.length);
         }
     }
 
-    private void reverse(byte[] array) {
-        if (array == null) {
-            return;
-        }
-        int i = 0;
-        int j = array.length - 1;
-        byte tmp;
-        while (j > i) {
-            tmp = array[j];
-            array[j] = array[i];
-            array[i] = tmp;
-            j--;
-            i++;
-        }
+    private static int compareIPv6(final long ahigh, final long alow, final long bhigh, final long blow) {
+        final int result = Long.compareUnsigned(ahigh, bhigh);
+        return (result != 0) ? result : Long.compareUnsigned(alow, blow);
     }
 
-    private byte[] readRow(final long position, final long mylen, final ByteBuffer mybuffer, final FileLike filehandle) throws IOException {
-        byte[] row = new byte[(int) mylen];
-        if (UseMemoryMappedFile) {
-            mybuffer.position((int) position);
-            mybuffer.get(row, 0, (int) mylen);
+    /**
+     * Passes a matched row to a sink.
+     *
+     * @param sink the sink
+     * @param ipv6 true for the IPv6 rows
+     * @param row  the row
+     * @throws IOException If an input or output exception occurred
+     */
+    private void writeRowAt(final IPResultSink sink, final boolean ipv6, final int row) throws IOException {
+        final int firstcol = ipv6 ? 16 : 4;
+        final int mycolumnsize = ipv6 ? _IPv6ColumnSize : _IPv4ColumnSize;
+        final CompactDatabase compact = _Compact;
+        final InMemoryColumns columns = _Columns;
+
+        if (compact != null) {
+            compact.write(sink, ipv6, row);
+        } else if (columns != null) {
+            columns.write(sink, columns.table(ipv6), row);
+        } else if (UseMemoryMappedFile) {
+            final MappedRegion mybuffer = ipv6 ? _IPv6Buffer : _IPv4Buffer;
+            final long position = (long) row * mycolumnsize;
+            writeRow(sink, mybuffer.chunk(position), mybuffer.offset(position) + firstcol, _MapDataBuffer, null);
         } else {
-            filehandle.seek(position - 1);
-            filehandle.read(row, (int) 0, (int) mylen);
+            final long rowoffset = (ipv6 ? _MetaData.getBaseAddrIPv6() : _MetaData.getBaseAddr()) + (long) row * mycolumnsize;
+            final FileLike filehandle = binFile.open();
+            try {
+                final ByteBuffer rowbuffer = ByteBuffer.wrap(readRow(rowoffset, mycolumnsize, filehandle));
+                rowbuffer.order(ByteOrder.LITTLE_ENDIAN);
+                writeRow(sink, rowbuffer, firstcol, null, filehandle);
+            } finally {
+                filehandle.close();
+            }
         }
-        return row;
     }
 
-    private BigInteger read32or128Row(byte[] row, final int from, final int len) throws IOException {
-        byte[] buf = new byte[len];
-        System.arraycopy(row, from, buf, (int) 0, len);
-        reverse(buf);
-        return new BigInteger(1, buf);
-    }
-
-    private BigInteger read32or128(final long position, final int myiptype, final ByteBuffer mybuffer, final FileLike filehandle) throws IOException {
-        if (myiptype == 4) {
-            return read32(position, mybuffer, filehandle);
-        } else if (myiptype == 6) {
-            return read128(position, mybuffer, filehandle);
+    /**
+     * Passes the columns of a row to a sink, the string ids are the offsets of the strings in the BIN.
+     *
+     * @param sink         the sink
+     * @param rowbuffer    buffer holding the row, read with absolute offsets
+     * @param rowoffset    offset of the first column after IP From
+     * @param mydatabuffer the mapped data segment, or null when reading from the file
+     * @param filehandle   the file to read strings from when not memory mapped
+     * @throws IOException If an input or output exception occurred
+     */
+    private void writeRow(final IPResultSink sink, final ByteBuffer rowbuffer, final int rowoffset, final MappedRegion mydatabuffer, final FileLike filehandle) throws IOException {
+        for (IPField field : FIELDS) {
+            final int offset = ColumnOffset(field);
+            if (offset < 0) {
+                continue;
+            }
+            switch (field) {
+                case LATITUDE:
+                    break;
+                case LONGITUDE:
+                    final float latitude = LATITUDE_ENABLED ? readFloatRow(rowbuffer, rowoffset + LATITUDE_POSITION_OFFSET) : 0.0F;
+                    sink.coordinates(latitude, readFloatRow(rowbuffer, rowoffset + offset));
+                    break;
+                case ELEVATION:
+                    final double elevation = readNumber(read32Row(rowbuffer, rowoffset + offset), mydatabuffer, filehandle, true);
+                    sink.elevation(Double.isNaN(elevation) ? 0.0F : (float) elevation); // as convertFloat does
+                    break;
+                case COUNTRY_SHORT: {
+                    final long position = read32Row(rowbuffer, rowoffset + offset);
+                    sink.country((int) readNumber(position, mydatabuffer, filehandle, false));
+                    sink.string(field, position);
+                    break;
+                }
+                case COUNTRY_LONG:
+                    sink.string(field, read32Row(rowbuffer, rowoffset + offset) + 3);
+                    break;
+                case ASN: {
+                    final long position = read32Row(rowbuffer, rowoffset + offset);
+                    final double asn = readNumber(position, mydatabuffer, filehandle, true);
+                    sink.asn((asn >= 0 && asn == Math.rint(asn)) ? (long) asn : -1);
+                    sink.string(field, position);
+                    break;
+                }
+                default:
+                    sink.string(field, read32Row(rowbuffer, rowoffset + offset));
+            }
         }
-        return BigInteger.ZERO;
     }
 
-    private BigInteger read128(final long position, final ByteBuffer mybuffer, final FileLike filehandle) throws IOException {
-        BigInteger retval;
-        final int bsize = 16;
-        byte[] buf = new byte[bsize];
-
-        if (UseMemoryMappedFile) {
-            mybuffer.position((int) position);
-            mybuffer.get(buf, 0, bsize);
+    /**
+     * Reads a short string in the BIN without decoding it into a String when memory mapped.
+     *
+     * @param position     the offset of the string in the BIN
+     * @param mydatabuffer the mapped data segment, or null when reading from the file
+     * @param filehandle   the file to read from when not memory mapped
+     * @param decimal      true to parse the string as a decimal number, false to pack its first characters into an int
+     * @return the number or the packed characters, NaN for a string that is not a decimal number
+     * @throws IOException If an input or output exception occurred
+     */
+    private double readNumber(final long position, final MappedRegion mydatabuffer, final FileLike filehandle, final boolean decimal) throws IOException {
+        final ByteBuffer buffer;
+        final int offset;
+        if (mydatabuffer != null) {
+            final long local = position - _MapDataOffset;
+            buffer = mydatabuffer.chunk(local); // the string is in the overlap of the chunk
+            offset = mydatabuffer.offset(local);
         } else {
-            filehandle.seek(position - 1);
-            filehandle.read(buf, 0, bsize);
+            final byte[] data = new byte[256];
+            filehandle.seek(position);
+            filehandle.read(data, 0, data.length);
+            buffer = ByteBuffer.wrap(data);
+            offset = 0;
+        }
+        final int len = buffer.get(offset);
+        if (!decimal) {
+            int code = 0;
+            for (int x = 0; x < len && x < 4; x++) {
+                code = (code << 8) | (buffer.get(offset + 1 + x) & 0xff);
+            }
+            return code;
         }
-        reverse(buf);
-        retval = new BigInteger(1, buf);
-        return retval;
-    }
 
-    private BigInteger read32Row(byte[] row, final int from) {
-        final int len = 4;
-        byte[] buf = new byte[len];
-        System.arraycopy(row, from, buf, (int) 0, len);
-        reverse(buf);
-        return new BigInteger(1, buf);
+        long digits = 0;
+        int scale = -1; // digits after the decimal point, -1 before it
+        boolean negative = false;
+        for (int x = 0; x < len; x++) {
+            final int c = buffer.get(offset + 1 + x);
+            if (c >= '0' && c <= '9' && digits < (Long.MAX_VALUE / 10)) {
+                digits = digits * 10 + (c - '0');
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else if (c == '.' && scale < 0) {
+                scale = 0;
+            } else if (c == '-' && x == 0 && len > 1) {
+                negative = true;
+            } else {
+                return Double.NaN;
+            }
+        }
+        if (len <= 0 || scale == 0) {
+            return Double.NaN;
+        }
+        final double value = (scale > 0) ? digits / Math.pow(10, scale) : digits;
+        return negative ? -value : value;
     }
 
-    private BigInteger read32(final long position, final ByteBuffer mybuffer, final FileLike filehandle) throws IOException {
-        if (UseMemoryMappedFile) {
-            // simulate unsigned int by using long
-            return BigInteger.valueOf(mybuffer.getInt((int) position) & 0xffffffffL); // use absolute offset to be thread-safe
+    /**
+     * Decodes the requested columns of a matched row into the result.
+     *
+     * @param record       the result to fill
+     * @param rowbuffer    buffer holding the row, read with absolute offsets
+     * @param rowoffset    offset of the first column after IP From
+     * @param mydatabuffer the mapped data segment, or null when reading from the file
+     * @param filehandle   the file to read strings from when not memory mapped
+     * @param fields       the columns to decode, columns the BIN does not have are still marked as not supported
+     * @throws IOException If an input or output exception occurred
+     */
+    private void readRecord(final IPResult record, final ByteBuffer rowbuffer, final int rowoffset, final MappedRegion mydatabuffer, final FileLike filehandle, final Set<IPField> fields) throws IOException {
+        if (UseLazyResults && mydatabuffer != null && !fields.isEmpty()) {
+            // only the columns the BIN lacks are set now, the getters decode the requested ones
+            decodeRecord(record, rowbuffer, rowoffset, mydatabuffer, null, NO_FIELDS);
+            record.setLazy(new LazyRow(_RowLayout, rowbuffer, rowoffset, mydatabuffer), fields);
         } else {
-            final int bsize = 4;
-            filehandle.seek(position - 1);
-            byte[] buf = new byte[bsize];
-            filehandle.read(buf, (int) 0, bsize);
-            reverse(buf);
-            return new BigInteger(1, buf);
+            decodeRecord(record, rowbuffer, rowoffset, mydatabuffer, filehandle, fields);
         }
     }
 
-    private String readStr(long position, final ByteBuffer mydatabuffer, final FileLike filehandle) throws IOException {
-        int size = 256; // max size of string field + 1 byte for the length
-        final int len;
-        final byte[] data = new byte[size];
-        byte[] buf;
-
-        if (UseMemoryMappedFile) {
-            position = position - _MapDataOffset; // position stored in BIN file is for full file, not just the mapped data segment, so need to minus
-            try {
-                mydatabuffer.position((int) position);
-                if (mydatabuffer.remaining() < size) {
-                    size = mydatabuffer.remaining();
-                }
-                mydatabuffer.get(data, 0, size);
-                len = data[0];
-
-                buf = new byte[len];
-                System.arraycopy(data, 1, buf, (int) 0, len);
+    private void decodeRecord(final IPResult record, final ByteBuffer rowbuffer, final int rowoffset, final MappedRegion mydatabuffer, final FileLike filehandle, final Set<IPField> fields) throws IOException {
+        long position;
 
-            } catch (NegativeArraySizeException e) {
-                return null;
+        if (!COUNTRY_ENABLED) {
+            record.country_short = IPResult.NOT_SUPPORTED;
+            record.country_long = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.COUNTRY_SHORT) || fields.contains(IPField.COUNTRY_LONG)) {
+            position = read32Row(rowbuffer, rowoffset + COUNTRY_POSITION_OFFSET);
+            if (fields.contains(IPField.COUNTRY_SHORT)) {
+                record.country_short = readStr(position, mydatabuffer, filehandle);
             }
-
-        } else {
-            filehandle.seek(position);
-            try {
-                filehandle.read(data, 0, size);
-                len = data[0];
-
-                buf = new byte[len];
-                System.arraycopy(data, 1, buf, (int) 0, len);
-
-            } catch (NegativeArraySizeException e) {
-                return null;
+            if (fields.contains(IPField.COUNTRY_LONG)) {
+                record.country_long = readStr(position + 3, mydatabuffer, filehandle);
             }
         }
+        if (!REGION_ENABLED) {
+            record.region = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.REGION)) {
+            position = read32Row(rowbuffer, rowoffset + REGION_POSITION_OFFSET);
+            record.region = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!CITY_ENABLED) {
+            record.city = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.CITY)) {
+            position = read32Row(rowbuffer, rowoffset + CITY_POSITION_OFFSET);
+            record.city = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!ISP_ENABLED) {
+            record.isp = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.ISP)) {
+            position = read32Row(rowbuffer, rowoffset + ISP_POSITION_OFFSET);
+            record.isp = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!LATITUDE_ENABLED) {
+            record.latitude = 0.0F;
+        } else if (fields.contains(IPField.LATITUDE)) {
+            record.setFloat(IPField.LATITUDE, readFloatRow(rowbuffer, rowoffset + LATITUDE_POSITION_OFFSET));
+        }
+        if (!LONGITUDE_ENABLED) {
+            record.longitude = 0.0F;
+        } else if (fields.contains(IPField.LONGITUDE)) {
+            record.setFloat(IPField.LONGITUDE, readFloatRow(rowbuffer, rowoffset + LONGITUDE_POSITION_OFFSET));
+        }
+        if (!DOMAIN_ENABLED) {
+            record.domain = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.DOMAIN)) {
+            position = read32Row(rowbuffer, rowoffset + DOMAIN_POSITION_OFFSET);
+            record.domain = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!ZIPCODE_ENABLED) {
+            record.zipcode = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.ZIPCODE)) {
+            position = read32Row(rowbuffer, rowoffset + ZIPCODE_POSITION_OFFSET);
+            record.zipcode = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!TIMEZONE_ENABLED) {
+            record.timezone = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.TIMEZONE)) {
+            position = read32Row(rowbuffer, rowoffset + TIMEZONE_POSITION_OFFSET);
+            record.timezone = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!NETSPEED_ENABLED) {
+            record.netspeed = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.NETSPEED)) {
+            position = read32Row(rowbuffer, rowoffset + NETSPEED_POSITION_OFFSET);
+            record.netspeed = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!IDDCODE_ENABLED) {
+            record.iddcode = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.IDDCODE)) {
+            position = read32Row(rowbuffer, rowoffset + IDDCODE_POSITION_OFFSET);
+            record.iddcode = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!AREACODE_ENABLED) {
+            record.areacode = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.AREACODE)) {
+            position = read32Row(rowbuffer, rowoffset + AREACODE_POSITION_OFFSET);
+            record.areacode = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!WEATHERSTATIONCODE_ENABLED) {
+            record.weatherstationcode = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.WEATHERSTATIONCODE)) {
+            position = read32Row(rowbuffer, rowoffset + WEATHERSTATIONCODE_POSITION_OFFSET);
+            record.weatherstationcode = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!WEATHERSTATIONNAME_ENABLED) {
+            record.weatherstationname = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.WEATHERSTATIONNAME)) {
+            position = read32Row(rowbuffer, rowoffset + WEATHERSTATIONNAME_POSITION_OFFSET);
+            record.weatherstationname = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!MCC_ENABLED) {
+            record.mcc = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.MCC)) {
+            position = read32Row(rowbuffer, rowoffset + MCC_POSITION_OFFSET);
+            record.mcc = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!MNC_ENABLED) {
+            record.mnc = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.MNC)) {
+            position = read32Row(rowbuffer, rowoffset + MNC_POSITION_OFFSET);
+            record.mnc = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!MOBILEBRAND_ENABLED) {
+            record.mobilebrand = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.MOBILEBRAND)) {
+            position = read32Row(rowbuffer, rowoffset + MOBILEBRAND_POSITION_OFFSET);
+            record.mobilebrand = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!ELEVATION_ENABLED) {
+            record.elevation = 0.0F;
+        } else if (fields.contains(IPField.ELEVATION)) {
+            position = read32Row(rowbuffer, rowoffset + ELEVATION_POSITION_OFFSET);
+            record.elevation = convertFloat(readStr(position, mydatabuffer, filehandle)); // due to value being stored as a string but output as float
+        }
+        if (!USAGETYPE_ENABLED) {
+            record.usagetype = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.USAGETYPE)) {
+            position = read32Row(rowbuffer, rowoffset + USAGETYPE_POSITION_OFFSET);
+            record.usagetype = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!ADDRESSTYPE_ENABLED) {
+            record.addresstype = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.ADDRESSTYPE)) {
+            position = read32Row(rowbuffer, rowoffset + ADDRESSTYPE_POSITION_OFFSET);
+            record.addresstype = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!CATEGORY_ENABLED) {
+            record.category = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.CATEGORY)) {
+            position = read32Row(rowbuffer, rowoffset + CATEGORY_POSITION_OFFSET);
+            record.category = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!DISTRICT_ENABLED) {
+            record.district = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.DISTRICT)) {
+            position = read32Row(rowbuffer, rowoffset + DISTRICT_POSITION_OFFSET);
+            record.district = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!ASN_ENABLED) {
+            record.asn = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.ASN)) {
+            position = read32Row(rowbuffer, rowoffset + ASN_POSITION_OFFSET);
+            record.asn = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!AS_ENABLED) {
+            record.as = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.AS)) {
+            position = read32Row(rowbuffer, rowoffset + AS_POSITION_OFFSET);
+            record.as = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!ASDOMAIN_ENABLED) {
+            record.asdomain = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.ASDOMAIN)) {
+            position = read32Row(rowbuffer, rowoffset + ASDOMAIN_POSITION_OFFSET);
+            record.asdomain = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!ASUSAGETYPE_ENABLED) {
+            record.asusagetype = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.ASUSAGETYPE)) {
+            position = read32Row(rowbuffer, rowoffset + ASUSAGETYPE_POSITION_OFFSET);
+            record.asusagetype = readStr(position, mydatabuffer, filehandle);
+        }
+        if (!ASCIDR_ENABLED) {
+            record.ascidr = IPResult.NOT_SUPPORTED;
+        } else if (fields.contains(IPField.ASCIDR)) {
+            position = read32Row(rowbuffer, rowoffset + ASCIDR_POSITION_OFFSET);
+            record.ascidr = readStr(position, mydatabuffer, filehandle);
+        }
+    }
 
-        return new String(buf);
+    // package-private access
+    static float convertFloat(String mystr) {
+        try {
+            return Float.parseFloat(mystr);
+        } catch (NumberFormatException e) {
+            return 0.0F;
+        }
     }
 
-    private float readFloatRow(byte[] row, final int from) {
-        final int len = 4;
-        byte[] buf = new byte[len];
-        System.arraycopy(row, from, buf, (int) 0, len);
-        return Float.intBitsToFloat((buf[3] & 0xff) << 24 | (buf[2] & 0xff) << 16 | (buf[1] & 0xff) << 8 | (buf[0] & 0xff)); // the AND is converting byte to unsigned byte in the form of an int
+    private byte[] readRow(final long position, final long mylen, final FileLike filehandle) throws IOException {
+        byte[] row = new byte[(int) mylen];
+        filehandle.seek(position - 1);
+        filehandle.read(row, (int) 0, (int) mylen);
+        return row;
     }
 
-    private String setDecimalPlaces(float myfloat) {
-        return GEO_COORDINATE_FORMAT.format(myfloat);
+    private long read32Row(final ByteBuffer rowbuffer, final int from) {
+        return rowbuffer.getInt(from) & 0xffffffffL; // simulate unsigned int by using long
     }
 
-    private BigInteger[] ip2No(String ipstring) throws UnknownHostException {
-        BigInteger a1;
-        BigInteger a2;
-        BigInteger a3 = new BigInteger("4");
+    private String readStr(long position, final MappedRegion mydatabuffer, final FileLike filehandle) throws IOException {
+        if (mydatabuffer != null) {
+            return _RowLayout.readStr(position, mydatabuffer);
+        }
 
-        if (pattern.matcher(ipstring).matches()) { // should be IPv4
-            a1 = new BigInteger("4");
-            a2 = new BigInteger(String.valueOf(ipV4No(ipstring)));
-        } else if (pattern2.matcher(ipstring).matches() || pattern3.matcher(ipstring).matches()) {
-            throw new UnknownHostException();
-        } else {
-            a3 = new BigInteger("6");
-            final InetAddress ia = InetAddress.getByName(ipstring);
-            final byte[] byteArr = ia.getAddress();
+        final StringCache cache = _StringCache;
+        if (cache != null) {
+            final String cached = cache.get(position);
+            if (cached != null) {
+                return cached;
+            }
+        }
 
-            String myiptype = "0"; // BigInteger needs String in the constructor
+        final int size = 256; // max size of string field + 1 byte for the length
+        final int len;
+        byte[] buf;
 
-            if (ia instanceof Inet6Address) {
-                myiptype = "6";
-            } else if (ia instanceof Inet4Address) { // this will run in cases of IPv4-mapped IPv6 addresses
-                myiptype = "4";
-            }
-            a2 = new BigInteger(1, byteArr); // confirmed correct for IPv6
+        final byte[] data = new byte[size];
+        filehandle.seek(position);
+        try {
+            filehandle.read(data, 0, size);
+            len = data[0];
 
-            if (a2.compareTo(FROM_6TO4) >= 0 && a2.compareTo(TO_6TO4) <= 0) {
-                // 6to4 so need to remap to ipv4
-                myiptype = "4";
-                a2 = a2.shiftRight(80);
-                a2 = a2.and(LAST_32BITS);
-                a3 = new BigInteger("4");
-            } else if (a2.compareTo(FROM_TEREDO) >= 0 && a2.compareTo(TO_TEREDO) <= 0) {
-                // Teredo so need to remap to ipv4
-                myiptype = "4";
-                a2 = a2.not();
-                a2 = a2.and(LAST_32BITS);
-                a3 = new BigInteger("4");
-            }
+            buf = new byte[len];
+            System.arraycopy(data, 1, buf, (int) 0, len);
+
+        } catch (NegativeArraySizeException e) {
+            return null;
+        }
 
-            a1 = new BigInteger(myiptype);
+        final String value = new String(buf);
+        if (cache != null) {
+            cache.put(position, value);
         }
+        return value;
+    }
+
+    private float readFloatRow(final ByteBuffer rowbuffer, final int from) {
+        return rowbuffer.getFloat(from);
+    }
 
-        return new BigInteger[]{a1, a2, a3};
+    /**
+     * Rounds a coordinate to the 6 decimal places of IPResult.
+     *
+     * @param myfloat the coordinate as stored in the BIN
+     * @return the rounded coordinate
+     */
+    // package-private access
+    static float roundCoordinate(float myfloat) {
+        return GEO_COORDINATE_ROUNDING.get().round(myfloat);
     }
 
-    private long ipV4No(final String ipstring) {
-        final String[] ipAddressInArray = ipstring.split("\\.");
-        long result = 0;
-        long ip;
-        for (int x = 3; x >= 0; x--) {
-            ip = Long.parseLong(ipAddressInArray[3 - x]);
-            result |= ip << (x << 3);
+    /**
+     * The format one thread rounds coordinates with, and the coordinates it rounded last. They repeat for every
+     * range in a city, so most are rounded without formatting them again.
+     */
+    private static final class CoordinateRounding {
+        private final DecimalFormat _Format;
+        private final long[] _Keys = new long[4096]; // raw float bits with bit 32 set, 0 for an empty slot
+        private final float[] _Values = new float[4096];
+
+        CoordinateRounding() {
+            DecimalFormatSymbols symbols = new DecimalFormatSymbols();
+            symbols.setDecimalSeparator('.');
+            _Format = new DecimalFormat("###.######", symbols);
+        }
+
+        float round(final float raw) {
+            final int bits = Float.floatToRawIntBits(raw);
+            final int slot = (bits ^ (bits >>> 12)) & 4095;
+            final long key = (1L << 32) | (bits & 0xffffffffL);
+            if (_Keys[slot] != key) {
+                _Values[slot] = Float.parseFloat(_Format.format(raw));
+                _Keys[slot] = key;
+            }
+            return _Values[slot];
         }
-        return result;
     }
 }
@@ -0,0 +1,29 @@
+package net.renfei.ip2location;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compiles a BIN into the compact file that IP2Location.Open loads ready to query, see IP2Location.Compile.
+ * <p>
+ * Usage: java -cp ip2location.jar net.renfei.ip2location.IP2LocationCompiler &lt;BIN file&gt; &lt;compiled file&gt;
+ */
+public final class IP2LocationCompiler {
+    private IP2LocationCompiler() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: IP2LocationCompiler <BIN file> <compiled file>");
+            System.exit(2);
+        }
+        final IP2Location loc = new IP2Location();
+        try {
+            loc.Open(args[0]);
+            loc.Compile(args[1]);
+        } finally {
+            loc.Close();
+        }
+        System.out.println("Compiled " + args[0] + " (" + new File(args[0]).length() + " bytes) into " + args[1] + " (" + new File(args[1]).length() + " bytes)");
+    }
+}
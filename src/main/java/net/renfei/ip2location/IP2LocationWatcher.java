@@ -0,0 +1,182 @@
+package net.renfei.ip2location;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads a ReloadableIP2Location whenever its BIN file is replaced.
+ * <p>
+ * The directory of the BIN is watched with a WatchService. Once the file has been quiet for QuietMillis, its header
+ * is checked: a file with a wrong product code, no rows or an impossible date is reported and left alone, one whose
+ * size does not match its header is still being copied and is tried again on its next change, and one with the
+ * same header as the BIN in use is ignored. A new BIN is then opened, indexed and read through once on the watching
+ * thread, and only then switched in, so queries keep using the old BIN while the new one is loaded and do not hit
+ * a cold page cache afterwards.
+ * <p>
+ * Replace the BIN by moving the new file over it. Memory mapped instances still map the old file until they are
+ * closed, and rewriting a mapped file in place can crash the readers.
+ */
+public class IP2LocationWatcher {
+    private static final int HEADER_SIZE = 64;
+
+    /**
+     * Told about every reload done by the watcher.
+     */
+    public interface Listener {
+        /**
+         * @param DBPath The BIN now in use
+         * @param millis How long the reload took, from reading the header to the switch, warm-up included
+         */
+        void reloaded(String DBPath, long millis);
+
+        /**
+         * @param DBPath    The BIN that could not be loaded, the previous one stays in use
+         * @param exception Why it could not be loaded
+         */
+        default void failed(String DBPath, Exception exception) {
+        }
+    }
+
+    /**
+     * How long the file must go without changes before it is loaded, as copying it shows up as many changes.
+     */
+    public long QuietMillis = 1000;
+    private final ReloadableIP2Location _Target;
+    private final Path _Path;
+    private final Listener _Listener;
+    private WatchService _WatchService = null;
+    private byte[] _Header = null; // the header of the BIN in use, only touched by the watching thread after Start
+
+    /**
+     * @param target   The component to reload
+     * @param DBPath   The full path to the IP2Location BIN database file
+     * @param listener Told about every reload
+     */
+    public IP2LocationWatcher(ReloadableIP2Location target, String DBPath, Listener listener) {
+        _Target = target;
+        _Path = Paths.get(DBPath).toAbsolutePath();
+        _Listener = listener;
+    }
+
+    /**
+     * This function loads the BIN into the component and starts watching it on a daemon thread.
+     *
+     * @throws IOException If an input or output exception occurred
+     */
+    public synchronized void Start() throws IOException {
+        if (_WatchService != null) {
+            return;
+        }
+        // watch before loading, so that a file replaced during the load is not missed
+        final WatchService watchService = _Path.getFileSystem().newWatchService();
+        try {
+            _Path.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            _Header = readHeader();
+            _Target.Reload(_Path.toString());
+        } catch (IOException | RuntimeException e) {
+            watchService.close();
+            throw e;
+        }
+
+        _WatchService = watchService;
+        final Thread thread = new Thread(this::watch, "ip2location-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * This function stops watching, a reload already under way still completes. The component stays open.
+     */
+    public synchronized void Close() {
+        if (_WatchService != null) {
+            try {
+                _WatchService.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+            _WatchService = null;
+        }
+    }
+
+    private void watch() {
+        final WatchService watchService = _WatchService;
+        boolean changed = false;
+        try {
+            while (true) {
+                // once the file has changed, wait until it has been quiet for QuietMillis
+                final WatchKey key = changed ? watchService.poll(QuietMillis, TimeUnit.MILLISECONDS) : watchService.take();
+                if (key == null) {
+                    changed = false;
+                    reload();
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || _Path.getFileName().equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                if (!key.reset()) {
+                    _Listener.failed(_Path.toString(), new IOException("The directory " + _Path.getParent() + " can no longer be watched"));
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void reload() {
+        final long start = System.nanoTime();
+        try {
+            final byte[] header = readHeader();
+            if (header == null || Arrays.equals(header, _Header)) { // not written yet, or the BIN already in use
+                return;
+            }
+
+            final MetaData metaData = IP2Location.ReadHeader(header);
+            if (metaData.getDBCount() <= 0 || metaData.getDBMonth() < 1 || metaData.getDBMonth() > 12 || metaData.getDBDay() < 1 || metaData.getDBDay() > 31) {
+                throw new IOException("Incorrect IP2Location BIN file header in " + _Path);
+            }
+            if (metaData.getFileSize() != 0 && (metaData.getFileSize() & 0xffffffffL) != Files.size(_Path)) {
+                return; // still being copied, the next change tries again
+            }
+
+            _Target.Reload(_Path.toString());
+            _Header = header;
+            _Listener.reloaded(_Path.toString(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException | RuntimeException e) {
+            _Listener.failed(_Path.toString(), e);
+        }
+    }
+
+    /**
+     * @return the header of the BIN, null if the file is missing or shorter than a header
+     */
+    private byte[] readHeader() throws IOException {
+        final byte[] header = new byte[HEADER_SIZE];
+        try (InputStream in = Files.newInputStream(_Path)) {
+            int total = 0;
+            while (total < HEADER_SIZE) {
+                final int count = in.read(header, total, HEADER_SIZE - total);
+                if (count < 0) {
+                    return null;
+                }
+                total += count;
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return header;
+    }
+}
@@ -0,0 +1,448 @@
+package net.renfei.ip2location;
+
+/**
+ * Turns an address literal into the numeric key that the BIN is searched with, in one scan over its characters and
+ * without allocating.
+ * <p>
+ * IPv4-mapped, IPv4-compatible, 6to4 and Teredo addresses are looked up as the IPv4 address they carry, the same
+ * way the regular expressions and InetAddress did before. The expanded text that the result reports for an IPv6
+ * address is not built here: the parser only records which form it takes, and {@link #expand(IPResult)} builds it
+ * when it is asked for.
+ * <p>
+ * Addresses that are already numbers, as bytes or as longs, skip the text entirely. Of the remapping they only
+ * get the IPv4-mapped, 6to4 and Teredo cases, as the compatible forms are told apart by how they are written.
+ */
+// package-private access
+final class IPAddressParser {
+    /**
+     * The address is reported as it was given.
+     */
+    static final byte AS_GIVEN = 0;
+    /**
+     * The address is reported as eight groups of four upper case hex digits.
+     */
+    static final byte EXPANDED = 1;
+    /**
+     * An IPv4-mapped address, reported with its IPv4 part in dotted form.
+     */
+    static final byte MAPPED = 2;
+    /**
+     * :: followed by a dotted IPv4 address, or :: alone.
+     */
+    static final byte COMPATIBLE = 3;
+    /**
+     * Zero groups followed by one or two hex groups, looked up as IPv4.
+     */
+    static final byte COMPATIBLE_HEX = 4;
+    /**
+     * An IPv4 address given as a number, reported in dotted form.
+     */
+    static final byte DOTTED = 5;
+    /**
+     * An IPv4-mapped address given as a number, reported as the expanded prefix and the IPv4 part in dotted form.
+     */
+    static final byte MAPPED_DOTTED = 6;
+
+    private static final String ZERO_GROUPS = "0000:0000:0000:0000:0000:";
+    private static final long LEADING_ZERO = 1L << 32; // flags a dotted IPv4 address with an octet such as 01
+    private static final long MAX_IPV4_NO = 4294967295L;
+
+    private IPAddressParser() {
+    }
+
+    /**
+     * Sets the type, the key and the form of the address of a result, or its status if the literal is not valid.
+     *
+     * @param ipstring the trimmed, non-empty input
+     * @param record   the result to fill
+     */
+    static void parse(final String ipstring, final IPResult record) {
+        int start = 0;
+        int end = ipstring.length();
+        boolean decorated = false; // brackets and zone IDs are only allowed around IPv6 literals
+        if (end > 1 && ipstring.charAt(0) == '[' && ipstring.charAt(end - 1) == ']') {
+            start++;
+            end--;
+            decorated = true;
+        }
+        // the zone ID only picks the interface of a link-local address, it takes no part in the lookup
+        final int zone = ipstring.indexOf('%', start);
+        if (zone >= 0 && zone < end) {
+            if (zone + 1 == end || !isZone(ipstring, zone + 1, end)) {
+                invalid(record);
+                return;
+            }
+            end = zone;
+            decorated = true;
+        }
+        if (end - start < 2) {
+            invalid(record);
+            return;
+        }
+
+        // the groups before :: and after it are shifted into separate 128-bit registers
+        long headhigh = 0;
+        long headlow = 0;
+        long tailhigh = 0;
+        long taillow = 0;
+        int groups = 0;
+        int gap = -1; // number of groups before ::
+        int explicit = 0; // hex groups written out, not counting a dotted IPv4 tail
+        boolean ipv4tail = false;
+        int value = 0;
+        int digits = 0;
+        int group = start;
+        int x = start;
+        if (ipstring.charAt(x) == ':' && ipstring.charAt(++x) != ':') { // a leading colon must be part of ::
+            invalid(record);
+            return;
+        }
+        while (x < end) {
+            final char c = ipstring.charAt(x++);
+            final int digit = hexDigit(c);
+            if (digit >= 0) {
+                if (++digits > 4) {
+                    invalid(record);
+                    return;
+                }
+                value = (value << 4) | digit;
+            } else if (c == ':') {
+                group = x;
+                if (digits == 0) {
+                    if (gap >= 0) { // only one :: is allowed
+                        invalid(record);
+                        return;
+                    }
+                    gap = groups;
+                    continue;
+                }
+                if (x == end || groups == 8) {
+                    invalid(record);
+                    return;
+                }
+                if (gap < 0) {
+                    headhigh = (headhigh << 16) | (headlow >>> 48);
+                    headlow = (headlow << 16) | value;
+                } else {
+                    tailhigh = (tailhigh << 16) | (taillow >>> 48);
+                    taillow = (taillow << 16) | value;
+                }
+                groups++;
+                explicit++;
+                value = 0;
+                digits = 0;
+            } else if (c == '.') {
+                final long ipv4 = parseIPv4(ipstring, group, end);
+                if (ipv4 < 0) {
+                    invalid(record);
+                    return;
+                }
+                if (group == start) { // a plain IPv4 literal
+                    if (decorated) {
+                        invalid(record);
+                        return;
+                    }
+                    record.iptype = 4;
+                    record.iplow = ipv4 & MAX_IPV4_NO;
+                    return;
+                }
+                // six groups written out in front of an octet such as 01 were always rejected
+                if (groups + 2 > 8 || (gap < 0 && (ipv4 & LEADING_ZERO) != 0)) {
+                    invalid(record);
+                    return;
+                }
+                if (gap < 0) {
+                    headhigh = (headhigh << 32) | (headlow >>> 32);
+                    headlow = (headlow << 32) | (ipv4 & MAX_IPV4_NO);
+                } else {
+                    tailhigh = (tailhigh << 32) | (taillow >>> 32);
+                    taillow = (taillow << 32) | (ipv4 & MAX_IPV4_NO);
+                }
+                groups += 2;
+                ipv4tail = true;
+                digits = 0;
+                break;
+            } else {
+                invalid(record);
+                return;
+            }
+        }
+        if (digits > 0) {
+            if (groups == 8) {
+                invalid(record);
+                return;
+            }
+            if (gap < 0) {
+                headhigh = (headhigh << 16) | (headlow >>> 48);
+                headlow = (headlow << 16) | value;
+            } else {
+                tailhigh = (tailhigh << 16) | (taillow >>> 48);
+                taillow = (taillow << 16) | value;
+            }
+            groups++;
+            explicit++;
+        }
+
+        final long iphigh;
+        final long iplow;
+        if (gap < 0) {
+            if (groups != 8) {
+                invalid(record);
+                return;
+            }
+            iphigh = headhigh;
+            iplow = headlow;
+        } else {
+            if (groups == 8) { // :: must stand for at least one group
+                invalid(record);
+                return;
+            }
+            // move the groups before :: up to the top
+            final int shift = (8 - gap) << 4;
+            if (shift >= 64) {
+                iphigh = (headlow << (shift - 64)) | tailhigh;
+                iplow = taillow;
+            } else {
+                iphigh = (headhigh << shift) | (headlow >>> (64 - shift)) | tailhigh;
+                iplow = (headlow << shift) | taillow;
+            }
+        }
+
+        remap(iphigh, iplow, record);
+        if (record.iptype == 6 && iphigh == 0 && (iplow >>> 32) == 0) {
+            final int tail = (gap < 0) ? groups : groups - gap;
+            if (explicit == 0) { // :: alone or with a dotted IPv4 address
+                record.iptype = 4;
+                record.addressform = COMPATIBLE;
+            } else if (!ipv4tail && (tail >= 2 || (tail == 1 && (iplow >>> 16) == 0))) {
+                record.iptype = 4;
+                record.addressform = COMPATIBLE_HEX;
+            }
+        }
+    }
+
+    /**
+     * Sets the type and the key of a result for an IPv4 address given as a number.
+     *
+     * @param ipv4   the address, the first octet in the highest byte
+     * @param record the result to fill
+     */
+    static void parse(final int ipv4, final IPResult record) {
+        record.iptype = 4;
+        record.iplow = ipv4 & MAX_IPV4_NO;
+        record.addressform = DOTTED;
+    }
+
+    /**
+     * Sets the type and the key of a result for an IPv6 address given as a number, looking up IPv4-mapped, 6to4 and
+     * Teredo addresses as the IPv4 address they carry.
+     *
+     * @param iphigh the upper 64 bits of the address
+     * @param iplow  the lower 64 bits of the address
+     * @param record the result to fill
+     */
+    static void parse(final long iphigh, final long iplow, final IPResult record) {
+        remap(iphigh, iplow, record);
+        if (record.addressform == MAPPED) {
+            record.addressform = MAPPED_DOTTED;
+        } else if (record.addressform == AS_GIVEN) { // 6to4 and Teredo, whose other bits are gone from the key
+            record.ip_address = expanded(iphigh, iplow);
+        }
+    }
+
+    /**
+     * Sets the type and the key of a result for an address given as its bytes in network order.
+     *
+     * @param address the 4 bytes of an IPv4 address or the 16 bytes of an IPv6 address
+     * @param record  the result to fill
+     */
+    static void parse(final byte[] address, final IPResult record) {
+        if (address.length == 4) {
+            parse((int) bytesToLong(address, 0, 4), record);
+        } else if (address.length == 16) {
+            parse(bytesToLong(address, 0, 8), bytesToLong(address, 8, 16), record);
+        } else {
+            invalid(record);
+        }
+    }
+
+    private static void remap(final long iphigh, final long iplow, final IPResult record) {
+        record.iptype = 6;
+        record.iphigh = iphigh;
+        record.iplow = iplow;
+        record.addressform = EXPANDED;
+        if (iphigh == 0 && (iplow >>> 32) == 0xffffL) {
+            record.iptype = 4;
+            record.iphigh = 0;
+            record.iplow = iplow & MAX_IPV4_NO;
+            record.addressform = MAPPED;
+        } else if ((iphigh >>> 48) == 0x2002L) {
+            record.iptype = 4;
+            record.iphigh = 0;
+            record.iplow = (iphigh >>> 16) & MAX_IPV4_NO;
+            record.addressform = AS_GIVEN;
+        } else if ((iphigh >>> 32) == 0x20010000L) {
+            record.iptype = 4;
+            record.iphigh = 0;
+            record.iplow = ~iplow & MAX_IPV4_NO;
+            record.addressform = AS_GIVEN;
+        }
+    }
+
+    /**
+     * Builds the text that a result reports for the address it was looked up with.
+     *
+     * @param record the parsed result
+     * @return the address in the form recorded by parse
+     */
+    static String expand(final IPResult record) {
+        final String given = record.ip_address;
+        switch (record.addressform) {
+            case AS_GIVEN:
+                return given;
+            case EXPANDED:
+                return expanded(record.iphigh, record.iplow);
+            case DOTTED:
+                return dotted(record.iplow);
+            case MAPPED_DOTTED:
+                return ZERO_GROUPS + "FFFF:" + dotted(record.iplow);
+            default:
+        }
+
+        // the text was checked by parse, so only the brackets and the zone ID need to go
+        int start = 0;
+        int end = given.length();
+        if (given.charAt(0) == '[') {
+            start++;
+            end--;
+        }
+        final int zone = given.indexOf('%');
+        if (zone >= 0) {
+            end = zone;
+        }
+        final String bare = given.substring(start, end).toUpperCase();
+
+        switch (record.addressform) {
+            case MAPPED:
+                if (bare.indexOf('.') >= 0) {
+                    return bare.replace("::", ZERO_GROUPS);
+                }
+                final int last = bare.lastIndexOf(':');
+                final int second = bare.lastIndexOf(':', last - 1);
+                if (last + 1 < bare.length() && second >= 0 && second + 1 < last) { // ends with two hex groups
+                    return (bare.substring(0, second) + ":" + dotted(record.iplow)).replace("::", ZERO_GROUPS);
+                }
+                return bare;
+            case COMPATIBLE:
+                return ZERO_GROUPS + "FFFF:" + (bare.equals("::") ? "0.0.0.0" : bare.substring(bare.lastIndexOf(':') + 1));
+            default: {
+                // the zero groups are kept as written, with the last group, or the last two if both are needed, in dotted form
+                int from = bare.lastIndexOf(':');
+                if (record.iplow > 0xffffL) {
+                    from = bare.lastIndexOf(':', from - 1);
+                }
+                return (bare.substring(0, from) + ":" + dotted(record.iplow)).replace("::", ZERO_GROUPS + "FFFF:");
+            }
+        }
+    }
+
+    /**
+     * @return the dotted IPv4 address, with a flag for an octet that has a leading zero, or -1 if the characters are not one
+     */
+    private static long parseIPv4(final String ipstring, final int from, final int to) {
+        long result = 0;
+        boolean leadingzero = false;
+        int octets = 0;
+        int x = from;
+        while (x < to) {
+            int value = 0;
+            int digits = 0;
+            char c;
+            final int first = x;
+            while (x < to && (c = ipstring.charAt(x)) >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits++;
+                x++;
+            }
+            if (digits == 0 || digits > 3 || value > 255) {
+                return -1;
+            }
+            if (digits > 1 && ipstring.charAt(first) == '0') {
+                leadingzero = true;
+            }
+            result = (result << 8) | value;
+            octets++;
+            if (x < to) {
+                if (ipstring.charAt(x) != '.' || octets == 4) {
+                    return -1;
+                }
+                x++;
+                if (x == to) {
+                    return -1;
+                }
+            }
+        }
+        if (octets != 4) {
+            return -1;
+        }
+        return leadingzero ? result | LEADING_ZERO : result;
+    }
+
+    private static long bytesToLong(final byte[] address, final int from, final int to) {
+        long result = 0;
+        for (int x = from; x < to; x++) {
+            result = (result << 8) | (address[x] & 0xff);
+        }
+        return result;
+    }
+
+    private static boolean isZone(final String ipstring, final int from, final int to) {
+        for (int x = from; x < to; x++) {
+            final char c = ipstring.charAt(x);
+            if (!Character.isLetterOrDigit(c) && c != '.' && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hexDigit(final char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static void invalid(final IPResult record) {
+        record.iptype = 0;
+        record.status = "INVALID_IP_ADDRESS";
+    }
+
+    private static String expanded(final long iphigh, final long iplow) {
+        final StringBuilder buf = new StringBuilder(39);
+        appendGroups(buf, iphigh);
+        buf.append(':');
+        appendGroups(buf, iplow);
+        return buf.toString();
+    }
+
+    private static void appendGroups(final StringBuilder buf, final long half) {
+        for (int shift = 48; shift >= 0; shift -= 16) {
+            final int group = (int) (half >>> shift) & 0xffff;
+            for (int nibble = 12; nibble >= 0; nibble -= 4) {
+                buf.append(Character.toUpperCase(Character.forDigit((group >>> nibble) & 0xf, 16)));
+            }
+            if (shift > 0) {
+                buf.append(':');
+            }
+        }
+    }
+
+    private static String dotted(final long ipno) {
+        return ((ipno >>> 24) & 0xff) + "." + ((ipno >>> 16) & 0xff) + "." + ((ipno >>> 8) & 0xff) + "." + (ipno & 0xff);
+    }
+}
@@ -0,0 +1,120 @@
+package net.renfei.ip2location;
+
+/**
+ * The result columns of an IP2Location lookup, used to ask {@link IP2Location#IPQuery(String, java.util.Set)}
+ * to decode only some of them.
+ */
+public enum IPField {
+    /**
+     * Two-character country code based on ISO 3166.
+     */
+    COUNTRY_SHORT,
+    /**
+     * Country name based on ISO 3166.
+     */
+    COUNTRY_LONG,
+    /**
+     * Region or state name.
+     */
+    REGION,
+    /**
+     * City name.
+     */
+    CITY,
+    /**
+     * Internet Service Provider (ISP) name.
+     */
+    ISP,
+    /**
+     * City latitude.
+     */
+    LATITUDE,
+    /**
+     * City longitude.
+     */
+    LONGITUDE,
+    /**
+     * Internet domain name associated to IP address range.
+     */
+    DOMAIN,
+    /**
+     * ZIP/Postal code.
+     */
+    ZIPCODE,
+    /**
+     * UTC time zone.
+     */
+    TIMEZONE,
+    /**
+     * Internet connection speed.
+     */
+    NETSPEED,
+    /**
+     * IDD prefix to call the city from another country.
+     */
+    IDDCODE,
+    /**
+     * Varying length number assigned to geographic areas for call between cities.
+     */
+    AREACODE,
+    /**
+     * Special code to identify the nearest weather observation station.
+     */
+    WEATHERSTATIONCODE,
+    /**
+     * Name of the nearest weather observation station.
+     */
+    WEATHERSTATIONNAME,
+    /**
+     * Mobile country code.
+     */
+    MCC,
+    /**
+     * Mobile network code.
+     */
+    MNC,
+    /**
+     * Mobile brand.
+     */
+    MOBILEBRAND,
+    /**
+     * City elevation.
+     */
+    ELEVATION,
+    /**
+     * Usage type.
+     */
+    USAGETYPE,
+    /**
+     * Address type.
+     */
+    ADDRESSTYPE,
+    /**
+     * IAB category.
+     */
+    CATEGORY,
+    /**
+     * District.
+     */
+    DISTRICT,
+    /**
+     * Autonomous system number (ASN).
+     */
+    ASN,
+    /**
+     * Autonomous system (AS).
+     */
+    AS,
+    /**
+     * AS domain.
+     */
+    ASDOMAIN,
+    /**
+     * AS usage type.
+     */
+    ASUSAGETYPE,
+    /**
+     * AS CIDR.
+     */
+    ASCIDR
+}
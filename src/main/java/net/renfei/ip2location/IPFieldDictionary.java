@@ -0,0 +1,84 @@
+package net.renfei.ip2location;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The distinct values of one column of a database, numbered from 0, see IP2Location.GetDictionary.
+ * <p>
+ * An id stands for one value, so results can be counted or grouped in arrays of size() entries instead of maps
+ * keyed by strings. A dictionary is built when its BIN is loaded and only holds for that BIN.
+ */
+public final class IPFieldDictionary {
+    private final IPField _Field;
+    private final long[] _StringIds; // the string ids passed to a sink, in ascending order
+    private final int[] _Ids; // the id of each string id, as two string ids can hold the same value
+    private final String[] _Values;
+
+    /**
+     * @param field     the column
+     * @param stringids the distinct string ids of the column, in ascending order
+     * @param values    the value of each string id
+     */
+    IPFieldDictionary(IPField field, long[] stringids, String[] values) {
+        _Field = field;
+        _StringIds = stringids;
+        _Ids = new int[stringids.length];
+        final List<String> distinct = new ArrayList<>();
+        final Map<String, Integer> ids = new HashMap<>();
+        for (int x = 0; x < stringids.length; x++) {
+            Integer id = ids.get(values[x]);
+            if (id == null) {
+                id = distinct.size();
+                distinct.add(values[x]);
+                ids.put(values[x], id);
+            }
+            _Ids[x] = id;
+        }
+        _Values = distinct.toArray(new String[0]);
+    }
+
+    /**
+     * @return the column
+     */
+    public IPField getField() {
+        return _Field;
+    }
+
+    /**
+     * @return the number of distinct values, every id is below it
+     */
+    public int size() {
+        return _Values.length;
+    }
+
+    /**
+     * @param id an id
+     * @return its value
+     */
+    public String getValue(int id) {
+        return _Values[id];
+    }
+
+    /**
+     * @param stringid a string id of this column, as passed to an IPResultSink
+     * @return the id of its value, or -1 if it is not a string id of this column
+     */
+    public int getId(long stringid) {
+        int low = 0;
+        int high = _StringIds.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (_StringIds[mid] < stringid) {
+                low = mid + 1;
+            } else if (_StringIds[mid] > stringid) {
+                high = mid - 1;
+            } else {
+                return _Ids[mid];
+            }
+        }
+        return -1;
+    }
+}
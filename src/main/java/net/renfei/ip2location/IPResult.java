@@ -1,7 +1,10 @@
 package net.renfei.ip2location;
 
+import java.util.Set;
+
 public class IPResult {
     static final String NOT_SUPPORTED = "Not_Supported";
+    private static final IPField[] FIELDS = IPField.values();
     String ip_address;
     String country_short;
     String country_long;
@@ -34,17 +37,176 @@ public class IPResult {
     String status;
     boolean delay = false;
     String version = "Version 8.11.2";
+    // numeric lookup key: 4 or 6 once the address is parsed, the IPv4 number is kept in iplow
+    int iptype;
+    long iphigh;
+    long iplow;
+    int row; // the row the address was found in, for the result cache
+    byte addressform; // how the address is reported, see IPAddressParser
+    private String expandedaddress;
+    private LazyRow lazyrow; // the row of a lazy result, until every requested field is decoded, guarded by this
+    // the requested fields not decoded yet, one bit per ordinal, cleared after the field is written so that a getter
+    // on another thread that sees the bit cleared also sees the field
+    private volatile int pending;
 
     IPResult(String ipstring) {
         ip_address = ipstring;
     }
 
+    /**
+     * @return the address as it is reported, an IPv6 address is expanded on first use
+     */
+    String address() {
+        if (addressform == IPAddressParser.AS_GIVEN) {
+            return ip_address;
+        }
+        if (expandedaddress == null) {
+            expandedaddress = IPAddressParser.expand(this);
+        }
+        return expandedaddress;
+    }
+
+    /**
+     * Makes the result decode the requested fields from its row when their getters are first called.
+     *
+     * @param row    the matched row
+     * @param fields the fields to decode
+     */
+    void setLazy(LazyRow row, Set<IPField> fields) {
+        int bits = 0;
+        if (fields.size() == FIELDS.length) {
+            bits = (1 << FIELDS.length) - 1;
+        } else {
+            for (IPField field : fields) {
+                bits |= 1 << field.ordinal();
+            }
+        }
+        lazyrow = (bits != 0) ? row : null;
+        pending = bits;
+    }
+
+    private void load(IPField field) {
+        if ((pending & (1 << field.ordinal())) != 0) {
+            decode(field);
+        }
+    }
+
+    private synchronized void decode(IPField field) {
+        final int bit = 1 << field.ordinal();
+        final int bits = pending;
+        if ((bits & bit) != 0) { // not decoded by another thread meanwhile
+            lazyrow.decode(this, field);
+            if (bits == bit) {
+                lazyrow = null;
+            }
+            pending = bits & ~bit;
+        }
+    }
+
+    private void loadAll() {
+        int bits;
+        while ((bits = pending) != 0) {
+            decode(FIELDS[Integer.numberOfTrailingZeros(bits)]);
+        }
+    }
+
+    /**
+     * Copies the looked up fields of another result for the same row, but not its address.
+     *
+     * @param source the result to copy from
+     */
+    void copyFieldsFrom(IPResult source) {
+        source.loadAll();
+        country_short = source.country_short;
+        country_long = source.country_long;
+        region = source.region;
+        city = source.city;
+        isp = source.isp;
+        latitude = source.latitude;
+        longitude = source.longitude;
+        domain = source.domain;
+        zipcode = source.zipcode;
+        netspeed = source.netspeed;
+        timezone = source.timezone;
+        iddcode = source.iddcode;
+        areacode = source.areacode;
+        weatherstationcode = source.weatherstationcode;
+        weatherstationname = source.weatherstationname;
+        mcc = source.mcc;
+        mnc = source.mnc;
+        mobilebrand = source.mobilebrand;
+        elevation = source.elevation;
+        usagetype = source.usagetype;
+        addresstype = source.addresstype;
+        category = source.category;
+        district = source.district;
+        asn = source.asn;
+        as = source.as;
+        asdomain = source.asdomain;
+        asusagetype = source.asusagetype;
+        ascidr = source.ascidr;
+        status = source.status;
+    }
+
+    /**
+     * Sets a string field by its column.
+     *
+     * @param field the column, not one of the float columns
+     * @param value the value to set
+     */
+    void setString(IPField field, String value) {
+        switch (field) {
+            case COUNTRY_SHORT: country_short = value; break;
+            case COUNTRY_LONG: country_long = value; break;
+            case REGION: region = value; break;
+            case CITY: city = value; break;
+            case ISP: isp = value; break;
+            case DOMAIN: domain = value; break;
+            case ZIPCODE: zipcode = value; break;
+            case TIMEZONE: timezone = value; break;
+            case NETSPEED: netspeed = value; break;
+            case IDDCODE: iddcode = value; break;
+            case AREACODE: areacode = value; break;
+            case WEATHERSTATIONCODE: weatherstationcode = value; break;
+            case WEATHERSTATIONNAME: weatherstationname = value; break;
+            case MCC: mcc = value; break;
+            case MNC: mnc = value; break;
+            case MOBILEBRAND: mobilebrand = value; break;
+            case USAGETYPE: usagetype = value; break;
+            case ADDRESSTYPE: addresstype = value; break;
+            case CATEGORY: category = value; break;
+            case DISTRICT: district = value; break;
+            case ASN: asn = value; break;
+            case AS: as = value; break;
+            case ASDOMAIN: asdomain = value; break;
+            case ASUSAGETYPE: asusagetype = value; break;
+            case ASCIDR: ascidr = value; break;
+            default: throw new IllegalArgumentException(field + " is not a string field");
+        }
+    }
+
+    /**
+     * Sets a float field by its column, rounding coordinates to 6 decimal places.
+     *
+     * @param field LATITUDE, LONGITUDE or ELEVATION
+     * @param value the value as stored in the BIN
+     */
+    void setFloat(IPField field, float value) {
+        switch (field) {
+            case LATITUDE: latitude = IP2Location.roundCoordinate(value); break;
+            case LONGITUDE: longitude = IP2Location.roundCoordinate(value); break;
+            case ELEVATION: elevation = value; break;
+            default: throw new IllegalArgumentException(field + " is not a float field");
+        }
+    }
+
     /**
      * This method to get two-character country code based on ISO 3166.
      *
      * @return the country code
      */
     public String getCountryShort() {
+        load(IPField.COUNTRY_SHORT);
         return country_short;
     }
 
@@ -54,6 +216,7 @@ public class IPResult {
      * @return the country name.
      */
     public String getCountryLong() {
+        load(IPField.COUNTRY_LONG);
         return country_long;
     }
 
@@ -63,6 +226,7 @@ public class IPResult {
      * @return the region or state name.
      */
     public String getRegion() {
+        load(IPField.REGION);
         return region;
     }
 
@@ -72,6 +236,7 @@ public class IPResult {
      * @return the city name.
      */
     public String getCity() {
+        load(IPField.CITY);
         return city;
     }
 
@@ -81,6 +246,7 @@ public class IPResult {
      * @return the ISP name.
      */
     public String getISP() {
+        load(IPField.ISP);
         return isp;
     }
 
@@ -90,6 +256,7 @@ public class IPResult {
      * @return the city latitude.
      */
     public float getLatitude() {
+        load(IPField.LATITUDE);
         return latitude;
     }
 
@@ -99,6 +266,7 @@ public class IPResult {
      * @return the city longitude.
      */
     public float getLongitude() {
+        load(IPField.LONGITUDE);
         return longitude;
     }
 
@@ -108,6 +276,7 @@ public class IPResult {
      * @return the domain name.
      */
     public String getDomain() {
+        load(IPField.DOMAIN);
         return domain;
     }
 
@@ -117,6 +286,7 @@ public class IPResult {
      * @return the ZIP/Postal code.
      */
     public String getZipCode() {
+        load(IPField.ZIPCODE);
         return zipcode;
     }
 
@@ -126,6 +296,7 @@ public class IPResult {
      * @return the time zone.
      */
     public String getTimeZone() {
+        load(IPField.TIMEZONE);
         return timezone;
     }
 
@@ -135,6 +306,7 @@ public class IPResult {
      * @return the net speed
      */
     public String getNetSpeed() {
+        load(IPField.NETSPEED);
         return netspeed;
     }
 
@@ -144,6 +316,7 @@ public class IPResult {
      * @return the idd code
      */
     public String getIDDCode() {
+        load(IPField.IDDCODE);
         return iddcode;
     }
 
@@ -153,6 +326,7 @@ public class IPResult {
      * @return the area code
      */
     public String getAreaCode() {
+        load(IPField.AREACODE);
         return areacode;
     }
 
@@ -162,6 +336,7 @@ public class IPResult {
      * @return the weather station code
      */
     public String getWeatherStationCode() {
+        load(IPField.WEATHERSTATIONCODE);
         return weatherstationcode;
     }
 
@@ -171,6 +346,7 @@ public class IPResult {
      * @return the weather station name
      */
     public String getWeatherStationName() {
+        load(IPField.WEATHERSTATIONNAME);
         return weatherstationname;
     }
 
@@ -180,6 +356,7 @@ public class IPResult {
      * @return the mobile country code
      */
     public String getMCC() {
+        load(IPField.MCC);
         return mcc;
     }
 
@@ -189,6 +366,7 @@ public class IPResult {
      * @return the mobile network code
      */
     public String getMNC() {
+        load(IPField.MNC);
         return mnc;
     }
 
@@ -198,6 +376,7 @@ public class IPResult {
      * @return the mobile brand
      */
     public String getMobileBrand() {
+        load(IPField.MOBILEBRAND);
         return mobilebrand;
     }
 
@@ -207,6 +386,7 @@ public class IPResult {
      * @return the city elevation.
      */
     public float getElevation() {
+        load(IPField.ELEVATION);
         return elevation;
     }
 
@@ -216,6 +396,7 @@ public class IPResult {
      * @return the usage type.
      */
     public String getUsageType() {
+        load(IPField.USAGETYPE);
         return usagetype;
     }
 
@@ -225,6 +406,7 @@ public class IPResult {
      * @return the address type.
      */
     public String getAddressType() {
+        load(IPField.ADDRESSTYPE);
         return addresstype;
     }
 
@@ -234,6 +416,7 @@ public class IPResult {
      * @return the IAB category.
      */
     public String getCategory() {
+        load(IPField.CATEGORY);
         return category;
     }
 
@@ -243,6 +426,7 @@ public class IPResult {
      * @return the district.
      */
     public String getDistrict() {
+        load(IPField.DISTRICT);
         return district;
     }
 
@@ -252,6 +436,7 @@ public class IPResult {
      * @return the ASN.
      */
     public String getASN() {
+        load(IPField.ASN);
         return asn;
     }
 
@@ -261,6 +446,7 @@ public class IPResult {
      * @return the AS.
      */
     public String getAS() {
+        load(IPField.AS);
         return as;
     }
 
@@ -270,6 +456,7 @@ public class IPResult {
      * @return the AS domain.
      */
     public String getASDomain() {
+        load(IPField.ASDOMAIN);
         return asdomain;
     }
 
@@ -279,6 +466,7 @@ public class IPResult {
      * @return the AS usage type.
      */
     public String getASUsageType() {
+        load(IPField.ASUSAGETYPE);
         return asusagetype;
     }
 
@@ -288,6 +476,7 @@ public class IPResult {
      * @return the AS CIDR.
      */
     public String getASCIDR() {
+        load(IPField.ASCIDR);
         return ascidr;
     }
 
@@ -324,9 +513,10 @@ public class IPResult {
      * @return the result in a formatted string.
      */
     public String toString() {
+        loadAll();
         String NL = System.getProperty("line.separator");
         StringBuffer buf = new StringBuffer("IP2LocationRecord:" + NL);
-        buf.append("\tIP Address = " + ip_address + NL);
+        buf.append("\tIP Address = " + address() + NL);
         buf.append("\tCountry Short = " + country_short + NL);
         buf.append("\tCountry Long = " + country_long + NL);
         buf.append("\tRegion = " + region + NL);
@@ -0,0 +1,47 @@
+package net.renfei.ip2location;
+
+/**
+ * Receives the fields of a lookup as primitives, for loops that reuse one sink per thread and must not allocate.
+ * <p>
+ * Pass a sink to IPQuery instead of taking an IPResult. Only the fields the BIN has are passed, in column order, and
+ * only when a row was found. With UseMemoryMappedFile or UseInMemoryColumns, neither the lookup nor the calls
+ * allocate. Every method does nothing by default, so override only the ones you need.
+ */
+public interface IPResultSink {
+    /**
+     * @param code The two-letter country code packed in an int, the first letter in bits 8 to 15 and the second in
+     *             bits 0 to 7, or '-' alone when the country is not known
+     */
+    default void country(int code) {
+    }
+
+    /**
+     * @param latitude  The city latitude as stored in the BIN, not rounded to 6 decimal places like IPResult does
+     * @param longitude The city longitude as stored in the BIN, not rounded to 6 decimal places like IPResult does
+     */
+    default void coordinates(float latitude, float longitude) {
+    }
+
+    /**
+     * @param elevation The average height of the city above sea level in meters
+     */
+    default void elevation(float elevation) {
+    }
+
+    /**
+     * @param asn The autonomous system number, or -1 when it is not known
+     */
+    default void asn(long asn) {
+    }
+
+    /**
+     * Receives every string field, including the country and the ASN, as an id that IP2Location.GetString turns
+     * into its text. Equal ids stand for equal strings, and the ids stay the same for as long as the same BIN is
+     * loaded with the same settings.
+     *
+     * @param field The field
+     * @param id    The id of its value
+     */
+    default void string(IPField field, long id) {
+    }
+}
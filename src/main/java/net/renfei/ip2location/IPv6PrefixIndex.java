@@ -0,0 +1,152 @@
+package net.renfei.ip2location;
+
+/**
+ * Row bounds for the IPv6 /32 prefixes that ranges start in, and for the /48 prefixes inside the busiest of them,
+ * built when the BIN is loaded.
+ * <p>
+ * Nearly all IPv6 ranges sit inside 2000::/3, which the /16 index stored in the BIN splits into only a few buckets
+ * with many thousands of rows each. The bounds are kept in open addressing hash maps of primitive longs, so a
+ * lookup is one or two probes into flat arrays. A prefix that no range starts in lies inside a single row and is not
+ * stored; such addresses fall back to the index of the BIN.
+ */
+// package-private access
+final class IPv6PrefixIndex {
+    /**
+     * Returned by bounds when the prefix index does not know the address.
+     */
+    static final long NONE = -1L;
+    // a /32 with more rows than this also gets its /48 prefixes indexed
+    private static final int SPLIT_ROWS = 64;
+
+    /**
+     * An open addressing map from a prefix to the first and last row packed in a long.
+     */
+    private static final class PrefixMap {
+        private long[] _Keys = new long[1 << 10]; // the prefix + 1, 0 for an empty slot
+        private long[] _Values = new long[1 << 10];
+        private int _Size = 0;
+
+        long get(long prefix) {
+            final long key = prefix + 1;
+            final int mask = _Keys.length - 1;
+            int slot = slot(key, mask);
+            long found;
+            while ((found = _Keys[slot]) != 0) {
+                if (found == key) {
+                    return _Values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return NONE;
+        }
+
+        void put(long prefix, long value) {
+            if (++_Size > (_Keys.length >> 1)) {
+                grow();
+            }
+            insert(_Keys, _Values, prefix + 1, value);
+        }
+
+        long size() {
+            return (long) _Keys.length << 4;
+        }
+
+        private void grow() {
+            final long[] keys = new long[_Keys.length << 1];
+            final long[] values = new long[_Keys.length << 1];
+            for (int x = 0; x < _Keys.length; x++) {
+                if (_Keys[x] != 0) {
+                    insert(keys, values, _Keys[x], _Values[x]);
+                }
+            }
+            _Keys = keys;
+            _Values = values;
+        }
+
+        private static void insert(long[] keys, long[] values, long key, long value) {
+            final int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        private static int slot(long key, int mask) {
+            final long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+
+    private final PrefixMap _Prefix32 = new PrefixMap();
+    private final PrefixMap _Prefix48 = new PrefixMap();
+
+    /**
+     * @param ipfromhigh the upper 64 bits of the IP From of every row, in row order
+     * @param ipfromlow  the lower 64 bits of the IP From of every row, in row order
+     */
+    IPv6PrefixIndex(long[] ipfromhigh, long[] ipfromlow) {
+        final int rows = ipfromhigh.length;
+        int first = 0;
+        while (first < rows) {
+            // the rows that start inside this /32
+            final long prefix = ipfromhigh[first] >>> 32;
+            int last = first;
+            while (last + 1 < rows && (ipfromhigh[last + 1] >>> 32) == prefix) {
+                last++;
+            }
+            // unless a row starts exactly on the prefix, its first address is still in the row before
+            final boolean aligned = (ipfromhigh[first] << 32) == 0 && ipfromlow[first] == 0;
+            final int low = (aligned || first == 0) ? first : first - 1;
+            _Prefix32.put(prefix, pack(low, last));
+
+            if (last - low > SPLIT_ROWS) {
+                index48(ipfromhigh, ipfromlow, first, last);
+            }
+            first = last + 1;
+        }
+    }
+
+    private void index48(long[] ipfromhigh, long[] ipfromlow, int from, int to) {
+        int first = from;
+        while (first <= to) {
+            final long prefix = ipfromhigh[first] >>> 16;
+            int last = first;
+            while (last + 1 <= to && (ipfromhigh[last + 1] >>> 16) == prefix) {
+                last++;
+            }
+            final boolean aligned = (ipfromhigh[first] << 48) == 0 && ipfromlow[first] == 0;
+            final int low = (aligned || first == 0) ? first : first - 1;
+            _Prefix48.put(prefix, pack(low, last));
+            first = last + 1;
+        }
+    }
+
+    /**
+     * @param iphigh the upper 64 bits of the IPv6 address
+     * @return the first row that can hold the address in the upper 32 bits and the last one in the lower 32 bits,
+     * or NONE if no range starts in its /32
+     */
+    long bounds(long iphigh) {
+        final long bounds = _Prefix32.get(iphigh >>> 32);
+        if (bounds != NONE && (int) bounds - (int) (bounds >>> 32) > SPLIT_ROWS) {
+            final long narrower = _Prefix48.get(iphigh >>> 16);
+            if (narrower != NONE) {
+                return narrower;
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * @return the heap taken by the maps in bytes
+     */
+    long size() {
+        return _Prefix32.size() + _Prefix48.size();
+    }
+
+    private static long pack(int low, int high) {
+        return ((long) low << 32) | (high & 0xffffffffL);
+    }
+}
@@ -0,0 +1,353 @@
+package net.renfei.ip2location;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The whole BIN decoded into primitive columns when it is loaded, so that lookups never touch the file, its mapped
+ * buffers or the string and float decoding of a row.
+ * <p>
+ * Every row keeps its IP From and, for each column the BIN has, either an id into one table of distinct strings
+ * or the float value as IPQuery returns it. Strings are deduplicated by their offset in the BIN and then by value.
+ */
+// package-private access
+final class InMemoryColumns {
+    private static final IPField[] FIELDS = IPField.values();
+    private static final long MAX_IPV4_NO = 4294967295L;
+
+    /**
+     * Decodes a string at an offset in the BIN.
+     */
+    interface StringReader {
+        String read(long position) throws IOException;
+    }
+
+    /**
+     * The rows of one address family.
+     */
+    static final class Table {
+        final int rows;
+        final int[] ipfrom; // IPv4 IP From as an unsigned int, null for IPv6
+        final long[] ipfromhigh; // IPv6 IP From, null for IPv4
+        final long[] ipfromlow;
+        final int[][] ids = new int[FIELDS.length][]; // string ids by field, null when the BIN does not have it
+        final float[][] floats = new float[FIELDS.length][]; // values of the float fields, null when the BIN does not have it
+
+        /**
+         * @param rows    the number of rows, including the last one that only holds an upper bound
+         * @param ipv6    true for the IPv6 rows
+         * @param present the fields the BIN has
+         */
+        Table(int rows, boolean ipv6, Set<IPField> present) {
+            this.rows = rows;
+            ipfrom = ipv6 ? null : new int[rows];
+            ipfromhigh = ipv6 ? new long[rows] : null;
+            ipfromlow = ipv6 ? new long[rows] : null;
+            for (IPField field : present) {
+                if (isFloat(field)) {
+                    floats[field.ordinal()] = new float[rows];
+                } else {
+                    ids[field.ordinal()] = new int[rows];
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the distinct strings while the rows are decoded.
+     */
+    static final class Builder {
+        private final StringReader _Reader;
+        private final List<String> _Strings = new ArrayList<>();
+        private final Map<String, Integer> _Ids = new HashMap<>();
+        // open addressing map from BIN offset + 1 to string id, so every offset is decoded only once
+        private long[] _Keys = new long[1 << 12];
+        private int[] _Values = new int[1 << 12];
+        private int _Size = 0;
+
+        Builder(StringReader reader) {
+            _Reader = reader;
+        }
+
+        /**
+         * @param position the offset of the string in the BIN
+         * @return the id of the string
+         * @throws IOException If an input or output exception occurred
+         */
+        int id(long position) throws IOException {
+            final long key = position + 1;
+            int slot = slot(key, _Keys.length);
+            while (_Keys[slot] != 0) {
+                if (_Keys[slot] == key) {
+                    return _Values[slot];
+                }
+                slot = (slot + 1) & (_Keys.length - 1);
+            }
+
+            final String value = _Reader.read(position);
+            Integer id = _Ids.get(value);
+            if (id == null) {
+                id = _Strings.size();
+                _Strings.add(value);
+                _Ids.put(value, id);
+            }
+            _Keys[slot] = key;
+            _Values[slot] = id;
+            if (++_Size > (_Keys.length >> 1)) {
+                grow();
+            }
+            return id;
+        }
+
+        /**
+         * @param id a string id
+         * @return the string
+         */
+        String value(int id) {
+            return _Strings.get(id);
+        }
+
+        private void grow() {
+            final long[] keys = _Keys;
+            final int[] values = _Values;
+            _Keys = new long[keys.length << 1];
+            _Values = new int[keys.length << 1];
+            for (int x = 0; x < keys.length; x++) {
+                if (keys[x] != 0) {
+                    int slot = slot(keys[x], _Keys.length);
+                    while (_Keys[slot] != 0) {
+                        slot = (slot + 1) & (_Keys.length - 1);
+                    }
+                    _Keys[slot] = keys[x];
+                    _Values[slot] = values[x];
+                }
+            }
+        }
+
+        private static int slot(long key, int length) {
+            final long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash >>> 32) & (length - 1);
+        }
+    }
+
+    private final String[] _Strings;
+    private final Table _IPv4;
+    private final Table _IPv6;
+
+    /**
+     * @param builder the strings collected while decoding the rows
+     * @param ipv4    the IPv4 rows
+     * @param ipv6    the IPv6 rows, null for an IPv4-only BIN
+     */
+    InMemoryColumns(Builder builder, Table ipv4, Table ipv6) {
+        _Strings = builder._Strings.toArray(new String[0]);
+        _IPv4 = ipv4;
+        _IPv6 = ipv6;
+    }
+
+    static boolean isFloat(IPField field) {
+        return field == IPField.LATITUDE || field == IPField.LONGITUDE || field == IPField.ELEVATION;
+    }
+
+    /**
+     * Looks up a parsed address and fills in the requested fields, the status is set to OK when a row is found.
+     *
+     * @param record the result, with its key already parsed
+     * @param fields the fields to fill in
+     * @param low    the first row that can hold the address
+     * @param high   the last row that can hold the address
+     */
+    void search(final IPResult record, final Set<IPField> fields, final long low, final long high) {
+        final int row = (record.iptype == 4) ? searchIPv4(record.iplow, (int) low, (int) high) : searchIPv6(record.iphigh, record.iplow, (int) low, (int) high);
+        if (row >= 0) {
+            readRecord(record, (record.iptype == 4) ? _IPv4 : _IPv6, row, fields);
+            record.row = row;
+            record.status = "OK";
+        }
+    }
+
+    private int searchIPv4(long ipno, int low, int high) {
+        final int[] ipfrom = _IPv4.ipfrom;
+        final int rows = _IPv4.rows;
+
+        if (ipno == MAX_IPV4_NO) {
+            ipno--;
+        }
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long from = (mid < rows) ? ipfrom[mid] & 0xffffffffL : MAX_IPV4_NO;
+            final long to = (mid + 1 < rows) ? ipfrom[mid + 1] & 0xffffffffL : 0;
+
+            if (ipno >= from && ipno < to) {
+                return mid;
+            } else if (ipno < from) {
+                high = mid - 1;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return -1;
+    }
+
+    private int searchIPv6(final long iphigh, long iplow, int low, int high) {
+        final long[] fromhigh = _IPv6.ipfromhigh;
+        final long[] fromlow = _IPv6.ipfromlow;
+        final int rows = _IPv6.rows;
+
+        if (iphigh == -1L && iplow == -1L) { // the last address is treated as the one before it
+            iplow--;
+        }
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+
+            if (mid >= rows || compare(iphigh, iplow, fromhigh[mid], fromlow[mid]) < 0) {
+                high = mid - 1;
+            } else if (mid + 1 < rows && compare(iphigh, iplow, fromhigh[mid + 1], fromlow[mid + 1]) < 0) {
+                return mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param ipv6 true for the IPv6 rows
+     * @return the rows of the address family, null for IPv6 in an IPv4-only BIN
+     */
+    Table table(boolean ipv6) {
+        return ipv6 ? _IPv6 : _IPv4;
+    }
+
+    /**
+     * Fills in the requested fields from a row, marking the fields the BIN does not have as not supported.
+     *
+     * @param record the result to fill
+     * @param table  the rows of the address family
+     * @param row    the row
+     * @param fields the fields to fill in
+     */
+    void readRecord(final IPResult record, final Table table, final int row, final Set<IPField> fields) {
+        for (IPField field : FIELDS) {
+            final int x = field.ordinal();
+            if (table.ids[x] != null) {
+                if (fields.contains(field)) {
+                    record.setString(field, _Strings[table.ids[x][row]]);
+                }
+            } else if (table.floats[x] != null) {
+                if (fields.contains(field)) {
+                    record.setFloat(field, table.floats[x][row]);
+                }
+            } else if (isFloat(field)) {
+                record.setFloat(field, 0.0F);
+            } else {
+                record.setString(field, IPResult.NOT_SUPPORTED);
+            }
+        }
+    }
+
+    /**
+     * Passes a row to a sink, the string ids are indexes into the table of distinct strings.
+     *
+     * @param sink  the sink
+     * @param table the rows of the address family
+     * @param row   the row
+     */
+    void write(final IPResultSink sink, final Table table, final int row) {
+        for (IPField field : FIELDS) {
+            final int x = field.ordinal();
+            if (table.ids[x] != null) {
+                final int id = table.ids[x][row];
+                if (field == IPField.COUNTRY_SHORT) {
+                    sink.country(countryCode(_Strings[id]));
+                } else if (field == IPField.ASN) {
+                    sink.asn(asn(_Strings[id]));
+                }
+                sink.string(field, id);
+            } else if (table.floats[x] != null) {
+                if (field == IPField.LONGITUDE) {
+                    final float[] latitudes = table.floats[IPField.LATITUDE.ordinal()];
+                    sink.coordinates((latitudes != null) ? latitudes[row] : 0.0F, table.floats[x][row]);
+                } else if (field == IPField.ELEVATION) {
+                    sink.elevation(table.floats[x][row]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param field a string column
+     * @return the distinct string ids of the column in ascending order, as passed to a sink
+     */
+    long[] stringIds(final IPField field) {
+        final boolean[] seen = new boolean[_Strings.length];
+        int count = 0;
+        for (Table table : new Table[]{_IPv4, _IPv6}) {
+            if (table != null && table.ids[field.ordinal()] != null) {
+                for (int id : table.ids[field.ordinal()]) {
+                    if (!seen[id]) {
+                        seen[id] = true;
+                        count++;
+                    }
+                }
+            }
+        }
+        final long[] result = new long[count];
+        count = 0;
+        for (int id = 0; id < seen.length; id++) {
+            if (seen[id]) {
+                result[count++] = id;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of distinct strings
+     */
+    int stringCount() {
+        return _Strings.length;
+    }
+
+    /**
+     * @param id a string id passed to a sink
+     * @return the string, null if there is no such id
+     */
+    String string(final long id) {
+        return (id >= 0 && id < _Strings.length) ? _Strings[(int) id] : null;
+    }
+
+    private static int countryCode(final String value) {
+        int code = 0;
+        for (int x = 0; value != null && x < value.length() && x < 4; x++) {
+            code = (code << 8) | (value.charAt(x) & 0xff);
+        }
+        return code;
+    }
+
+    private static long asn(final String value) {
+        if (value == null || value.isEmpty() || value.length() > 18) {
+            return -1;
+        }
+        long result = 0;
+        for (int x = 0; x < value.length(); x++) {
+            final char c = value.charAt(x);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private static int compare(final long ahigh, final long alow, final long bhigh, final long blow) {
+        final int result = Long.compareUnsigned(ahigh, bhigh);
+        return (result != 0) ? result : Long.compareUnsigned(alow, blow);
+    }
+}
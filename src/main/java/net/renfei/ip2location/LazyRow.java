@@ -0,0 +1,56 @@
+package net.renfei.ip2location;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The matched row of a lazy result, see IP2Location.UseLazyResults.
+ * <p>
+ * Only the memory mapped buffers, the offset of the row and the layout of the BIN are kept. The buffers stay mapped
+ * for as long as they are referenced and the layout never changes, so a result can still be read after its
+ * IP2Location has been closed, opened on another BIN or replaced by a reload.
+ */
+// package-private access
+final class LazyRow {
+    private final RowLayout _Layout;
+    private final ByteBuffer _RowBuffer;
+    private final int _RowOffset;
+    private final MappedRegion _DataBuffer;
+
+    LazyRow(RowLayout layout, ByteBuffer rowbuffer, int rowoffset, MappedRegion databuffer) {
+        _Layout = layout;
+        _RowBuffer = rowbuffer;
+        _RowOffset = rowoffset;
+        _DataBuffer = databuffer;
+    }
+
+    /**
+     * Decodes the field as IP2Location does for an eager result.
+     *
+     * @param record the result to set the field of
+     * @param field  the field to decode
+     */
+    void decode(IPResult record, IPField field) {
+        final int offset = _Layout.columnOffset(field);
+        if (offset < 0) { // already marked as not supported when the result was created
+            return;
+        }
+        switch (field) {
+            case LATITUDE:
+            case LONGITUDE:
+                record.setFloat(field, _RowBuffer.getFloat(_RowOffset + offset));
+                break;
+            case ELEVATION:
+                record.setFloat(field, IP2Location.convertFloat(_Layout.readStr(position(offset), _DataBuffer)));
+                break;
+            case COUNTRY_LONG:
+                record.setString(field, _Layout.readStr(position(offset) + 3, _DataBuffer));
+                break;
+            default:
+                record.setString(field, _Layout.readStr(position(offset), _DataBuffer));
+        }
+    }
+
+    private long position(int offset) {
+        return _RowBuffer.getInt(_RowOffset + offset) & 0xffffffffL; // simulate unsigned int by using long
+    }
+}
@@ -0,0 +1,117 @@
+package net.renfei.ip2location;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory mapping of a region of the BIN, addressed with long offsets.
+ * <p>
+ * A single MappedByteBuffer holds at most 2 GB, so the region is mapped in chunks. Each chunk also maps the first
+ * OVERLAP bytes of the chunk after it, so a row, the IP From of the row after it, or a string starting in a chunk
+ * can always be read from that chunk alone with int offsets. A region smaller than one chunk is a single mapping,
+ * read the same way as before.
+ * <p>
+ * A BIN opened from a byte array is read the same way, from a single slice of the buffer that holds it.
+ */
+// package-private access
+final class MappedRegion {
+    /**
+     * The default chunk size of 1 GB, which keeps every mapping with its overlap below 2 GB.
+     */
+    static final int CHUNK_BITS = 30;
+
+    /**
+     * More than two rows of the widest BIN, and more than the longest string with its length byte.
+     */
+    static final int OVERLAP = 1024;
+
+    private final ByteBuffer[] _Chunks;
+    private final boolean _Mapped;
+    private final int _ChunkBits;
+    private final long _ChunkMask;
+    private final long _Size;
+
+    /**
+     * @param channel   the BIN
+     * @param offset    the offset of the region in the BIN
+     * @param size      the size of the region in bytes
+     * @param chunkbits the size of a chunk as a power of two, at most CHUNK_BITS
+     * @throws IOException If the region cannot be mapped
+     */
+    MappedRegion(FileChannel channel, long offset, long size, int chunkbits) throws IOException {
+        final long chunksize = 1L << chunkbits;
+        final int count = (int) Math.max(1, (size + chunksize - 1) >>> chunkbits);
+        _Chunks = new MappedByteBuffer[count];
+        for (int x = 0; x < count; x++) {
+            final long start = (long) x << chunkbits;
+            final MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(chunksize + OVERLAP, size - start));
+            chunk.order(ByteOrder.LITTLE_ENDIAN);
+            _Chunks[x] = chunk;
+        }
+        _Mapped = true;
+        _ChunkBits = chunkbits;
+        _ChunkMask = chunksize - 1;
+        _Size = size;
+    }
+
+    /**
+     * @param buffer the whole BIN, on the heap or in a direct buffer
+     * @param offset the offset of the region in the BIN
+     * @param size   the size of the region in bytes
+     */
+    MappedRegion(ByteBuffer buffer, long offset, long size) {
+        final ByteBuffer slice = buffer.duplicate();
+        // through Buffer so that it also runs on Java 8
+        ((Buffer) slice).limit((int) (offset + size));
+        ((Buffer) slice).position((int) offset);
+        _Chunks = new ByteBuffer[]{slice.slice().order(ByteOrder.LITTLE_ENDIAN)};
+        _Mapped = false; // a direct buffer is a MappedByteBuffer too, but cannot be loaded on Java 8
+        _ChunkBits = 31; // every offset in a buffer is below 2 GB
+        _ChunkMask = Integer.MAX_VALUE;
+        _Size = size;
+    }
+
+    /**
+     * @param position an offset in the region
+     * @return the chunk to read the bytes at position from, at the offset returned by offset(position)
+     */
+    ByteBuffer chunk(long position) {
+        return _Chunks[(int) (position >>> _ChunkBits)];
+    }
+
+    /**
+     * @param position an offset in the region
+     * @return the offset of position in its chunk
+     */
+    int offset(long position) {
+        return (int) (position & _ChunkMask);
+    }
+
+    int getInt(long position) {
+        return chunk(position).getInt(offset(position));
+    }
+
+    long getLong(long position) {
+        return chunk(position).getLong(offset(position));
+    }
+
+    long size() {
+        return _Size;
+    }
+
+    /**
+     * Loads every mapped chunk into physical memory, see MappedByteBuffer.load.
+     */
+    void load() {
+        if (!_Mapped) {
+            return;
+        }
+        for (ByteBuffer chunk : _Chunks) {
+            ((MappedByteBuffer) chunk).load();
+        }
+    }
+}
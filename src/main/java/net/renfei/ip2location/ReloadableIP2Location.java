@@ -0,0 +1,537 @@
+package net.renfei.ip2location;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * An IP2Location that can switch to a new BIN while other threads keep querying it.
+ * <p>
+ * Calling Close and Open on a shared IP2Location clears its state under the feet of the threads inside IPQuery.
+ * Here every BIN is opened, indexed and mapped in a fresh IP2Location that is never changed again, and then
+ * published with a single atomic swap. Each query holds a reference count on the instance it started with, so
+ * in-flight queries finish against the old BIN, and the old instance is closed by whichever thread leaves it last.
+ * Queries take no lock: they only read the current instance and increment and decrement its count.
+ */
+public class ReloadableIP2Location {
+    private final Supplier<IP2Location> _Factory;
+    private final AtomicReference<Snapshot> _Current;
+
+    /**
+     * One opened BIN and the number of queries using it, plus one while it is the current instance.
+     */
+    private static final class Snapshot {
+        private final IP2Location _Location;
+        private final AtomicInteger _References = new AtomicInteger(1);
+
+        Snapshot(IP2Location location) {
+            _Location = location;
+        }
+
+        /**
+         * @return false if the instance has already been closed
+         */
+        boolean acquire() {
+            int references;
+            do {
+                references = _References.get();
+                if (references == 0) {
+                    return false;
+                }
+            } while (!_References.compareAndSet(references, references + 1));
+            return true;
+        }
+
+        void release() {
+            if (_References.decrementAndGet() == 0) {
+                _Location.Close();
+            }
+        }
+    }
+
+    /**
+     * Creates a component with the default settings, queries report MISSING_FILE until a BIN is opened.
+     */
+    public ReloadableIP2Location() {
+        this(IP2Location::new);
+    }
+
+    /**
+     * Creates a component that opens every BIN in an instance from the factory, so that the settings such as
+     * UseMemoryMappedFile or the in-memory indexes can be chosen. The factory must return a new instance on every call.
+     *
+     * @param factory Creates the unopened IP2Location for each BIN
+     */
+    public ReloadableIP2Location(Supplier<IP2Location> factory) {
+        _Factory = factory;
+        _Current = new AtomicReference<>(new Snapshot(empty()));
+    }
+
+    /**
+     * This function loads a BIN, see Reload.
+     *
+     * @param DBPath The full path to the IP2Location BIN database file
+     * @throws IOException If an input or output exception occurred
+     */
+    public void Open(String DBPath) throws IOException {
+        Reload(DBPath);
+    }
+
+    /**
+     * This function opens a BIN and every index the settings ask for in a new instance, reads the whole BIN once so
+     * that it is in the page cache, then switches the queries to it. It runs on the calling thread, so call it from
+     * a background thread to keep it off the query path. If the BIN cannot be read, the current one stays in use.
+     *
+     * @param DBPath The full path to the IP2Location BIN database file
+     * @throws IOException If an input or output exception occurred
+     */
+    public void Reload(String DBPath) throws IOException {
+        final IP2Location location = _Factory.get();
+        try {
+            location.Open(DBPath);
+            // map and read the whole BIN now, rather than in the first queries after the swap
+            if (!location.WarmUp()) {
+                throw new IOException("Cannot read the IP2Location BIN file " + DBPath);
+            }
+        } catch (IOException | RuntimeException e) {
+            location.Close();
+            throw e;
+        }
+        Publish(location);
+    }
+
+    /**
+     * This function runs Reload on an executor.
+     *
+     * @param DBPath   The full path to the IP2Location BIN database file
+     * @param executor The executor to load the BIN on
+     * @return Completes when the queries use the new BIN, or exceptionally if it cannot be read
+     */
+    public CompletableFuture<Void> ReloadAsync(String DBPath, Executor executor) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                Reload(DBPath);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * This function switches the queries to an IP2Location that has already been opened. The instance must not be
+     * used or changed elsewhere afterwards, it is closed once it has been replaced and its last query has finished.
+     *
+     * @param location The opened IP2Location
+     */
+    public void Publish(IP2Location location) {
+        _Current.getAndSet(new Snapshot(location)).release();
+    }
+
+    /**
+     * This function closes the current BIN once its in-flight queries have finished, later queries report MISSING_FILE.
+     */
+    public void Close() {
+        Publish(empty());
+    }
+
+    /**
+     * This function returns the package version of the current BIN.
+     *
+     * @return Package version
+     */
+    public String GetPackageVersion() {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.GetPackageVersion();
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function returns the IP database version of the current BIN.
+     *
+     * @return IP database version
+     */
+    public String GetDatabaseVersion() {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.GetDatabaseVersion();
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data.
+     *
+     * @param IPAddress IP Address you wish to query
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(String IPAddress) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPAddress);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data, decoding only the requested fields.
+     *
+     * @param IPAddress IP Address you wish to query
+     * @param fields    The fields to decode
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(String IPAddress, Set<IPField> fields) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPAddress, fields);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for an address in network byte order.
+     *
+     * @param IPAddress The 4 bytes of an IPv4 address or the 16 bytes of an IPv6 address
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(byte[] IPAddress) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPAddress);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for an address in network byte order, decoding only the requested fields.
+     *
+     * @param IPAddress The 4 bytes of an IPv4 address or the 16 bytes of an IPv6 address
+     * @param fields    The fields to decode
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(byte[] IPAddress, Set<IPField> fields) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPAddress, fields);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for an InetAddress. The address is never resolved.
+     *
+     * @param IPAddress IP Address you wish to query
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(InetAddress IPAddress) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPAddress);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for an InetAddress, decoding only the requested fields.
+     *
+     * @param IPAddress IP Address you wish to query
+     * @param fields    The fields to decode
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(InetAddress IPAddress, Set<IPField> fields) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPAddress, fields);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for an IPv4 address held in an int.
+     *
+     * @param IPv4Address The address, with its first octet in the highest byte
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(int IPv4Address) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPv4Address);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for an IPv4 address held in an int, decoding only the requested fields.
+     *
+     * @param IPv4Address The address, with its first octet in the highest byte
+     * @param fields      The fields to decode
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(int IPv4Address, Set<IPField> fields) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPv4Address, fields);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for an IPv6 address held in two longs.
+     *
+     * @param IPv6High The upper 64 bits of the address
+     * @param IPv6Low  The lower 64 bits of the address
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(long IPv6High, long IPv6Low) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPv6High, IPv6Low);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for an IPv6 address held in two longs, decoding only the requested fields.
+     *
+     * @param IPv6High The upper 64 bits of the address
+     * @param IPv6Low  The lower 64 bits of the address
+     * @param fields   The fields to decode
+     * @return IP2Location data
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult IPQuery(long IPv6High, long IPv6Low, Set<IPField> fields) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPv6High, IPv6Low, fields);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data into a sink instead of a new IPResult, see IPResultSink.
+     *
+     * @param IPAddress IP Address you wish to query
+     * @param sink      Receives the fields when the address is found
+     * @return The status, as IPResult.getStatus would return it
+     * @throws IOException If an input or output exception occurred
+     */
+    public String IPQuery(String IPAddress, IPResultSink sink) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPAddress, sink);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for an address in network byte order into a sink.
+     *
+     * @param IPAddress The 4 bytes of an IPv4 address or the 16 bytes of an IPv6 address
+     * @param sink      Receives the fields when the address is found
+     * @return The status, as IPResult.getStatus would return it
+     * @throws IOException If an input or output exception occurred
+     */
+    public String IPQuery(byte[] IPAddress, IPResultSink sink) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPAddress, sink);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for an IPv4 address held in an int into a sink.
+     *
+     * @param IPv4Address The address, with its first octet in the highest byte
+     * @param sink        Receives the fields when the address is found
+     * @return The status, as IPResult.getStatus would return it
+     * @throws IOException If an input or output exception occurred
+     */
+    public String IPQuery(int IPv4Address, IPResultSink sink) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPv4Address, sink);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for an IPv6 address held in two longs into a sink.
+     *
+     * @param IPv6High The upper 64 bits of the address
+     * @param IPv6Low  The lower 64 bits of the address
+     * @param sink     Receives the fields when the address is found
+     * @return The status, as IPResult.getStatus would return it
+     * @throws IOException If an input or output exception occurred
+     */
+    public String IPQuery(long IPv6High, long IPv6Low, IPResultSink sink) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPv6High, IPv6Low, sink);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function returns the dictionary of a string column of the current BIN, see IP2Location.GetDictionary.
+     * Its ids are only valid for that BIN: after a reload, take the dictionary again before reading new ids.
+     *
+     * @param Field A string column
+     * @return The dictionary, or null if the current BIN has none for the column
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPFieldDictionary GetDictionary(IPField Field) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.GetDictionary(Field);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function looks up the value of one string column as the id of its dictionary in the current BIN, see
+     * IP2Location.IPQueryId.
+     *
+     * @param IPAddress IP Address you wish to query
+     * @param Field     A string column
+     * @return The id of the value in the dictionary of the column, or -1 if the address is not valid or not found,
+     * or the column has no dictionary
+     * @throws IOException If an input or output exception occurred
+     */
+    public int IPQueryId(String IPAddress, IPField Field) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQueryId(IPAddress, Field);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for many addresses at once, all against the same BIN.
+     *
+     * @param IPAddresses IP Addresses you wish to query
+     * @return IP2Location data, in the same order as the addresses
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult[] IPQuery(String[] IPAddresses) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPAddresses);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for many addresses at once, all against the same BIN.
+     *
+     * @param IPAddresses IP Addresses you wish to query
+     * @param fields      The fields to decode
+     * @return IP2Location data, in the same order as the addresses
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult[] IPQuery(String[] IPAddresses, Set<IPField> fields) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQuery(IPAddresses, fields);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for many addresses in parallel on the common ForkJoinPool, all
+     * against the same BIN.
+     *
+     * @param IPAddresses IP Addresses you wish to query
+     * @return IP2Location data, in the same order as the addresses
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult[] IPQueryParallel(String[] IPAddresses) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQueryParallel(IPAddresses);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * This function to query IP2Location data for many addresses in parallel, all against the same BIN.
+     *
+     * @param IPAddresses IP Addresses you wish to query
+     * @param fields      The fields to decode
+     * @param pool        The pool to run the lookups on
+     * @return IP2Location data, in the same order as the addresses
+     * @throws IOException If an input or output exception occurred
+     */
+    public IPResult[] IPQueryParallel(String[] IPAddresses, Set<IPField> fields, ForkJoinPool pool) throws IOException {
+        final Snapshot snapshot = acquire();
+        try {
+            return snapshot._Location.IPQueryParallel(IPAddresses, fields, pool);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * @return the current instance with its count taken, to be released after the query
+     */
+    private Snapshot acquire() {
+        while (true) {
+            final Snapshot snapshot = _Current.get();
+            if (snapshot.acquire()) {
+                return snapshot;
+            }
+            // replaced and closed between the read and the count, the next read sees its successor
+        }
+    }
+
+    /**
+     * @return an instance without a BIN, its queries report MISSING_FILE
+     */
+    private static IP2Location empty() {
+        final IP2Location location = new IP2Location();
+        try {
+            location.Open(new byte[0]);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // an empty array is never read
+        }
+        return location;
+    }
+}
@@ -0,0 +1,152 @@
+package net.renfei.ip2location;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, lock-free cache of looked up results keyed by the range of the row they came from, so that every
+ * address inside a cached range is a hit and not only the address that was looked up first.
+ * <p>
+ * A range is filed under the /24 prefix (IPv4) or the /64 prefix (IPv6) of the address that was looked up, in a
+ * set of four entries. A range wider than the prefix is filed again under every other prefix it is hit through, and
+ * the narrow ranges inside one prefix share its set. Each set evicts with the CLOCK policy: a hit marks its entry,
+ * and an insert clears the marks it passes over and replaces the first entry that was not hit since the hand last
+ * went by, so ranges that are looked up only once go before the ones that keep being hit. Entries are immutable,
+ * so readers never need a lock, and the marks and hands are only hints that a lost write does no harm to.
+ */
+// package-private access
+final class ResultCache {
+    private static final int WAYS = 4;
+
+    private static final class Entry {
+        final boolean ipv6;
+        final long fromhigh; // the range is [from, to), IPv4 only uses the low halves
+        final long fromlow;
+        final long tohigh;
+        final long tolow;
+        final Set<IPField> fields;
+        final IPResult result;
+
+        Entry(boolean ipv6, long fromhigh, long fromlow, long tohigh, long tolow, Set<IPField> fields, IPResult result) {
+            this.ipv6 = ipv6;
+            this.fromhigh = fromhigh;
+            this.fromlow = fromlow;
+            this.tohigh = tohigh;
+            this.tolow = tolow;
+            this.fields = fields;
+            this.result = result;
+        }
+
+        boolean contains(IPResult record) {
+            if (ipv6) {
+                return record.iptype == 6 && compare(record.iphigh, record.iplow, fromhigh, fromlow) >= 0 && compare(record.iphigh, record.iplow, tohigh, tolow) < 0;
+            }
+            return record.iptype == 4 && record.iplow >= fromlow && record.iplow < tolow;
+        }
+
+        boolean sameRange(Entry other) {
+            return ipv6 == other.ipv6 && fromhigh == other.fromhigh && fromlow == other.fromlow && fields.equals(other.fields);
+        }
+    }
+
+    private final Entry[] _Entries;
+    private final boolean[] _Referenced;
+    private final byte[] _Hands;
+    private final int _SetMask;
+    private final LongAdder _Hits = new LongAdder();
+    private final LongAdder _Misses = new LongAdder();
+
+    /**
+     * @param maxSize the maximum number of ranges kept, rounded up to four times a power of two of at most 1 << 30
+     */
+    ResultCache(int maxSize) {
+        // clamped so that neither the rounding nor the number of entries can overflow
+        final int needed = Math.max(1, (Math.min(maxSize, 1 << 30) + WAYS - 1) / WAYS);
+        final int sets = (needed == 1) ? 1 : Integer.highestOneBit(needed - 1) << 1;
+        _Entries = new Entry[sets * WAYS];
+        _Referenced = new boolean[sets * WAYS];
+        _Hands = new byte[sets];
+        _SetMask = sets - 1;
+    }
+
+    /**
+     * @param record the parsed address
+     * @param fields the fields the result has to be decoded with
+     * @return the cached result of the range holding the address, null if there is none
+     */
+    IPResult get(IPResult record, Set<IPField> fields) {
+        final int base = set(record) * WAYS;
+        for (int x = base; x < base + WAYS; x++) {
+            final Entry entry = _Entries[x];
+            if (entry != null && entry.contains(record) && entry.fields.equals(fields)) {
+                if (!_Referenced[x]) {
+                    _Referenced[x] = true;
+                }
+                _Hits.increment();
+                return entry.result;
+            }
+        }
+        _Misses.increment();
+        return null;
+    }
+
+    /**
+     * Files a result under the prefix of the address it was looked up for.
+     *
+     * @param record   the result, with its address still parsed
+     * @param fields   the fields it was decoded with
+     * @param fromhigh the upper 64 bits of the first address of the range, 0 for IPv4
+     * @param fromlow  the lower 64 bits of the first address of the range
+     * @param tohigh   the upper 64 bits of the first address after the range, 0 for IPv4
+     * @param tolow    the lower 64 bits of the first address after the range
+     */
+    void put(IPResult record, Set<IPField> fields, long fromhigh, long fromlow, long tohigh, long tolow) {
+        final IPResult result = new IPResult(null); // the caller keeps the record, so store a copy of its fields
+        result.copyFieldsFrom(record);
+        final Set<IPField> copy = EnumSet.noneOf(IPField.class);
+        copy.addAll(fields);
+        final Entry entry = new Entry(record.iptype == 6, fromhigh, fromlow, tohigh, tolow, copy, result);
+
+        final int set = set(record);
+        final int base = set * WAYS;
+        for (int x = base; x < base + WAYS; x++) {
+            final Entry existing = _Entries[x];
+            if (existing != null && existing.sameRange(entry)) { // filed by another thread meanwhile
+                return;
+            }
+        }
+        int hand = _Hands[set];
+        // one turn clears every mark, so the second one finds a victim unless other threads keep marking
+        for (int step = 0; ; step++) {
+            final int x = base + hand;
+            hand = (hand + 1) & (WAYS - 1);
+            if (_Entries[x] == null || !_Referenced[x] || step == 2 * WAYS - 1) {
+                _Entries[x] = entry;
+                _Referenced[x] = false;
+                _Hands[set] = (byte) hand;
+                return;
+            }
+            _Referenced[x] = false;
+        }
+    }
+
+    long hits() {
+        return _Hits.sum();
+    }
+
+    long misses() {
+        return _Misses.sum();
+    }
+
+    private int set(IPResult record) {
+        final long key = (record.iptype == 6) ? record.iphigh : (record.iplow >>> 8);
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & _SetMask;
+    }
+
+    private static int compare(final long ahigh, final long alow, final long bhigh, final long blow) {
+        final int result = Long.compareUnsigned(ahigh, bhigh);
+        return (result != 0) ? result : Long.compareUnsigned(alow, blow);
+    }
+}
@@ -0,0 +1,66 @@
+package net.renfei.ip2location;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where the columns of a memory mapped BIN are in a row, and where its data segment starts.
+ * <p>
+ * IP2Location overwrites its column offsets and string cache when it loads another BIN. A layout is built once per
+ * mapping and never changes, so a lazy result decodes with the layout of the BIN it was found in.
+ */
+// package-private access
+final class RowLayout {
+    private final int[] _ColumnOffsets; // by field ordinal, -1 for the columns the BIN does not have
+    private final long _MapDataOffset;
+    private final StringCache _StringCache;
+
+    RowLayout(int[] columnoffsets, long mapdataoffset, StringCache stringcache) {
+        _ColumnOffsets = columnoffsets.clone();
+        _MapDataOffset = mapdataoffset;
+        _StringCache = stringcache;
+    }
+
+    /**
+     * @param field a result column
+     * @return the offset of the column after IP From in a row, or -1 if the BIN does not have it
+     */
+    int columnOffset(IPField field) {
+        return _ColumnOffsets[field.ordinal()];
+    }
+
+    /**
+     * Reads a string from the mapped data segment, through the string cache of the BIN if it has one.
+     *
+     * @param position     the offset of the string in the BIN
+     * @param mydatabuffer the mapped data segment
+     * @return the string, or null if the length byte is corrupt
+     */
+    String readStr(long position, final MappedRegion mydatabuffer) {
+        final StringCache cache = _StringCache;
+        if (cache != null) {
+            final String cached = cache.get(position);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        final long local = position - _MapDataOffset; // position stored in BIN file is for full file, not just the mapped data segment, so need to minus
+        final ByteBuffer chunk = mydatabuffer.chunk(local); // the string is in the overlap of the chunk
+        final int offset = mydatabuffer.offset(local);
+        final int len = chunk.get(offset);
+        if (len < 0) {
+            return null;
+        }
+        // absolute reads keep the shared buffer thread-safe without a duplicate
+        final byte[] buf = new byte[len];
+        for (int x = 0; x < len; x++) {
+            buf[x] = chunk.get(offset + 1 + x);
+        }
+
+        final String value = new String(buf);
+        if (cache != null) {
+            cache.put(position, value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,65 @@
+package net.renfei.ip2location;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, lock-free cache of decoded BIN strings keyed by their offset in the file.
+ * <p>
+ * Strings are stored once in the BIN and referenced by offset from every row, so the same offset always decodes
+ * to the same value. The cache is direct-mapped: each offset hashes to a single slot and a newer string simply
+ * replaces whatever was there. Entries are immutable, so readers never need a lock.
+ */
+// package-private access
+final class StringCache {
+    private static final class Entry {
+        final long offset;
+        final String value;
+
+        Entry(long offset, String value) {
+            this.offset = offset;
+            this.value = value;
+        }
+    }
+
+    private final Entry[] _Entries;
+    private final int _Mask;
+    private final LongAdder _Hits = new LongAdder();
+    private final LongAdder _Misses = new LongAdder();
+
+    /**
+     * @param maxSize the maximum number of strings kept, rounded up to a power of two of at most 1 << 30
+     */
+    StringCache(int maxSize) {
+        // clamped so that the shift cannot overflow into a negative size
+        int size = Integer.highestOneBit(Math.max(1, Math.min(maxSize, 1 << 30) - 1)) << 1;
+        _Entries = new Entry[size];
+        _Mask = size - 1;
+    }
+
+    String get(long offset) {
+        final Entry entry = _Entries[slot(offset)];
+        if (entry != null && entry.offset == offset) {
+            _Hits.increment();
+            return entry.value;
+        }
+        _Misses.increment();
+        return null;
+    }
+
+    void put(long offset, String value) {
+        _Entries[slot(offset)] = new Entry(offset, value);
+    }
+
+    long hits() {
+        return _Hits.sum();
+    }
+
+    long misses() {
+        return _Misses.sum();
+    }
+
+    private int slot(long offset) {
+        final int hash = (int) (offset ^ (offset >>> 32)) * 0x9E3779B9; // spread neighbouring offsets across the table
+        return (hash ^ (hash >>> 16)) & _Mask;
+    }
+}
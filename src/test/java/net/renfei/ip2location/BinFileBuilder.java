@@ -0,0 +1,292 @@
+package net.renfei.ip2location;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Writes synthetic IP2Location BIN files with random ranges and string columns, so the
+ * lookup paths can be exercised without a licensed database.
+ */
+class BinFileBuilder {
+    private static final int[] DB_COLUMNS = {0, 2, 3, 4, 5, 6, 7, 6, 8, 7, 9, 8, 10, 8, 11, 10, 13, 10, 15, 11, 18, 11, 19, 12, 20, 22, 28};
+    private static final int HEADER_SIZE = 64;
+    private static final int INDEX_SIZE = 65536 * 8;
+    private static final String[][] COUNTRIES = {
+            {"US", "United States of America"}, {"CN", "China"}, {"DE", "Germany"}, {"JP", "Japan"},
+            {"FR", "France"}, {"GB", "United Kingdom of Great Britain and Northern Ireland"}, {"BR", "Brazil"},
+            {"IN", "India"}, {"AU", "Australia"}, {"MY", "Malaysia"}, {"-", "-"}
+    };
+
+    private final int dbType;
+    private int ipv4Rows = 1000;
+    private int ipv6Rows = 1000;
+    private long seed = 1;
+    private int stringsPerColumn = 200;
+    private int ipv6Prefixes = 256;
+
+    BinFileBuilder(int dbType) {
+        this.dbType = dbType;
+    }
+
+    BinFileBuilder ipv4Rows(int rows) {
+        ipv4Rows = rows;
+        return this;
+    }
+
+    /**
+     * @param rows number of IPv6 rows, 0 writes an IPv4-only (old style) BIN
+     */
+    BinFileBuilder ipv6Rows(int rows) {
+        ipv6Rows = rows;
+        return this;
+    }
+
+    BinFileBuilder seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    BinFileBuilder stringsPerColumn(int count) {
+        stringsPerColumn = count;
+        return this;
+    }
+
+    /**
+     * @param count the number of /32 prefixes under each of the 64 /16 prefixes that most IPv6 ranges start in,
+     *              fewer packs more ranges into each /32
+     */
+    BinFileBuilder ipv6Prefixes(int count) {
+        ipv6Prefixes = count;
+        return this;
+    }
+
+    void write(String path) throws IOException {
+        try (OutputStream out = new FileOutputStream(path)) {
+            out.write(build());
+        }
+    }
+
+    byte[] build() {
+        final Random random = new Random(seed);
+        final int columns = DB_COLUMNS[dbType];
+        final boolean geo = dbType == 5 || dbType == 6 || dbType >= 8;
+        final boolean hasIPv6 = ipv6Rows > 0;
+        final int ipv4ColumnSize = columns << 2;
+        final int ipv6ColumnSize = 16 + ((columns - 1) << 2);
+
+        final long[] v4From = ipv4Starts(random);
+        final long[][] v6From = ipv6Starts(random);
+
+        final int indexBase = HEADER_SIZE;
+        final int ipv4Base = indexBase + (hasIPv6 ? INDEX_SIZE * 2 : INDEX_SIZE);
+        final int ipv6Base = ipv4Base + ipv4ColumnSize * v4From.length;
+        final int mapBase = ipv6Base + (hasIPv6 ? ipv6ColumnSize * v6From[0].length : 0);
+
+        // string pools, one per column, column 2 is the country pair
+        ByteBuffer strings = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        final int[][] pool = new int[columns + 1][];
+        for (int col = 2; col <= columns; col++) {
+            if (geo && (col == 5 || col == 6)) {
+                continue;
+            }
+            int count = (col == 2) ? Math.min(COUNTRIES.length, stringsPerColumn) : stringsPerColumn;
+            pool[col] = new int[count];
+            for (int x = 0; x < count; x++) {
+                strings = ensure(strings, 600);
+                pool[col][x] = mapBase + strings.position();
+                if (col == 2) {
+                    // the short code always takes 3 bytes, the long name follows at +3
+                    putStr(strings, COUNTRIES[x][0]);
+                    if (COUNTRIES[x][0].length() == 1) {
+                        strings.put((byte) 0);
+                    }
+                    putStr(strings, COUNTRIES[x][1]);
+                } else if (x % 4 == 0) {
+                    // numeric values so that the elevation column parses
+                    putStr(strings, String.valueOf(random.nextInt(3000)));
+                } else {
+                    putStr(strings, "C" + col + "-V" + x + "-" + Long.toString(random.nextLong() & 0xffffffL, 36));
+                }
+            }
+        }
+
+        final int fileSize = mapBase + strings.position();
+        final ByteBuffer bin = ByteBuffer.allocate(fileSize).order(ByteOrder.LITTLE_ENDIAN);
+        bin.put(0, (byte) dbType);
+        bin.put(1, (byte) columns);
+        bin.put(2, (byte) 24);
+        bin.put(3, (byte) 6);
+        bin.put(4, (byte) 1);
+        bin.putInt(5, v4From.length);
+        bin.putInt(9, ipv4Base + 1);
+        bin.putInt(13, hasIPv6 ? v6From[0].length : 0);
+        bin.putInt(17, hasIPv6 ? ipv6Base + 1 : 0);
+        bin.putInt(21, indexBase + 1);
+        bin.putInt(25, hasIPv6 ? indexBase + INDEX_SIZE + 1 : 0);
+        bin.put(29, (byte) 1);
+        bin.put(30, (byte) 1);
+        bin.putInt(31, fileSize);
+
+        // IPv4 index by the upper 16 bits
+        int row = 0;
+        for (int x = 0; x < 65536; x++) {
+            final long bucketLow = ((long) x) << 16;
+            final long bucketHigh = bucketLow | 0xFFFF;
+            while (row + 1 < v4From.length && v4From[row + 1] <= bucketLow) {
+                row++;
+            }
+            int last = row;
+            while (last + 1 < v4From.length && v4From[last + 1] <= bucketHigh) {
+                last++;
+            }
+            bin.putInt(indexBase + x * 8, row);
+            bin.putInt(indexBase + x * 8 + 4, last);
+        }
+
+        if (hasIPv6) {
+            final long[] hi = v6From[0];
+            row = 0;
+            for (int x = 0; x < 65536; x++) {
+                final long bucketLow = ((long) x) << 48;
+                final long bucketHigh = bucketLow | 0xFFFFFFFFFFFFL;
+                while (row + 1 < hi.length && (Long.compareUnsigned(hi[row + 1], bucketLow) < 0 || (hi[row + 1] == bucketLow && v6From[1][row + 1] == 0))) {
+                    row++;
+                }
+                int last = row;
+                while (last + 1 < hi.length && Long.compareUnsigned(hi[last + 1], bucketHigh) <= 0) {
+                    last++;
+                }
+                bin.putInt(indexBase + INDEX_SIZE + x * 8, row);
+                bin.putInt(indexBase + INDEX_SIZE + x * 8 + 4, last);
+            }
+        }
+
+        for (int x = 0; x < v4From.length; x++) {
+            int pos = ipv4Base + x * ipv4ColumnSize;
+            bin.putInt(pos, (int) v4From[x]);
+            putColumns(bin, pos + 4, columns, geo, pool, random);
+        }
+        if (hasIPv6) {
+            for (int x = 0; x < v6From[0].length; x++) {
+                int pos = ipv6Base + x * ipv6ColumnSize;
+                bin.putLong(pos, v6From[1][x]);
+                bin.putLong(pos + 8, v6From[0][x]);
+                putColumns(bin, pos + 16, columns, geo, pool, random);
+            }
+        }
+
+        strings.flip();
+        bin.position(mapBase);
+        bin.put(strings);
+        return bin.array();
+    }
+
+    /**
+     * @return the IP From of every IPv4 row the builder writes, in ascending order
+     */
+    long[] ipv4RangeStarts() {
+        return ipv4Starts(new Random(seed));
+    }
+
+    /**
+     * @return the upper and lower 64 bits of the IP From of every IPv6 row the builder writes, in ascending order
+     */
+    long[][] ipv6RangeStarts() {
+        final Random random = new Random(seed);
+        ipv4Starts(random); // the IPv6 rows are drawn after the IPv4 rows
+        return ipv6Starts(random);
+    }
+
+    private static void putColumns(ByteBuffer bin, int pos, int columns, boolean geo, int[][] pool, Random random) {
+        for (int col = 2; col <= columns; col++) {
+            int at = pos + ((col - 2) << 2);
+            if (geo && (col == 5 || col == 6)) {
+                float limit = (col == 5) ? 90F : 180F;
+                bin.putFloat(at, (random.nextFloat() * 2 - 1) * limit);
+            } else {
+                bin.putInt(at, pool[col][random.nextInt(pool[col].length)]);
+            }
+        }
+    }
+
+    private long[] ipv4Starts(Random random) {
+        long[] from = new long[ipv4Rows];
+        from[0] = 0;
+        for (int x = 1; x < ipv4Rows - 1; x++) {
+            // cluster half of the ranges into a few busy /8 blocks
+            if (random.nextBoolean()) {
+                from[x] = ((long) (random.nextInt(8) + 100) << 24) | (random.nextInt() & 0xFFFFFFL);
+            } else {
+                from[x] = random.nextInt() & 0xFFFFFFFFL;
+            }
+        }
+        from[ipv4Rows - 1] = 0xFFFFFFFFL;
+        Arrays.sort(from);
+        return dedupe(from);
+    }
+
+    private long[][] ipv6Starts(Random random) {
+        if (ipv6Rows == 0) {
+            return new long[][]{new long[0], new long[0]};
+        }
+        BigInteger[] from = new BigInteger[ipv6Rows];
+        from[0] = BigInteger.ZERO;
+        for (int x = 1; x < ipv6Rows - 1; x++) {
+            long hi;
+            long lo = random.nextLong();
+            if (random.nextInt(4) != 0) {
+                // most ranges inside 2000::/3 on a limited set of /32 prefixes
+                hi = (0x2000L + random.nextInt(64)) << 48 | ((long) random.nextInt(ipv6Prefixes) << 32) | (random.nextInt() & 0xFFFF0000L);
+            } else {
+                hi = random.nextLong();
+            }
+            from[x] = new BigInteger(1, ByteBuffer.allocate(16).putLong(hi).putLong(lo).array());
+        }
+        from[ipv6Rows - 1] = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+        Arrays.sort(from);
+        int count = 1;
+        for (int x = 1; x < from.length; x++) {
+            if (!from[x].equals(from[count - 1])) {
+                from[count++] = from[x];
+            }
+        }
+        long[][] result = new long[2][count];
+        for (int x = 0; x < count; x++) {
+            result[0][x] = from[x].shiftRight(64).longValue();
+            result[1][x] = from[x].longValue();
+        }
+        return result;
+    }
+
+    private static long[] dedupe(long[] sorted) {
+        int count = 1;
+        for (int x = 1; x < sorted.length; x++) {
+            if (sorted[x] != sorted[count - 1]) {
+                sorted[count++] = sorted[x];
+            }
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+
+    private static ByteBuffer ensure(ByteBuffer buffer, int extra) {
+        if (buffer.remaining() >= extra) {
+            return buffer;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    private static void putStr(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes();
+        buffer.put((byte) bytes.length);
+        buffer.put(bytes);
+    }
+}
@@ -1,12 +1,137 @@
 package net.renfei.ip2location;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 public class IP2LocationTests {
+    private static int failures = 0;
+
     public static void main(String[] args) {
         ipToolTest();
+        check(IP2LocationTests::allocationTest);
+        check(IP2LocationTests::ipv6SearchTest);
+        check(IP2LocationTests::projectionTest);
+        check(IP2LocationTests::stringCacheTest);
+        check(IP2LocationTests::concurrentFileTest);
+        check(IP2LocationTests::batchTest);
+        check(IP2LocationTests::parallelTest);
+        check(IP2LocationTests::inMemoryColumnsTest);
+        check(IP2LocationTests::eytzingerTest);
+        check(IP2LocationTests::ipv4PrefixIndexTest);
+        check(IP2LocationTests::ipv6PrefixIndexTest);
+        check(IP2LocationTests::literalTest);
+        check(IP2LocationTests::numericTest);
+        check(IP2LocationTests::lazyResultTest);
+        check(IP2LocationTests::chunkedMappingTest);
+        check(IP2LocationTests::byteArrayTest);
+        check(IP2LocationTests::streamTest);
+        check(IP2LocationTests::compiledTest);
+        check(IP2LocationTests::dictionaryTest);
+        check(IP2LocationTests::sinkTest);
+        check(IP2LocationTests::resultCacheTest);
+        check(IP2LocationTests::reloadTest);
+        check(IP2LocationTests::watcherTest);
 //        test();
+        if (failures > 0) {
+            System.out.println(failures + " checks failed");
+            System.exit(1);
+        }
+    }
+
+    private interface Check {
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs a check that throws when the library misbehaves, and counts it as failed so that main exits non-zero.
+     */
+    private static void check(Check test) {
+        try {
+            test.run();
+        } catch (Exception e) {
+            failures++;
+            System.out.println(e);
+            e.printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * Prints what a check counted, and throws with the failure message when anything mismatched.
+     */
+    private static void report(String what, int mismatches, String details, String failure) {
+        System.out.println(what + " mismatches: " + mismatches + details);
+        if (mismatches > 0) {
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    /**
+     * @return a BIN written by the builder into a temporary file that is deleted when the tests exit
+     */
+    private static File tempBin(BinFileBuilder builder) throws IOException {
+        File bin = tempFile(".bin");
+        builder.write(bin.getPath());
+        return bin;
+    }
+
+    private static File tempFile(String suffix) throws IOException {
+        File file = File.createTempFile("ip2location", suffix);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static IP2Location[] instances(int count) {
+        IP2Location[] locs = new IP2Location[count];
+        for (int x = 0; x < count; x++) {
+            locs[x] = new IP2Location();
+        }
+        return locs;
+    }
+
+    private static void close(IP2Location[] locs) {
+        for (IP2Location loc : locs) {
+            loc.Close();
+        }
+    }
+
+    private static String randomIPv4(Random random) {
+        return random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+    }
+
+    /**
+     * @param ipv6Every one in how many addresses is IPv6, picked from the ranges the builder fills
+     */
+    private static String randomAddress(Random random, int ipv6Every) {
+        return (random.nextInt(ipv6Every) != 0) ? randomIPv4(random)
+                : String.format("2%03x:%x::%x", random.nextInt(2), random.nextInt(16), random.nextInt(65536));
     }
 
     private static void test() {
@@ -39,6 +164,1216 @@ public class IP2LocationTests {
         }
     }
 
+    /**
+     * Memory mapped IPv4 lookups should allocate the same number of bytes no matter how many rows the binary search walks.
+     */
+    private static void allocationTest() throws Exception {
+        IP2Location small = new IP2Location();
+        IP2Location large = new IP2Location();
+        try {
+            // a single country so that every lookup decodes strings of the same length
+            File smallBin = tempBin(new BinFileBuilder(1).ipv4Rows(100).ipv6Rows(0).stringsPerColumn(1));
+            File largeBin = tempBin(new BinFileBuilder(1).ipv4Rows(500000).ipv6Rows(0).stringsPerColumn(1));
+            small.Open(smallBin.getPath(), true);
+            large.Open(largeBin.getPath(), true);
+
+            long perLookupSmall = bytesPerLookup(small);
+            long perLookupLarge = bytesPerLookup(large);
+            System.out.println("Bytes per IPv4 lookup: " + perLookupSmall + " (100 rows), " + perLookupLarge + " (500000 rows)");
+            if (perLookupSmall != perLookupLarge) {
+                throw new IllegalStateException("IPv4 lookup allocation depends on the table size");
+            }
+        } finally {
+            small.Close();
+            large.Close();
+        }
+    }
+
+    /**
+     * Memory mapped IPv6 lookups, which compare two unsigned longs, should find the same rows as reading the file,
+     * on the first addresses of the rows, next to them and at both ends of the address space.
+     */
+    private static void ipv6SearchTest() throws Exception {
+        IP2Location file = new IP2Location();
+        IP2Location mapped = new IP2Location();
+        try {
+            BinFileBuilder builder = new BinFileBuilder(11).ipv4Rows(2000).ipv6Rows(20000);
+            File bin = tempBin(builder);
+            file.Open(bin.getPath(), false);
+            mapped.Open(bin.getPath(), true);
+
+            String[] ips = ipv6Boundaries(builder, new Random(2), 2000);
+            int mismatches = mismatches(file, mapped, ips) + wrongRows(mapped, builder, ips) + wrongRows(file, builder, ips);
+            report("IPv6 search", mismatches, " of " + ips.length, "Memory mapped IPv6 lookups differ from reading the file");
+        } finally {
+            file.Close();
+            mapped.Close();
+        }
+    }
+
+    /**
+     * @return the number of addresses whose result differs, or is not OK from the expected instance
+     */
+    private static int mismatches(IP2Location expected, IP2Location actual, String[] ips) throws IOException {
+        int mismatches = 0;
+        for (String ip : ips) {
+            IPResult want = expected.IPQuery(ip);
+            IPResult got = actual.IPQuery(ip);
+            if (!"OK".equals(want.getStatus()) || !want.getStatus().equals(got.getStatus()) || !want.toString().equals(got.toString())) {
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    /**
+     * @return the number of addresses not found in the row whose range holds them, going by the range starts the
+     * builder wrote and BigInteger arithmetic rather than any search of the library
+     */
+    private static int wrongRows(IP2Location loc, BinFileBuilder builder, String[] ips) throws IOException {
+        long[] ipv4 = builder.ipv4RangeStarts();
+        long[][] starts = builder.ipv6RangeStarts();
+        BigInteger[] ipv6 = new BigInteger[starts[0].length];
+        for (int x = 0; x < ipv6.length; x++) {
+            ipv6[x] = unsigned(starts[0][x]).shiftLeft(64).or(unsigned(starts[1][x]));
+        }
+        int wrong = 0;
+        for (String ip : ips) {
+            IPResult result = loc.IPQuery(ip);
+            int row;
+            if (result.iptype == 4) {
+                // the last row only marks the end, the highest address is looked up as the one below it
+                row = Arrays.binarySearch(ipv4, Math.min(result.iplow, ipv4[ipv4.length - 1] - 1));
+            } else {
+                BigInteger number = unsigned(result.iphigh).shiftLeft(64).or(unsigned(result.iplow));
+                row = Arrays.binarySearch(ipv6, number.min(ipv6[ipv6.length - 1].subtract(BigInteger.ONE)));
+            }
+            if (!"OK".equals(result.getStatus()) || result.row != ((row >= 0) ? row : -row - 2)) {
+                wrong++;
+            }
+        }
+        return wrong;
+    }
+
+    private static BigInteger unsigned(long value) {
+        return new BigInteger(Long.toUnsignedString(value));
+    }
+
+    /**
+     * @return the lowest and highest IPv4 addresses, the first address of random rows of the builder with the
+     * addresses before and after it and the ends of their /24 blocks, and random addresses
+     */
+    private static String[] ipv4Boundaries(BinFileBuilder builder, Random random, int count) {
+        List<String> ips = new ArrayList<>();
+        ips.add("0.0.0.0");
+        ips.add("255.255.255.255");
+        long[] starts = builder.ipv4RangeStarts();
+        for (int x = 0; x < count; x++) {
+            long start = starts[random.nextInt(starts.length)];
+            for (long ip : new long[]{start - 1, start, start + 1, start & ~0xffL, start | 0xff, (start & ~0xffL) - 1, (start | 0xff) + 1}) {
+                if (ip >= 0 && ip <= 0xffffffffL) {
+                    ips.add(ipv4Text(ip));
+                }
+            }
+            ips.add(ipv4Text(random.nextInt() & 0xffffffffL));
+        }
+        return ips.toArray(new String[0]);
+    }
+
+    /**
+     * @return the lowest and highest IPv6 addresses, the first address of random rows of the builder with the
+     * addresses before and after it and the ends of their /32 and /48 blocks, and random addresses
+     */
+    private static String[] ipv6Boundaries(BinFileBuilder builder, Random random, int count) {
+        List<String> ips = new ArrayList<>();
+        ips.add("::");
+        ips.add("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff");
+        long[][] starts = builder.ipv6RangeStarts();
+        for (int x = 0; x < count; x++) {
+            int row = random.nextInt(starts[0].length);
+            long high = starts[0][row];
+            long low = starts[1][row];
+            ips.add(ipv6Text(high, low));
+            ips.add((low == 0) ? ipv6Text(high - 1, -1L) : ipv6Text(high, low - 1));
+            ips.add((low == -1L) ? ipv6Text(high + 1, 0) : ipv6Text(high, low + 1));
+            for (long mask : new long[]{0xffffffffL, 0xffffL}) { // the /32 and the /48
+                ips.add(ipv6Text(high & ~mask, 0));
+                ips.add(ipv6Text(high | mask, -1L));
+                ips.add(ipv6Text((high & ~mask) - 1, -1L));
+                ips.add(ipv6Text((high | mask) + 1, 0));
+            }
+            ips.add(String.format("2%03x:%x::%x", random.nextInt(64), random.nextInt(65536), random.nextInt(65536)));
+            ips.add(ipv6Text(random.nextLong(), random.nextLong()));
+        }
+        return ips.toArray(new String[0]);
+    }
+
+    private static String ipv4Text(long ip) {
+        return (ip >>> 24) + "." + ((ip >>> 16) & 255) + "." + ((ip >>> 8) & 255) + "." + (ip & 255);
+    }
+
+    private static String ipv6Text(long high, long low) {
+        return String.format("%x:%x:%x:%x:%x:%x:%x:%x", high >>> 48, (high >>> 32) & 0xffff, (high >>> 16) & 0xffff, high & 0xffff,
+                low >>> 48, (low >>> 32) & 0xffff, (low >>> 16) & 0xffff, low & 0xffff);
+    }
+
+    /**
+     * A query for some fields should fill them as a query for every field does, and leave the others null or 0, on
+     * a BIN with every column in memory mapped and file mode, and on one where most fields are Not_Supported.
+     */
+    private static void projectionTest() throws Exception {
+        IP2Location[] locs = instances(3);
+        try {
+            File full = tempBin(new BinFileBuilder(26).ipv4Rows(5000).ipv6Rows(1000));
+            File small = tempBin(new BinFileBuilder(3).ipv4Rows(5000).ipv6Rows(1000));
+            locs[0].Open(full.getPath(), true);
+            locs[1].Open(full.getPath(), false);
+            locs[2].Open(small.getPath(), true);
+
+            Random random = new Random(3);
+            int mismatches = 0;
+            for (int x = 0; x < 3000; x++) {
+                IP2Location loc = locs[x % locs.length];
+                String ip = randomAddress(random, 3);
+                EnumSet<IPField> fields = EnumSet.noneOf(IPField.class);
+                for (IPField field : IPField.values()) {
+                    if (random.nextInt(4) == 0) {
+                        fields.add(field);
+                    }
+                }
+                IPResult expected = loc.IPQuery(ip);
+                IPResult actual = loc.IPQuery(ip, fields);
+                if (!"OK".equals(expected.getStatus()) || !expected.getStatus().equals(actual.getStatus())) {
+                    mismatches++;
+                    continue;
+                }
+                for (IPField field : IPField.values()) {
+                    Object want = fieldValue(expected, field);
+                    Object value = fieldValue(actual, field);
+                    // fields the BIN does not have read Not_Supported whether they were requested or not
+                    boolean requested = fields.contains(field) || IPResult.NOT_SUPPORTED.equals(want);
+                    if (requested ? !Objects.equals(want, value) : (value != null && !Float.valueOf(0.0F).equals(value))) {
+                        mismatches++;
+                    }
+                }
+            }
+            report("Projection", mismatches, "", "Queries for some fields differ from queries for every field");
+        } finally {
+            close(locs);
+        }
+    }
+
+    /**
+     * @return the value of a field through its getter, a Float for the float fields
+     */
+    private static Object fieldValue(IPResult result, IPField field) {
+        switch (field) {
+            case COUNTRY_SHORT: return result.getCountryShort();
+            case COUNTRY_LONG: return result.getCountryLong();
+            case REGION: return result.getRegion();
+            case CITY: return result.getCity();
+            case ISP: return result.getISP();
+            case LATITUDE: return result.getLatitude();
+            case LONGITUDE: return result.getLongitude();
+            case DOMAIN: return result.getDomain();
+            case ZIPCODE: return result.getZipCode();
+            case TIMEZONE: return result.getTimeZone();
+            case NETSPEED: return result.getNetSpeed();
+            case IDDCODE: return result.getIDDCode();
+            case AREACODE: return result.getAreaCode();
+            case WEATHERSTATIONCODE: return result.getWeatherStationCode();
+            case WEATHERSTATIONNAME: return result.getWeatherStationName();
+            case MCC: return result.getMCC();
+            case MNC: return result.getMNC();
+            case MOBILEBRAND: return result.getMobileBrand();
+            case ELEVATION: return result.getElevation();
+            case USAGETYPE: return result.getUsageType();
+            case ADDRESSTYPE: return result.getAddressType();
+            case CATEGORY: return result.getCategory();
+            case DISTRICT: return result.getDistrict();
+            case ASN: return result.getASN();
+            case AS: return result.getAS();
+            case ASDOMAIN: return result.getASDomain();
+            case ASUSAGETYPE: return result.getASUsageType();
+            default: return result.getASCIDR();
+        }
+    }
+
+    /**
+     * Lookups through the string cache should read the same as without it, in memory mapped mode and in file mode
+     * with a cache so small that its slots keep being replaced, and a repeated lookup should hit the cache.
+     */
+    private static void stringCacheTest() throws Exception {
+        IP2Location[] plain = instances(2);
+        IP2Location[] cached = instances(2);
+        cached[0].StringCacheSize = 1 << 16;
+        cached[1].StringCacheSize = 64;
+        try {
+            File bin = tempBin(new BinFileBuilder(26).ipv4Rows(5000).ipv6Rows(1000));
+            for (int x = 0; x < 2; x++) {
+                plain[x].Open(bin.getPath(), x == 0);
+                cached[x].Open(bin.getPath(), x == 0);
+            }
+
+            Random random = new Random(4);
+            int mismatches = 0;
+            for (int x = 0; x < 3000; x++) {
+                String ip = randomAddress(random, 3);
+                for (int y = 0; y < 2; y++) {
+                    IPResult expected = plain[y].IPQuery(ip);
+                    if (!expected.toString().equals(cached[y].IPQuery(ip).toString()) || !expected.toString().equals(cached[y].IPQuery(ip).toString())) {
+                        mismatches++;
+                    }
+                }
+            }
+            for (IP2Location loc : cached) {
+                // a single field, so that no other string of the row can take the slot of the city in between
+                String city = loc.IPQuery("101.2.3.4", EnumSet.of(IPField.CITY)).getCity();
+                long hits = loc.GetStringCacheHits();
+                long misses = loc.GetStringCacheMisses();
+                if (loc.IPQuery("101.2.3.4", EnumSet.of(IPField.CITY)).getCity() != city || loc.GetStringCacheHits() != hits + 1
+                        || loc.GetStringCacheMisses() != misses || misses == 0) {
+                    mismatches++;
+                }
+            }
+            report("String cache", mismatches, ", hits " + cached[0].GetStringCacheHits() + " and " + cached[1].GetStringCacheHits()
+                    + ", misses " + cached[0].GetStringCacheMisses() + " and " + cached[1].GetStringCacheMisses(),
+                    "Lookups through the string cache differ from the ones without it");
+        } finally {
+            close(plain);
+            close(cached);
+        }
+    }
+
+    /**
+     * File mode lookups on many threads at once, which share one FileChannel, should read the same as on one thread.
+     */
+    private static void concurrentFileTest() throws Exception {
+        IP2Location loc = new IP2Location();
+        try {
+            File bin = tempBin(new BinFileBuilder(26).ipv4Rows(5000).ipv6Rows(1000));
+            loc.Open(bin.getPath(), false);
+
+            Random random = new Random(5);
+            String[] ips = new String[2000];
+            String[] expected = new String[ips.length];
+            for (int x = 0; x < ips.length; x++) {
+                ips[x] = randomAddress(random, 3);
+                expected[x] = loc.IPQuery(ips[x]).toString();
+            }
+
+            AtomicInteger mismatches = new AtomicInteger(0);
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                final int first = t * ips.length / threads.length; // each thread starts elsewhere, so the rows they read differ
+                threads[t] = new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int round = 0; round < 3; round++) {
+                            for (int x = 0; x < ips.length; x++) {
+                                int y = (first + x) % ips.length;
+                                if (!expected[y].equals(loc.IPQuery(ips[y]).toString())) {
+                                    mismatches.incrementAndGet();
+                                }
+                            }
+                        }
+                    } catch (Exception e) {
+                        mismatches.incrementAndGet();
+                    }
+                });
+                threads[t].start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            System.out.println("Concurrent file mode mismatches: " + mismatches.get());
+            if (mismatches.get() > 0) {
+                throw new IllegalStateException("File mode lookups on many threads differ from the ones on one thread");
+            }
+        } finally {
+            loc.Close();
+        }
+    }
+
+    /**
+     * A batch should get the same results and rows as looking each address up on its own, in input order, for
+     * addresses out of order, repeated, invalid, and of both families mixed.
+     */
+    private static void batchTest() throws Exception {
+        IP2Location[] locs = instances(2);
+        try {
+            BinFileBuilder builder = new BinFileBuilder(26).ipv4Rows(20000).ipv6Rows(5000);
+            File bin = tempBin(builder);
+            locs[0].Open(bin.getPath(), true);
+            locs[1].Open(bin.getPath(), false);
+
+            Random random = new Random(6);
+            List<String> ips = new ArrayList<>();
+            ips.addAll(Arrays.asList(ipv4Boundaries(builder, random, 500)));
+            ips.addAll(Arrays.asList(ipv6Boundaries(builder, random, 200)));
+            ips.addAll(Arrays.asList("", null, "localhost", "1.2.3.256", "2001:db8:::1", "::ffff:8.8.8.8", "2002:c000:204::1"));
+            for (int x = 0; x < 500; x++) {
+                ips.add(ips.get(random.nextInt(ips.size())));
+            }
+            Collections.shuffle(ips, random);
+            String[] batch = ips.toArray(new String[0]);
+            EnumSet<IPField> fields = EnumSet.of(IPField.COUNTRY_SHORT, IPField.CITY, IPField.LATITUDE, IPField.ASN);
+
+            int mismatches = 0;
+            for (IP2Location loc : locs) {
+                IPResult[] all = loc.IPQuery(batch);
+                IPResult[] some = loc.IPQuery(batch, fields);
+                if (all.length != batch.length || some.length != batch.length || loc.IPQuery(new String[0]).length != 0) {
+                    mismatches++;
+                    continue;
+                }
+                for (int x = 0; x < batch.length; x++) {
+                    IPResult expected = loc.IPQuery(batch[x]);
+                    IPResult projected = loc.IPQuery(batch[x], fields);
+                    if (!expected.getStatus().equals(all[x].getStatus()) || !expected.toString().equals(all[x].toString()) || expected.row != all[x].row
+                            || !projected.getStatus().equals(some[x].getStatus()) || !projected.toString().equals(some[x].toString()) || projected.row != some[x].row) {
+                        mismatches++;
+                    }
+                }
+            }
+            report("Batch", mismatches, " of " + batch.length + " addresses", "Batch lookups differ from single lookups");
+        } finally {
+            close(locs);
+        }
+    }
+
+    /**
+     * A parallel batch should get the same results as single lookups in every mode, and a failure to read the BIN
+     * in one of the workers should reach the caller as the IOException it was.
+     */
+    private static void parallelTest() throws Exception {
+        IP2Location[] locs = instances(4);
+        locs[2].UseInMemoryColumns = true;
+        locs[3].UseLazyResults = true;
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            File bin = tempBin(new BinFileBuilder(26).ipv4Rows(20000).ipv6Rows(5000));
+            locs[0].Open(bin.getPath(), true);
+            locs[1].Open(bin.getPath(), false);
+            locs[2].Open(bin.getPath());
+            locs[3].Open(bin.getPath(), true);
+
+            Random random = new Random(7);
+            String[] ips = new String[40000]; // several slices of the batch
+            String[] invalid = {"", null, "localhost", "1.2.3.256", "2001:db8:::1"};
+            for (int x = 0; x < ips.length; x++) {
+                ips[x] = (x % 100 == 0) ? invalid[random.nextInt(invalid.length)] : randomAddress(random, 3);
+            }
+            EnumSet<IPField> fields = EnumSet.of(IPField.COUNTRY_LONG, IPField.REGION, IPField.LONGITUDE);
+            int mismatches = 0;
+            for (IP2Location loc : locs) {
+                IPResult[] all = loc.IPQueryParallel(ips);
+                IPResult[] some = loc.IPQueryParallel(ips, fields, pool);
+                for (int x = 0; x < ips.length; x++) {
+                    IPResult expected = loc.IPQuery(ips[x]);
+                    IPResult projected = loc.IPQuery(ips[x], fields);
+                    if (!expected.getStatus().equals(all[x].getStatus()) || !expected.toString().equals(all[x].toString()) || expected.row != all[x].row
+                            || !projected.getStatus().equals(some[x].getStatus()) || !projected.toString().equals(some[x].toString()) || projected.row != some[x].row) {
+                        mismatches++;
+                    }
+                }
+            }
+
+            // a read on an interrupted thread closes the shared channel, so with the file gone it cannot be reopened
+            Thread interrupted = new Thread(() -> {
+                Thread.currentThread().interrupt();
+                try {
+                    locs[1].IPQuery("101.2.3.4");
+                } catch (IOException e) {
+                    // the read is interrupted
+                }
+            });
+            interrupted.start();
+            interrupted.join();
+            Files.delete(bin.toPath());
+            try {
+                locs[1].IPQueryParallel(ips, fields, pool);
+                mismatches++;
+            } catch (IOException e) {
+                System.out.println("Parallel batch on a missing BIN: " + e);
+            }
+            report("Parallel batch", mismatches, "", "Parallel batch lookups differ from single lookups");
+        } finally {
+            pool.shutdown();
+            close(locs);
+        }
+    }
+
+    private static void inMemoryColumnsTest() throws Exception {
+        IP2Location mapped = new IP2Location();
+        IP2Location columns = new IP2Location();
+        columns.UseInMemoryColumns = true;
+        try {
+            File bin = tempBin(new BinFileBuilder(26).ipv4Rows(2000).ipv6Rows(1000));
+            mapped.Open(bin.getPath(), true);
+            columns.Open(bin.getPath(), false);
+
+            Random random = new Random(26);
+            int mismatches = 0;
+            for (int x = 0; x < 12000; x++) {
+                if (x == 10000) {
+                    columns.UseInMemoryColumns = false; // the columns stay loaded until the BIN is loaded again
+                }
+                String ip = (x % 2 == 0) ? randomIPv4(random)
+                        : String.format("2%03x:%x::%x", random.nextInt(4096), random.nextInt(65536), random.nextInt(65536));
+                IPResult expected = mapped.IPQuery(ip);
+                IPResult actual = columns.IPQuery(ip);
+                if (!expected.toString().equals(actual.toString()) || !expected.getStatus().equals(actual.getStatus())) {
+                    mismatches++;
+                }
+            }
+            report("In-memory column", mismatches, "", "In-memory columns differ from the memory mapped lookups");
+        } finally {
+            mapped.Close();
+            columns.Close();
+        }
+    }
+
+    /**
+     * The Eytzinger layout should find the same rows as the binary search, on the first addresses of the rows,
+     * next to them and at both ends of the address space.
+     */
+    private static void eytzingerTest() throws Exception {
+        BinFileBuilder builder = new BinFileBuilder(11).ipv4Rows(20000).ipv6Rows(20000);
+        Random random = new Random(9);
+        String[] ips = concat(ipv4Boundaries(builder, random, 2000), ipv6Boundaries(builder, random, 1000));
+        int mismatches = optionMismatches(builder, ips, loc -> loc.UseEytzingerLayout = true);
+        report("Eytzinger layout", mismatches, " of " + ips.length, "Lookups with the Eytzinger layout differ from the binary search");
+    }
+
+    /**
+     * The /24 prefix index should find the same rows as the /16 index of the BIN, with enough rows that many /24
+     * blocks hold several ranges, and on a BIN without IPv6 rows.
+     */
+    private static void ipv4PrefixIndexTest() throws Exception {
+        Random random = new Random(10);
+        int mismatches = 0;
+        int lookups = 0;
+        for (BinFileBuilder builder : new BinFileBuilder[]{new BinFileBuilder(11).ipv4Rows(200000).ipv6Rows(1000), new BinFileBuilder(3).ipv4Rows(20000).ipv6Rows(0)}) {
+            String[] ips = ipv4Boundaries(builder, random, 3000);
+            mismatches += optionMismatches(builder, ips, loc -> loc.UseIPv4PrefixIndex = true);
+            lookups += ips.length;
+        }
+        report("IPv4 prefix index", mismatches, " of " + lookups, "Lookups with the IPv4 prefix index differ from the binary search");
+    }
+
+    /**
+     * The IPv6 prefix index should find the same rows as the /16 index of the BIN, both where /32 prefixes hold a
+     * few ranges and where they are packed enough to be split into /48 prefixes.
+     */
+    private static void ipv6PrefixIndexTest() throws Exception {
+        Random random = new Random(11);
+        int mismatches = 0;
+        int lookups = 0;
+        for (BinFileBuilder builder : new BinFileBuilder[]{new BinFileBuilder(11).ipv4Rows(1000).ipv6Rows(20000), new BinFileBuilder(11).ipv4Rows(1000).ipv6Rows(20000).ipv6Prefixes(2)}) {
+            String[] ips = ipv6Boundaries(builder, random, 2000);
+            mismatches += optionMismatches(builder, ips, loc -> loc.UseIPv6PrefixIndex = true);
+            lookups += ips.length;
+        }
+        report("IPv6 prefix index", mismatches, " of " + lookups, "Lookups with the IPv6 prefix index differ from the binary search");
+    }
+
+    /**
+     * @param option sets the search option under test on an IP2Location before it is opened
+     * @return the number of lookups with the option, in memory mapped, file and in-memory column mode, single and
+     * batched, that differ from the plain memory mapped search or find another row than the builder wrote
+     */
+    private static int optionMismatches(BinFileBuilder builder, String[] ips, Consumer<IP2Location> option) throws Exception {
+        File bin = tempBin(builder);
+        IP2Location plain = new IP2Location();
+        IP2Location[] locs = instances(3);
+        locs[2].UseInMemoryColumns = true;
+        try {
+            plain.Open(bin.getPath(), true);
+            for (int x = 0; x < locs.length; x++) {
+                option.accept(locs[x]);
+                locs[x].Open(bin.getPath(), x != 1);
+            }
+            int mismatches = 0;
+            for (IP2Location loc : locs) {
+                mismatches += mismatches(plain, loc, ips) + wrongRows(loc, builder, ips);
+                IPResult[] batch = loc.IPQuery(ips);
+                for (int x = 0; x < ips.length; x++) {
+                    if (!plain.IPQuery(ips[x]).toString().equals(batch[x].toString())) {
+                        mismatches++;
+                    }
+                }
+            }
+            return mismatches;
+        } finally {
+            plain.Close();
+            close(locs);
+            bin.delete();
+        }
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    /**
+     * Host names must be rejected as invalid instead of being resolved, while every form of IPv6 literal is accepted.
+     */
+    private static void literalTest() throws Exception {
+        IP2Location loc = new IP2Location();
+        try {
+            File bin = tempBin(new BinFileBuilder(1));
+            loc.Open(bin.getPath(), true);
+
+            String[] invalid = {"localhost", "example.com", "1.2.3", "2001:db8::g", "2001:db8:::1", "fe80::1%", "[::1", "::ffff:1.2.3.256"};
+            String[] valid = {"[2001:db8::1]", "fe80::1%eth0", "fe80::1%2", "::ffff:8.8.8.8", "::ffff:808:808", "2001:db8::1.2.3.4", "2002:c000:204::1", "2001:0:4136:e378:8000:63bf:3fff:fdd2"};
+            int wrong = 0;
+            for (String ip : invalid) {
+                if (!"INVALID_IP_ADDRESS".equals(loc.IPQuery(ip).getStatus())) {
+                    wrong++;
+                }
+            }
+            for (String ip : valid) {
+                if (!"OK".equals(loc.IPQuery(ip).getStatus())) {
+                    wrong++;
+                }
+            }
+            System.out.println("Wrongly parsed literals: " + wrong);
+            if (wrong > 0) {
+                throw new IllegalStateException("Address literals were parsed wrongly");
+            }
+        } finally {
+            loc.Close();
+        }
+    }
+
+    /**
+     * Addresses given as bytes, InetAddress or numbers should get the same result as their literals.
+     */
+    private static void numericTest() throws Exception {
+        IP2Location loc = new IP2Location();
+        try {
+            File bin = tempBin(new BinFileBuilder(11).ipv4Rows(5000).ipv6Rows(500));
+            loc.Open(bin.getPath(), true);
+
+            Random random = new Random(17);
+            int mismatches = 0;
+            for (int x = 0; x < 2000; x++) {
+                byte[] bytes = new byte[(x % 2 == 0) ? 4 : 16];
+                random.nextBytes(bytes);
+                if (x % 10 == 1) { // IPv4-mapped
+                    Arrays.fill(bytes, 0, 10, (byte) 0);
+                    bytes[10] = (byte) 0xff;
+                    bytes[11] = (byte) 0xff;
+                } else if (x % 10 == 3) { // 6to4
+                    bytes[0] = 0x20;
+                    bytes[1] = 0x02;
+                } else if (x % 10 == 5) { // Teredo
+                    bytes[0] = 0x20;
+                    bytes[1] = 0x01;
+                    bytes[2] = 0;
+                    bytes[3] = 0;
+                }
+                InetAddress address = InetAddress.getByAddress(bytes);
+                String expected = withoutAddress(loc.IPQuery(address.getHostAddress()));
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                IPResult number = (bytes.length == 4) ? loc.IPQuery(buffer.getInt()) : loc.IPQuery(buffer.getLong(), buffer.getLong());
+                if (!expected.equals(withoutAddress(loc.IPQuery(bytes))) || !expected.equals(withoutAddress(loc.IPQuery(address))) || !expected.equals(withoutAddress(number))) {
+                    mismatches++;
+                }
+            }
+            if (!loc.IPQuery(0x08080808).toString().contains("IP Address = 8.8.8.8")) {
+                mismatches++;
+            }
+            if (!"INVALID_IP_ADDRESS".equals(loc.IPQuery(new byte[5]).getStatus())) {
+                mismatches++;
+            }
+            report("Numeric address", mismatches, "", "Numeric addresses were looked up differently from their literals");
+        } finally {
+            loc.Close();
+        }
+    }
+
+    private static String withoutAddress(IPResult result) {
+        return result.getStatus() + result.toString().replaceAll("IP Address = [^\\n]*", "");
+    }
+
+    /**
+     * Lazy results should read the same as eager ones, field by field and after the instance is closed.
+     */
+    private static void lazyResultTest() throws Exception {
+        IP2Location eager = new IP2Location();
+        IP2Location lazy = new IP2Location();
+        lazy.UseLazyResults = true;
+        try {
+            File bin = tempBin(new BinFileBuilder(26).ipv4Rows(5000).ipv6Rows(500));
+            eager.Open(bin.getPath(), true);
+            lazy.Open(bin.getPath(), true);
+
+            Random random = new Random(18);
+            int mismatches = 0;
+            IPResult[] kept = new IPResult[100];
+            String[] expected = new String[kept.length];
+            IPResult[] reopened = new IPResult[100]; // read after the instance is opened on a DB3
+            IPResult[] reopenedExpected = new IPResult[reopened.length];
+            for (int x = 0; x < 5000; x++) {
+                String ip = randomAddress(random, 3);
+                IPResult want = eager.IPQuery(ip);
+                IPResult got = lazy.IPQuery(ip);
+                if (!Objects.equals(want.getCity(), got.getCity()) || want.getLatitude() != got.getLatitude() || !want.toString().equals(got.toString())) {
+                    mismatches++;
+                }
+                if (x < kept.length) {
+                    kept[x] = lazy.IPQuery(ip);
+                    expected[x] = want.toString();
+                } else if (x < kept.length + reopened.length) {
+                    reopened[x - kept.length] = lazy.IPQuery(ip);
+                    reopenedExpected[x - kept.length] = want;
+                }
+            }
+            IPResult partial = lazy.IPQuery("100.1.2.3", EnumSet.of(IPField.ASN));
+            if (partial.getASN() == null || partial.getCity() != null) {
+                mismatches++;
+            }
+            lazy.Close();
+            for (int x = 0; x < kept.length; x++) {
+                if (!expected[x].equals(kept[x].toString())) {
+                    mismatches++;
+                }
+            }
+            File db3 = tempBin(new BinFileBuilder(3).ipv4Rows(1000).ipv6Rows(100));
+            lazy.Open(db3.getPath(), true);
+            if (!IPResult.NOT_SUPPORTED.equals(lazy.IPQuery("101.2.3.4").getISP())) { // or the results below prove nothing
+                mismatches++;
+            }
+            for (int x = 0; x < reopened.length; x++) {
+                IPResult want = reopenedExpected[x];
+                IPResult got = reopened[x];
+                if (!Objects.equals(want.getISP(), got.getISP()) || want.getLatitude() != got.getLatitude()
+                        || !Objects.equals(want.getCity(), got.getCity()) || !want.toString().equals(got.toString())) {
+                    mismatches++;
+                }
+            }
+            report("Lazy result", mismatches, "", "Lazy results differ from the eager ones");
+        } finally {
+            eager.Close();
+            lazy.Close();
+        }
+    }
+
+    /**
+     * A BIN mapped in many small chunks should give the same results as reading the file, so that rows and strings
+     * across the chunk boundaries of a BIN over 2 GB are read correctly.
+     */
+    private static void chunkedMappingTest() throws Exception {
+        IP2Location file = new IP2Location();
+        IP2Location chunked = new IP2Location();
+        chunked._MapChunkBits = 12;
+        chunked.UseLazyResults = true;
+        try {
+            File bin = tempBin(new BinFileBuilder(26).ipv4Rows(20000).ipv6Rows(5000));
+            file.Open(bin.getPath(), false);
+            chunked.Open(bin.getPath(), true);
+
+            Random random = new Random(20);
+            String[] ips = new String[3000];
+            for (int x = 0; x < ips.length; x++) {
+                ips[x] = randomAddress(random, 3);
+            }
+            int mismatches = 0;
+            IPResult[] batch = chunked.IPQuery(ips);
+            for (int x = 0; x < ips.length; x++) {
+                String want = file.IPQuery(ips[x]).toString();
+                if (!want.equals(chunked.IPQuery(ips[x]).toString()) || !want.equals(batch[x].toString())) {
+                    mismatches++;
+                }
+            }
+            report("Chunked mapping", mismatches, "", "Chunked mappings differ from reading the file");
+        } finally {
+            file.Close();
+            chunked.Close();
+        }
+    }
+
+    /**
+     * A BIN opened from a byte array, on the heap or copied into a direct buffer, should give the same results as
+     * reading the file, and so should reading the array without the memory mapped path.
+     */
+    private static void byteArrayTest() throws Exception {
+        IP2Location file = new IP2Location();
+        IP2Location[] locs = instances(3);
+        try {
+            File bin = tempBin(new BinFileBuilder(26).ipv4Rows(5000).ipv6Rows(1000));
+            byte[] db = Files.readAllBytes(bin.toPath());
+            file.Open(bin.getPath(), false);
+            locs[0].Open(db);
+            locs[1].Open(db, true);
+            locs[2].Open(db);
+            locs[2].UseMemoryMappedFile = false;
+
+            Random random = new Random(21);
+            int mismatches = 0;
+            for (int x = 0; x < 3000; x++) {
+                String ip = randomAddress(random, 3);
+                String want = file.IPQuery(ip).toString();
+                for (IP2Location loc : locs) {
+                    if (!want.equals(loc.IPQuery(ip).toString())) {
+                        mismatches++;
+                    }
+                }
+            }
+            report("Byte array", mismatches, "", "Byte array lookups differ from reading the file");
+        } finally {
+            file.Close();
+            close(locs);
+        }
+    }
+
+    /**
+     * A BIN read from a stream, as it is, compressed with gzip or inside a zip archive, should give the same results
+     * as reading the file.
+     */
+    private static void streamTest() throws Exception {
+        IP2Location file = new IP2Location();
+        IP2Location[] locs = instances(3);
+        try {
+            File bin = tempBin(new BinFileBuilder(26).ipv4Rows(5000).ipv6Rows(1000));
+            byte[] db = Files.readAllBytes(bin.toPath());
+            ByteArrayOutputStream gz = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(gz)) {
+                out.write(db);
+            }
+            ByteArrayOutputStream zip = new ByteArrayOutputStream();
+            try (ZipOutputStream out = new ZipOutputStream(zip)) {
+                out.putNextEntry(new ZipEntry("README.TXT"));
+                out.write("not the BIN".getBytes(StandardCharsets.US_ASCII));
+                out.putNextEntry(new ZipEntry("IP2LOCATION-DB26.BIN"));
+                out.write(db);
+            }
+            file.Open(bin.getPath(), false);
+            locs[0].Open(new ByteArrayInputStream(db));
+            locs[1].Open(new ByteArrayInputStream(gz.toByteArray()));
+            locs[2].Open(new ByteArrayInputStream(zip.toByteArray()));
+
+            Random random = new Random(22);
+            int mismatches = 0;
+            for (int x = 0; x < 3000; x++) {
+                String ip = randomAddress(random, 3);
+                String want = file.IPQuery(ip).toString();
+                for (IP2Location loc : locs) {
+                    if (!want.equals(loc.IPQuery(ip).toString())) {
+                        mismatches++;
+                    }
+                }
+            }
+            report("Stream", mismatches, ", " + db.length + " bytes, " + gz.size() + " gzipped", "Lookups on a BIN read from a stream differ from reading the file");
+        } finally {
+            file.Close();
+            close(locs);
+        }
+    }
+
+    /**
+     * A compiled BIN, opened from its path or from a byte array, should give the same results as the BIN decoded
+     * into columns, to IPResults and to sinks.
+     */
+    private static void compiledTest() throws Exception {
+        IP2Location columns = new IP2Location();
+        columns.UseInMemoryColumns = true;
+        IP2Location[] locs = instances(2);
+        try {
+            File compiled = tempFile(".compiled");
+            File bin = tempBin(new BinFileBuilder(26).ipv4Rows(5000).ipv6Rows(1000));
+            columns.Open(bin.getPath());
+            columns.Compile(compiled.getPath());
+            locs[0].Open(compiled.getPath());
+            locs[1].Open(Files.readAllBytes(compiled.toPath()));
+
+            Random random = new Random(23);
+            int mismatches = 0;
+            RecordingSink want = new RecordingSink();
+            RecordingSink got = new RecordingSink();
+            want.recording = true;
+            got.recording = true;
+            for (int x = 0; x < 3000; x++) {
+                String ip = randomAddress(random, 3);
+                String expected = columns.IPQuery(ip).toString();
+                for (IP2Location loc : locs) {
+                    if (!expected.equals(loc.IPQuery(ip).toString())) {
+                        mismatches++;
+                    }
+                }
+                columns.IPQuery(ip, want);
+                locs[0].IPQuery(ip, got);
+                if (!describe(columns, want).equals(describe(locs[0], got))) {
+                    mismatches++;
+                }
+            }
+            report("Compiled", mismatches, ", " + bin.length() + " bytes, " + compiled.length() + " compiled", "Lookups on a compiled BIN differ from the decoded columns");
+        } finally {
+            columns.Close();
+            close(locs);
+        }
+    }
+
+    /**
+     * Dictionary ids should stand for the values IPQuery returns, and for the string ids passed to a sink, in every mode.
+     * Only the columns asked for when the BIN is loaded have a dictionary.
+     */
+    private static void dictionaryTest() throws Exception {
+        IP2Location[] locs = instances(4);
+        IPField[] fields = {IPField.COUNTRY_SHORT, IPField.COUNTRY_LONG, IPField.REGION, IPField.USAGETYPE, IPField.ASN};
+        for (IP2Location loc : locs) {
+            loc.DictionaryFields = EnumSet.of(IPField.LATITUDE, fields);
+        }
+        locs[2].UseInMemoryColumns = true;
+        try {
+            File compiled = tempFile(".compiled");
+            File bin = tempBin(new BinFileBuilder(26).ipv4Rows(5000).ipv6Rows(500).stringsPerColumn(20));
+            locs[0].Open(bin.getPath(), true);
+            locs[1].Open(bin.getPath(), false);
+            locs[2].Open(bin.getPath());
+            locs[2].Compile(compiled.getPath());
+            locs[2].UseInMemoryColumns = false; // the ids still come from the columns that are loaded
+            locs[3].Open(compiled.getPath());
+
+            int mismatches = 0;
+            for (IP2Location loc : locs) {
+                if (loc.GetDictionary(IPField.LATITUDE) != null || loc.IPQueryId("8.8.8.8", IPField.ELEVATION) != -1
+                        || loc.GetDictionary(IPField.CITY) != null || loc.IPQueryId("8.8.8.8", IPField.CITY) != -1) {
+                    mismatches++;
+                }
+            }
+            RecordingSink sink = new RecordingSink();
+            sink.recording = true;
+            Random random = new Random(24);
+            for (int x = 0; x < 3000; x++) {
+                IP2Location loc = locs[x % locs.length];
+                String ip = randomAddress(random, 5);
+                IPResult expected = loc.IPQuery(ip);
+                loc.IPQuery(ip, sink);
+                String[] values = {expected.getCountryShort(), expected.getCountryLong(), expected.getRegion(), expected.getUsageType(), expected.getASN()};
+                for (int y = 0; y < fields.length; y++) {
+                    IPFieldDictionary dictionary = loc.GetDictionary(fields[y]);
+                    int id = loc.IPQueryId(ip, fields[y]);
+                    if (!"OK".equals(expected.getStatus())) {
+                        if (id != -1) {
+                            mismatches++;
+                        }
+                    } else if (id < 0 || id >= dictionary.size() || !values[y].equals(dictionary.getValue(id))
+                            || dictionary.getId(sink.ids.get(fields[y])) != id) {
+                        mismatches++;
+                    }
+                }
+            }
+            for (IPField field : fields) {
+                int size = locs[0].GetDictionary(field).size();
+                for (IP2Location loc : locs) {
+                    if (loc.GetDictionary(field).size() != size) {
+                        mismatches++;
+                    }
+                }
+            }
+            report("Dictionary", mismatches, ", " + locs[0].GetDictionary(IPField.COUNTRY_SHORT).size() + " countries",
+                    "Dictionary ids do not match the values of the lookups");
+        } finally {
+            close(locs);
+        }
+    }
+
+    /**
+     * A sink should get the same fields as an IPResult, with the coordinates as the BIN stores them in every mode, and
+     * memory mapped or column lookups into it should not allocate.
+     */
+    private static void sinkTest() throws Exception {
+        IP2Location[] locs = instances(4);
+        locs[1].UseInMemoryColumns = true;
+        try {
+            File compiled = tempFile(".compiled");
+            File bin = tempBin(new BinFileBuilder(26).ipv4Rows(5000).ipv6Rows(500));
+            locs[0].Open(bin.getPath(), true);
+            locs[1].Open(bin.getPath(), true);
+            locs[2].Open(bin.getPath(), false);
+            locs[1].Compile(compiled.getPath());
+            locs[3].Open(compiled.getPath());
+
+            int mismatches = 0;
+            RecordingSink sink = new RecordingSink();
+            Random random = new Random(19);
+            for (int x = 0; x < 3000; x++) {
+                String ip = randomIPv4(random);
+                float latitude = 0;
+                float longitude = 0;
+                for (IP2Location loc : locs) {
+                    IPResult expected = loc.IPQuery(ip);
+                    sink.ids.clear();
+                    sink.recording = true;
+                    String status = loc.IPQuery(ip, sink);
+                    String country = (sink.country > 0xff) ? "" + (char) (sink.country >>> 8) + (char) (sink.country & 0xff) : "" + (char) sink.country;
+                    if (!expected.getStatus().equals(status) || !expected.getCountryShort().equals(country)
+                            || !expected.getCity().equals(loc.GetString(sink.ids.get(IPField.CITY)))
+                            || !expected.getASN().equals(loc.GetString(sink.ids.get(IPField.ASN))) || sink.asn != (expected.getASN().matches("[0-9]{1,18}") ? Long.parseLong(expected.getASN()) : -1)
+                            || expected.getLatitude() != IP2Location.roundCoordinate(sink.latitude) || expected.getLongitude() != IP2Location.roundCoordinate(sink.longitude)
+                            || expected.getElevation() != sink.elevation) {
+                        mismatches++;
+                    }
+                    // every mode passes the coordinates exactly as the BIN stores them
+                    if (loc != locs[0] && (Float.floatToRawIntBits(sink.latitude) != Float.floatToRawIntBits(latitude) || Float.floatToRawIntBits(sink.longitude) != Float.floatToRawIntBits(longitude))) {
+                        mismatches++;
+                    }
+                    latitude = sink.latitude;
+                    longitude = sink.longitude;
+                }
+            }
+
+            sink.recording = false;
+            long[] bytes = new long[2];
+            for (int x = 0; x < 2; x++) {
+                com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+                final int rounds = 200000;
+                for (int y = 0; y < rounds; y++) { // warm up so the counters are not skewed by JIT compilation
+                    locs[x].IPQuery(0x65000000 + y * 97, sink);
+                }
+                long before = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                for (int y = 0; y < rounds; y++) {
+                    locs[x].IPQuery(0x65000000 + y * 97, sink);
+                }
+                bytes[x] = (bean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / rounds;
+            }
+            System.out.println("Sink mismatches: " + mismatches + ", bytes per lookup " + bytes[0] + " (mapped), " + bytes[1] + " (columns)");
+            if (mismatches > 0 || bytes[0] > 0 || bytes[1] > 0) {
+                throw new IllegalStateException("Sink lookups differ from IPResult or allocate");
+            }
+        } finally {
+            close(locs);
+        }
+    }
+
+    private static final class RecordingSink implements IPResultSink {
+        final Map<IPField, Long> ids = new EnumMap<>(IPField.class);
+        boolean recording; // ids are boxed, so only while checking the values
+        int country;
+        float latitude;
+        float longitude;
+        float elevation;
+        long asn;
+
+        @Override
+        public void country(int code) {
+            country = code;
+        }
+
+        @Override
+        public void coordinates(float latitude, float longitude) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        @Override
+        public void elevation(float elevation) {
+            this.elevation = elevation;
+        }
+
+        @Override
+        public void asn(long asn) {
+            this.asn = asn;
+        }
+
+        @Override
+        public void string(IPField field, long id) {
+            if (recording) {
+                ids.put(field, id);
+            }
+        }
+    }
+
+    /**
+     * @return the values a sink received, with the string ids resolved by the IP2Location that passed them
+     */
+    private static String describe(IP2Location loc, RecordingSink sink) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append(sink.country).append(' ').append(sink.latitude).append(' ').append(sink.elevation).append(' ').append(sink.asn);
+        for (Map.Entry<IPField, Long> entry : sink.ids.entrySet()) {
+            text.append(' ').append(entry.getKey()).append('=').append(loc.GetString(entry.getValue()));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Addresses answered from a cached range should get the same result as a search, and neighbours should hit.
+     */
+    private static void resultCacheTest() throws Exception {
+        IP2Location mapped = new IP2Location();
+        IP2Location cached = new IP2Location();
+        cached.ResultCacheSize = 1024;
+        try {
+            File bin = tempBin(new BinFileBuilder(11).ipv4Rows(20000).ipv6Rows(2000));
+            mapped.Open(bin.getPath(), true);
+            cached.Open(bin.getPath(), true);
+
+            Random random = new Random(14);
+            int mismatches = 0;
+            for (int x = 0; x < 20000; x++) {
+                // the builder puts half of the rows into 100.0.0.0 to 107.255.255.255
+                String ip = (x % 4 != 0)
+                        ? ("100." + random.nextInt(2) + "." + random.nextInt(256) + "." + random.nextInt(256))
+                        : String.format("2%03x:%x::%x", random.nextInt(2), random.nextInt(16), random.nextInt(65536));
+                IPResult expected = mapped.IPQuery(ip);
+                IPResult actual = cached.IPQuery(ip);
+                if (!expected.toString().equals(actual.toString()) || !expected.getStatus().equals(actual.getStatus())) {
+                    mismatches++;
+                }
+            }
+            System.out.println("Result cache mismatches: " + mismatches + ", hits " + cached.GetResultCacheHits() + ", misses " + cached.GetResultCacheMisses());
+            if (mismatches > 0 || cached.GetResultCacheHits() == 0) {
+                throw new IllegalStateException("Cached results differ from the searched ones");
+            }
+        } finally {
+            mapped.Close();
+            cached.Close();
+        }
+    }
+
+    /**
+     * Queries running while the BIN is swapped back and forth should all be answered by one BIN or the other.
+     */
+    private static void reloadTest() throws Exception {
+        ReloadableIP2Location loc = new ReloadableIP2Location(() -> {
+            IP2Location location = new IP2Location();
+            location.UseMemoryMappedFile = true;
+            location.DictionaryFields = EnumSet.of(IPField.COUNTRY_SHORT);
+            return location;
+        });
+        try {
+            File first = tempBin(new BinFileBuilder(1).ipv4Rows(2000).ipv6Rows(1000));
+            File second = tempBin(new BinFileBuilder(3).ipv4Rows(3000).ipv6Rows(500).seed(3));
+            loc.Open(first.getPath());
+
+            AtomicBoolean done = new AtomicBoolean(false);
+            AtomicInteger failures = new AtomicInteger(0);
+            Thread reader = new Thread(() -> {
+                Random random = new Random(12);
+                RecordingSink sink = new RecordingSink();
+                for (int x = 0; !done.get(); x++) {
+                    try {
+                        // every overload, each against whichever BIN is current when it starts
+                        int address = random.nextInt();
+                        byte[] bytes = {(byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address};
+                        String status;
+                        switch (x % 8) {
+                            case 0:
+                                status = loc.IPQuery(randomIPv4(random)).getStatus();
+                                break;
+                            case 1:
+                                status = loc.IPQuery(address).getStatus();
+                                break;
+                            case 2:
+                                status = loc.IPQuery(bytes, EnumSet.of(IPField.COUNTRY_LONG)).getStatus();
+                                break;
+                            case 3:
+                                status = loc.IPQuery(InetAddress.getByAddress(bytes)).getStatus();
+                                break;
+                            case 4:
+                                status = loc.IPQuery(0L, 0xffff00000000L | (address & 0xffffffffL)).getStatus(); // IPv4-mapped
+                                break;
+                            case 5:
+                                status = loc.IPQuery(address, sink);
+                                break;
+                            case 6:
+                                status = loc.IPQuery(bytes, sink);
+                                break;
+                            default:
+                                status = (loc.IPQueryId(randomIPv4(random), IPField.COUNTRY_SHORT) >= 0) ? "OK" : "NO_ID";
+                        }
+                        if (!"OK".equals(status)) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            reader.start();
+            for (int x = 0; x < 20; x++) {
+                loc.Reload(((x & 1) == 0) ? second.getPath() : first.getPath());
+            }
+            done.set(true);
+            reader.join();
+
+            IPFieldDictionary countries = loc.GetDictionary(IPField.COUNTRY_SHORT);
+            if (countries == null || !loc.IPQuery("8.8.8.8").getCountryShort().equals(countries.getValue(loc.IPQueryId("8.8.8.8", IPField.COUNTRY_SHORT)))) {
+                failures.incrementAndGet();
+            }
+            System.out.println("Failed queries during reloads: " + failures.get() + ", package version " + loc.GetPackageVersion());
+            loc.Close();
+            if (failures.get() > 0 || !"MISSING_FILE".equals(loc.IPQuery("8.8.8.8").getStatus())) {
+                throw new IllegalStateException("Queries failed while the BIN was reloaded");
+            }
+        } finally {
+            loc.Close();
+        }
+    }
+
+    /**
+     * Moving a new BIN over the watched one should switch the queries to it.
+     */
+    private static void watcherTest() throws Exception {
+        ReloadableIP2Location loc = new ReloadableIP2Location();
+        IP2LocationWatcher watcher = null;
+        try {
+            Path dir = Files.createTempDirectory("ip2location-watcher");
+            Path bin = dir.resolve("IP2LOCATION.BIN");
+            Path update = Files.createTempFile("ip2location-update", ".bin");
+            new BinFileBuilder(1).write(bin.toString());
+            new BinFileBuilder(3).write(update.toString());
+
+            CountDownLatch reloaded = new CountDownLatch(1);
+            watcher = new IP2LocationWatcher(loc, bin.toString(), new IP2LocationWatcher.Listener() {
+                public void reloaded(String DBPath, long millis) {
+                    System.out.println("Reloaded " + DBPath + " in " + millis + " ms");
+                    reloaded.countDown();
+                }
+
+                public void failed(String DBPath, Exception exception) {
+                    System.out.println(exception);
+                }
+            });
+            watcher.QuietMillis = 100;
+            watcher.Start();
+            String before = loc.GetPackageVersion();
+            Files.move(update, bin, StandardCopyOption.REPLACE_EXISTING);
+            if (!reloaded.await(30, TimeUnit.SECONDS) || !"1".equals(before) || !"3".equals(loc.GetPackageVersion())) {
+                throw new IllegalStateException("The watcher did not reload the replaced BIN");
+            }
+            Files.delete(bin);
+            Files.delete(dir);
+        } finally {
+            if (watcher != null) {
+                watcher.Close();
+            }
+            loc.Close();
+        }
+    }
+
+    private static long bytesPerLookup(IP2Location loc) throws Exception {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        String[] ips = {"101.2.3.4", "8.8.8.8", "203.0.113.9", "104.16.0.1"};
+        final int rounds = 200000;
+        for (int x = 0; x < rounds; x++) { // warm up so the counters are not skewed by JIT compilation
+            loc.IPQuery(ips[x & 3]);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(threadId);
+        for (int x = 0; x < rounds; x++) {
+            loc.IPQuery(ips[x & 3]);
+        }
+        return (bean.getThreadAllocatedBytes(threadId) - before) / rounds;
+    }
+
     private static void ipToolTest() {
         try {
             IPTools tools = new IPTools();